@@ -34,6 +34,7 @@ import edu.berkeley.bidms.connector.ObjectDefinition
 import edu.berkeley.bidms.connector.ldap.event.LdapCallbackContext
 import edu.berkeley.bidms.connector.ldap.event.LdapDeleteEventCallback
 import edu.berkeley.bidms.connector.ldap.event.LdapEventType
+import edu.berkeley.bidms.connector.ldap.event.LdapGroupMembershipEventCallback
 import edu.berkeley.bidms.connector.ldap.event.LdapInsertEventCallback
 import edu.berkeley.bidms.connector.ldap.event.LdapPersistCompletionEventCallback
 import edu.berkeley.bidms.connector.ldap.event.LdapRemoveAttributesEventCallback
@@ -43,6 +44,7 @@ import edu.berkeley.bidms.connector.ldap.event.LdapUniqueIdentifierEventCallback
 import edu.berkeley.bidms.connector.ldap.event.LdapUpdateEventCallback
 import edu.berkeley.bidms.connector.ldap.event.message.LdapDeleteEventMessage
 import edu.berkeley.bidms.connector.ldap.event.message.LdapEventMessage
+import edu.berkeley.bidms.connector.ldap.event.message.LdapGroupMembershipEventMessage
 import edu.berkeley.bidms.connector.ldap.event.message.LdapInsertEventMessage
 import edu.berkeley.bidms.connector.ldap.event.message.LdapPersistCompletionEventMessage
 import edu.berkeley.bidms.connector.ldap.event.message.LdapRemoveAttributesEventMessage
@@ -51,7 +53,11 @@ import edu.berkeley.bidms.connector.ldap.event.message.LdapSetAttributeEventMess
 import edu.berkeley.bidms.connector.ldap.event.message.LdapUniqueIdentifierEventMessage
 import edu.berkeley.bidms.connector.ldap.event.message.LdapUpdateEventMessage
 import groovy.util.logging.Slf4j
+import org.springframework.dao.EmptyResultDataAccessException
+import org.springframework.dao.IncorrectResultSizeDataAccessException
 import org.springframework.ldap.NameNotFoundException
+import org.springframework.ldap.TimeLimitExceededException
+import org.springframework.ldap.core.ContextExecutor
 import org.springframework.ldap.core.ContextMapper
 import org.springframework.ldap.core.ContextSource
 import org.springframework.ldap.core.DirContextAdapter
@@ -59,22 +65,42 @@ import org.springframework.ldap.core.LdapTemplate
 import org.springframework.ldap.core.support.SingleContextSource
 import org.springframework.ldap.query.LdapQuery
 import org.springframework.ldap.query.LdapQueryBuilder
+import org.springframework.ldap.filter.OrFilter
 import org.springframework.ldap.query.SearchScope
-import org.springframework.ldap.support.LdapNameBuilder
+import org.springframework.ldap.support.LdapUtils
 import org.springframework.transaction.annotation.Transactional
 
+import javax.naming.Context
 import javax.naming.Name
 import javax.naming.directory.Attribute
 import javax.naming.directory.Attributes
 import javax.naming.directory.BasicAttribute
 import javax.naming.directory.BasicAttributes
 import javax.naming.directory.DirContext
+import javax.naming.directory.InitialDirContext
 import javax.naming.directory.ModificationItem
 import javax.naming.directory.NoSuchAttributeException
+import javax.naming.ldap.Control
+import javax.naming.ldap.LdapContext
 import javax.naming.ldap.LdapName
 import javax.naming.ldap.Rdn
+import java.util.concurrent.Callable
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.PriorityBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.Semaphore
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.BiConsumer
+import java.util.function.Consumer
 
 /**
  * Connector for LDAP and Active Directory directory servers.
@@ -143,6 +169,12 @@ class LdapConnector implements Connector {
      */
     List<LdapPersistCompletionEventCallback> persistCompletionEventCallbacks = []
 
+    /**
+     * Callbacks to be called for each member change once coalesced group
+     * membership changes have been flushed to the directory.
+     */
+    List<LdapGroupMembershipEventCallback> groupMembershipEventCallbacks = []
+
     /**
      * Callbacks that dynamically determine the value of an attribute.
      * </p>
@@ -264,10 +296,57 @@ class LdapConnector implements Connector {
             }
     ]
 
+    /**
+     * Interns parsed distinguished names so that the same DN string is not
+     * repeatedly parsed and normalized.
+     */
+    CanonicalDnCache canonicalDnCache = new CanonicalDnCache()
+
+    /**
+     * If true, the directory's subschema is read at {@link #start()} and
+     * used to encode caller-provided values and to compare values according
+     * to each attribute's equality matching rule when updating.
+     */
+    boolean isSchemaAware = false
+
+    /**
+     * The schema codec.  Loaded at start() when isSchemaAware is true, or
+     * may be set directly.  When null, values are compared as exact
+     * strings.
+     */
+    LdapSchemaCodec schemaCodec
+
+    /**
+     * Optional pool for attribute values that repeat across entries.  Used
+     * for caller-provided values and, when set with {@link
+     * #setValueInterner(LdapValueInterner)}, by the default
+     * toMapContextMapper.
+     */
+    LdapValueInterner valueInterner
+
+    /**
+     * Set the value interner, which is also used by the toMapContextMapper
+     * if it's a {@link ToMapContextMapper}.
+     *
+     * @param valueInterner The value interner, or null to not intern
+     *        values.
+     */
+    void setValueInterner(LdapValueInterner valueInterner) {
+        this.valueInterner = valueInterner
+        if (toMapContextMapper instanceof ToMapContextMapper) {
+            ((ToMapContextMapper) toMapContextMapper).valueInterner = valueInterner
+        }
+    }
+
     /**
      * For queuing up asynchronous callback messages
      */
     private final LinkedBlockingQueue<LdapEventMessage> callbackMessageQueue = new LinkedBlockingQueue<LdapEventMessage>()
+    // event messages of the operation executeWithRetry() is retrying on
+    // this thread
+    private final ThreadLocal<RetryEventMessages> retryEventMessages = new ThreadLocal<RetryEventMessages>()
+    // set while this thread runs an operation in a concurrencyLimiter slot
+    private final ThreadLocal<Boolean> holdingConcurrencySlot = new ThreadLocal<Boolean>()
 
     /**
      * If true, calls to callbacks will be done synchronously instead of
@@ -280,11 +359,271 @@ class LdapConnector implements Connector {
      */
     LdapCallbackMonitorThread callbackMonitorThread
 
+    /**
+     * If set, group membership changes are queued and written as one
+     * modification per group instead of one modification per member.
+     * Disabled by default.  See {@link LdapGroupMembershipCoalescer}.
+     */
+    LdapGroupMembershipCoalescer groupMembershipCoalescer
+
+    /**
+     * If set, concurrent searches by primary key in findMatchingEntry()
+     * are coalesced into OR-filter searches.  Disabled by default.  See
+     * {@link LdapPrimaryKeySearchBatcher}.
+     */
+    LdapPrimaryKeySearchBatcher primaryKeySearchBatcher
+
+    /**
+     * How findMatchingEntry() finds the existing entry of a persist
+     * request.  The default tries a DN lookup and the globally unique
+     * identifier before searching by primary key.  See
+     * {@link LdapCostBasedEntryMatchingStrategy}.
+     */
+    LdapEntryMatchingStrategy entryMatchingStrategy = new LdapCostBasedEntryMatchingStrategy()
+
+    /**
+     * If true, delete() uses the Tree Delete control to delete an entry
+     * with subordinates when the server advertises support for it.
+     */
+    boolean isTreeDeleteControlEnabled = true
+
+    /**
+     * If true, modifications that may add existing values or remove
+     * missing values, such as group member changes, use the Permissive
+     * Modify control when the server advertises support for it, so that
+     * they succeed in one request rather than failing and being retried.
+     */
+    boolean isPermissiveModifyControlEnabled = true
+
+    /**
+     * The maximum number of directory operations the connector runs in
+     * parallel for a single request, such as deleting the entries of one
+     * level of a subtree.
+     */
+    int parallelism = 4
+
+    /**
+     * The number of threads that run the operations of persistAsync() and
+     * the other async methods.  Queued operations are run in the order of
+     * their {@link LdapPriority}, so INTERACTIVE operations are run ahead
+     * of queued BULK operations, and in the order they were submitted
+     * within a priority.
+     */
+    int asyncThreads = 8
+
+    /**
+     * The maximum number of async operations submitted and not yet
+     * complete.  Submitting another blocks the caller until one completes,
+     * for at most maxAsyncWaitMillis.
+     */
+    int maxAsyncInFlight = 1000
+
+    /**
+     * How long submitting an async operation waits for one of the
+     * maxAsyncInFlight operations to complete before it fails with a
+     * {@link LdapConcurrencyLimitExceededException}.  This also bounds the
+     * wait of a callback that submits an async operation from an async
+     * thread, which could otherwise wait on itself.
+     */
+    long maxAsyncWaitMillis = 30000
+
+    /**
+     * The capabilities advertised by the server's root DSE.  Read on first
+     * use, or may be set directly.
+     */
+    volatile LdapServerCapabilities serverCapabilities
+
+    private ExecutorService parallelExecutor
+
+    private ExecutorService asyncExecutor
+
+    private Semaphore asyncPermits
+
+    // orders the async operations of a priority
+    private final AtomicLong asyncSequence = new AtomicLong()
+
+    // set by stop() so that async operations submitted after it fail
+    private boolean stopped
+
+    /**
+     * Read replicas of the directory.  If set, searches and lookups made
+     * to find existing entries, such as by findMatchingEntry(), are sent
+     * to the replicas in turn instead of contextSource, except for the
+     * primary keys and DNs written within the last
+     * readYourWritesWindowMillis, which are read from contextSource.
+     * Writes and the reads that follow a write within a request always use
+     * contextSource.
+     */
+    List<ContextSource> readContextSources
+
+    /**
+     * How long reads of a written primary key or DN are sent to
+     * contextSource rather than the read replicas, which should exceed
+     * the replication delay of the replicas.
+     */
+    long readYourWritesWindowMillis = 5000
+
+    /**
+     * The maximum number of written primary keys and DNs remembered
+     * before expired ones are forgotten.
+     */
+    int maxRecentWrites = 10000
+
+    /**
+     * If set, persist(), setAttribute() and removeAttributes() are retried
+     * when they fail transiently, such as when the directory is busy.
+     * The event messages of an operation that can be retried are delivered
+     * once it succeeds or fails for good, so that callbacks receive one
+     * completion event per operation.  Disabled by default.  See
+     * {@link LdapRetryPolicy}.
+     */
+    LdapRetryPolicy retryPolicy
+
+    /**
+     * If set, persist(), setAttribute() and removeAttributes() fail fast
+     * with a {@link LdapCircuitOpenException} while contextSource keeps
+     * failing transiently.  Disabled by default.  See
+     * {@link LdapCircuitBreaker}.
+     */
+    LdapCircuitBreaker circuitBreaker
+
+    /**
+     * If set, bounds the number of persist(), setAttribute() and
+     * removeAttributes() operations in flight against contextSource with a
+     * limit that adapts to the directory's latency and transient failures.
+     * Operations over the limit wait, and fail with a
+     * {@link LdapConcurrencyLimitExceededException} if they wait too long.
+     * The parallel operations of bulk methods and the writes of the
+     * groupMembershipCoalescer take slots of the same limit.  Hedged reads
+     * of the readHedger don't.  Disabled by default.  See
+     * {@link LdapConcurrencyLimiter}.
+     */
+    LdapConcurrencyLimiter concurrencyLimiter
+
+    /**
+     * If set, persist() requests are admitted to the directory in lanes by
+     * their {@link LdapPriority}, so that interactive changes have capacity
+     * reserved for them and don't queue behind bulk jobs.  Other
+     * operations can be admitted with
+     * {@link LdapPriorityScheduler#acquire(LdapPriority)}.  Disabled by
+     * default.  See {@link LdapPriorityScheduler}.
+     */
+    LdapPriorityScheduler priorityScheduler
+
+    /**
+     * The priority of persist() requests that don't specify one.
+     */
+    LdapPriority defaultPriority = LdapPriority.BULK
+
+    // classifies transient failures for the circuitBreaker when there is
+    // no retryPolicy
+    private static final LdapRetryPolicy NO_RETRY_POLICY = new LdapRetryPolicy(maxAttempts: 1)
+
+    /**
+     * If set, searchByPrimaryKey(), lookup() and
+     * lookupByGloballyUniqueIdentifier() reads that are slow are hedged
+     * with a second read from another read replica, or from another
+     * connection to contextSource.  Disabled by default.  See
+     * {@link LdapReadHedger}.
+     */
+    LdapReadHedger readHedger
+
+    private volatile List<LdapTemplate> readLdapTemplates = []
+    private final AtomicInteger nextReadLdapTemplate = new AtomicInteger()
+    // primary key or DN key -> time after which the replicas can be read
+    private final Map<String, Long> recentWrites = new ConcurrentHashMap<String, Long>()
+
+    /**
+     * @param readContextSources The read replicas, or null to read from
+     *        contextSource.
+     */
+    void setReadContextSources(List<ContextSource> readContextSources) {
+        this.readContextSources = readContextSources
+        this.readLdapTemplates = readContextSources ? readContextSources.collect { new LdapTemplate(it) } : []
+    }
+
+    /**
+     * Remember that a primary key and DN are being written, so that reads
+     * of them are sent to contextSource for readYourWritesWindowMillis.
+     *
+     * @param objectDef The object definition
+     * @param pkey The primary key, or null
+     * @param dn The DN, or null
+     */
+    void recordWrite(LdapObjectDefinition objectDef, String pkey, Name dn) {
+        if (!readLdapTemplates) {
+            return
+        }
+        long now = System.currentTimeMillis()
+        if (recentWrites.size() >= maxRecentWrites) {
+            recentWrites.entrySet().removeIf { Map.Entry<String, Long> entry -> entry.value <= now }
+        }
+        long readableAt = now + readYourWritesWindowMillis
+        if (pkey != null) {
+            recentWrites.put(recentWriteKey(objectDef, pkey), readableAt)
+        }
+        if (dn != null) {
+            recentWrites.put(recentWriteKey(dn), readableAt)
+        }
+    }
+
+    /**
+     * @return true if the primary key or DN was written within the last
+     *         readYourWritesWindowMillis
+     */
+    boolean isRecentlyWritten(LdapObjectDefinition objectDef, String pkey, Name dn) {
+        if (recentWrites.isEmpty()) {
+            return false
+        }
+        long now = System.currentTimeMillis()
+        Long pkeyReadableAt = (pkey != null ? recentWrites.get(recentWriteKey(objectDef, pkey)) : null)
+        Long dnReadableAt = (dn != null ? recentWrites.get(recentWriteKey(dn)) : null)
+        return (pkeyReadableAt != null && pkeyReadableAt > now) || (dnReadableAt != null && dnReadableAt > now)
+    }
+
+    private static String recentWriteKey(LdapObjectDefinition objectDef, String pkey) {
+        return "pkey:${objectDef.primaryKeyAttributeName?.toLowerCase()}=${pkey.toLowerCase()}".toString()
+    }
+
+    private String recentWriteKey(Name dn) {
+        return "dn:${canonicalDn(dn).normalizedString}".toString()
+    }
+
+    /**
+     * The request context to read entries of the primary keys and DN
+     * with.  This is a context with a read replica if there are
+     * readContextSources and none of the primary keys or the DN were
+     * recently written, and reqCtx otherwise.
+     *
+     * @param reqCtx Context for the request
+     * @param pkeys The primary keys to be read, or null
+     * @param dn The DN to be read, or null
+     * @return The request context to read with
+     */
+    LdapRequestContext readRequestContext(LdapRequestContext reqCtx, Collection<String> pkeys, Name dn) {
+        List<LdapTemplate> templates = readLdapTemplates
+        if (!templates) {
+            return reqCtx
+        }
+        if ((dn != null && isRecentlyWritten(reqCtx.objectDef, null, dn)) || pkeys?.any { it != null && isRecentlyWritten(reqCtx.objectDef, it, null) }) {
+            return reqCtx
+        }
+        LdapTemplate readLdapTemplate = templates.get(Math.floorMod(nextReadLdapTemplate.getAndIncrement(), templates.size()))
+        return reqCtx.withLdapTemplate(readLdapTemplate)
+    }
+
     /**
      * Start the LDAP connector.  Responsible for starting the callback
      * queue monitor thread when running in asynchronous callback mode.
      */
     void start() {
+        synchronized (this) {
+            this.stopped = false
+        }
+        if (isSchemaAware && schemaCodec == null) {
+            this.schemaCodec = loadSchemaCodec()
+        }
+        groupMembershipCoalescer?.start()
         if (!isSynchronousCallback) {
             this.callbackMonitorThread = new LdapCallbackMonitorThread(this)
             callbackMonitorThread.start()
@@ -296,190 +635,1239 @@ class LdapConnector implements Connector {
      * monitor thread when running in asynchronous callback mode.
      */
     void stop() {
+        // flush queued group membership changes before the callback
+        // monitor thread stops
+        groupMembershipCoalescer?.stop()
+        synchronized (this) {
+            this.stopped = true
+            parallelExecutor?.shutdown()
+            this.parallelExecutor = null
+            // submitted async operations still complete
+            asyncExecutor?.shutdown()
+            this.asyncExecutor = null
+            this.asyncPermits = null
+        }
+        readHedger?.shutdown()
         if (!isSynchronousCallback) {
             callbackMonitorThread.requestStop()
         }
     }
 
     /**
-     * In current thread, invoke the callback for an event message.  This
-     * invoked by the ldapConnector directly in synchronous callback mode
-     * and invoked by the callback queue monitor thread when running in
-     * asynchronous callback mode.
-     *
-     * @param eventMessage The event message to pass back to the callback.
+     * @return The capabilities advertised by the server's root DSE, read on
+     *         first use.  If the root DSE can't be read or advertises no
+     *         controls, the server is assumed to advertise nothing and the
+     *         read is retried on the next call.
      */
-    protected void invokeCallback(LdapEventMessage eventMessage) {
-        switch (eventMessage.eventType) {
-            case LdapEventType.UPDATE_EVENT:
-                updateEventCallbacks?.each { it.receive((LdapUpdateEventMessage) eventMessage) }
-                break
-            case LdapEventType.INSERT_EVENT:
-                insertEventCallbacks?.each { it.receive((LdapInsertEventMessage) eventMessage) }
-                break
-            case LdapEventType.RENAME_EVENT:
-                renameEventCallbacks?.each { it.receive((LdapRenameEventMessage) eventMessage) }
-                break
-            case LdapEventType.DELETE_EVENT:
-                deleteEventCallbacks?.each { it.receive((LdapDeleteEventMessage) eventMessage) }
-                break
-            case LdapEventType.UNIQUE_IDENTIFIER_EVENT:
-                uniqueIdentifierEventCallbacks?.each { it.receive((LdapUniqueIdentifierEventMessage) eventMessage) }
-                break
-            case LdapEventType.REMOVE_ATTRIBUTES_EVENT:
-                removeAttributesEventCallbacks?.each { it.receive((LdapRemoveAttributesEventMessage) eventMessage) }
-                break
-            case LdapEventType.SET_ATTRIBUTE_EVENT:
-                setAttributeEventCallbacks?.each { it.receive((LdapSetAttributeEventMessage) eventMessage) }
-                break
-            case LdapEventType.PERSIST_COMPLETION_EVENT:
-                persistCompletionEventCallbacks?.each { it.receive((LdapPersistCompletionEventMessage) eventMessage) }
-                break
-            default:
-                throw new RuntimeException("Unknown LdapEventType for event message: ${eventMessage.eventType}")
+    LdapServerCapabilities getServerCapabilities() {
+        LdapServerCapabilities capabilities = serverCapabilities
+        if (capabilities == null) {
+            DirContext ctx = null
+            try {
+                ctx = contextSource.readOnlyContext
+                capabilities = LdapServerCapabilities.fromRootDse(readRootDse(ctx))
+                if (capabilities.supportedControls) {
+                    this.serverCapabilities = capabilities
+                    log.debug("Server capabilities: $capabilities")
+                } else {
+                    log.debug("The root DSE of the directory advertises no controls, so none are used: $capabilities")
+                }
+            }
+            catch (Exception e) {
+                log.warn("Unable to read the root DSE of the directory", e)
+                return LdapServerCapabilities.NONE
+            }
+            finally {
+                ctx?.close()
+            }
         }
+        return capabilities
     }
 
     /**
-     * The callback queue monitor thread calls this to see if there are
-     * messages in the callback queue.  Blocks until a message appears in
-     * the queue or the timeout period has elapsed.
+     * Read the {@link LdapServerCapabilities#ROOT_DSE_ATTRIBUTES} of the
+     * root DSE.  When the provider URL of ctx has a base, as it does for a
+     * context source with a base, the empty name is the base entry rather
+     * than the root DSE, so the root DSE is read with a new context that
+     * has the environment of ctx and no base.
      *
-     * @return The next message in the callback queue.  Returns null if
-     *         timeout period has elapsed.
-     * @throws InterruptedException if the thread is interrupted while
-     *         blocking
+     * @param ctx A context from the contextSource
+     * @return The root DSE attributes
      */
-    protected LdapEventMessage pollCallbackQueue(long timeout, TimeUnit unit) throws InterruptedException {
-        return callbackMessageQueue.poll(timeout, unit)
+    protected static Attributes readRootDse(DirContext ctx) throws javax.naming.NamingException {
+        Hashtable<?, ?> environment = ctx.environment
+        String providerUrl = environment?.get(Context.PROVIDER_URL)?.toString()
+        String rootProviderUrl = (providerUrl ? getRootProviderUrl(providerUrl) : null)
+        if (rootProviderUrl == providerUrl) {
+            return ctx.getAttributes("", LdapServerCapabilities.ROOT_DSE_ATTRIBUTES)
+        }
+        Hashtable<Object, Object> rootEnvironment = new Hashtable<Object, Object>(environment)
+        rootEnvironment.put(Context.PROVIDER_URL, rootProviderUrl)
+        DirContext rootCtx = new InitialDirContext(rootEnvironment)
+        try {
+            return rootCtx.getAttributes("", LdapServerCapabilities.ROOT_DSE_ATTRIBUTES)
+        }
+        finally {
+            rootCtx.close()
+        }
     }
 
     /**
-     * Deliver a callback message either synchronously or asynchronously
-     * depending on the isSynchronousCallback flag.
-     *
-     * @param eventMessage The event message to deliver.
+     * @param providerUrl A space separated list of LDAP URLs
+     * @return The URLs without their base DN
      */
-    void deliverCallbackMessage(LdapEventMessage eventMessage) {
-        if (isSynchronousCallback) {
-            invokeCallback(eventMessage)
-        } else {
-            if (eventMessage) {
-                if (!callbackMessageQueue.offer(eventMessage)) {
-                    throw new LdapConnectorException("Could not add event message to the callback message queue")
-                }
-            } else {
-                log.warn("deliveryCallbackMessage was called with a null eventMessage")
-            }
-        }
+    protected static String getRootProviderUrl(String providerUrl) {
+        return providerUrl.trim().split(/\s+/).collect { String url ->
+            url.replaceFirst(/^(ldaps?:\/\/[^\/]*)\/.+$/, '$1/')
+        }.join(" ")
     }
 
     /**
-     * Search the directory for objects for a primary key if
-     * search-by-primary-key is enabled.  Search-by-primary-key is disabled
-     * if objectDef.getLdapQueryForPrimaryKey(pkey) returns null.
-     *
-     * @param reqCtx Context for the request
-     * @param pkey Primary key
-     * @return A list of objects found in the directory if search by primary
-     *         key is enabled, null otherwise.
+     * @return true if the Permissive Modify control is enabled and the
+     *         server advertises support for it.
      */
-    List<DirContextAdapter> searchByPrimaryKey(LdapRequestContext reqCtx, String pkey) {
-        LdapQuery query = reqCtx.objectDef.getLdapQueryForPrimaryKey(pkey)
-        return (query ? reqCtx.ldapTemplate.search(query, toDirContextAdapterContextMapper) : null)
+    boolean isPermissiveModifySupported() {
+        return isPermissiveModifyControlEnabled && getServerCapabilities().supportsControl(PermissiveModifyControl.OID)
     }
 
     /**
-     * Search the directory for an object by its DN.
+     * Modify an entry with the Permissive Modify control, if it's
+     * supported.
      *
-     * @param reqCtx Context for the request
-     * @param dn Distinguished name
-     * @param attributes Optionally, a list of attributes to return for each
-     *        object.  If null, returns all attributes except operational
-     *        attributes.  If operational attributes are desired, they have
-     *        to be specified.
-     * @return The found directory object or null if it was not found
+     * @return true if the modification was made.  false if the control
+     *         isn't supported, in which case no modification was made.
      */
-    DirContextAdapter lookup(LdapRequestContext reqCtx, Name dn, String[] attributes = null) {
-        if (!attributes) {
-            return (DirContextAdapter) reqCtx.ldapTemplate.lookup(dn)
-        } else {
-            return (DirContextAdapter) reqCtx.ldapTemplate.lookup(dn, attributes, toDirContextAdapterContextMapper)
+    protected boolean modifyAttributesPermissively(DirContext ctx, Name dn, ModificationItem[] items) {
+        if (!(ctx instanceof LdapContext) || !isPermissiveModifySupported()) {
+            return false
+        }
+        withRequestControl((LdapContext) ctx, new PermissiveModifyControl()) {
+            ctx.modifyAttributes(dn, items)
         }
+        return true
     }
 
     /**
-     * Search the directory for an object by its globally unique identifier.
+     * Run an operation on a context with a request control added to the
+     * request controls the context already has.  The context's original
+     * request controls are restored afterwards, since the context may be
+     * pooled or shared by the request.
      *
-     * @param reqCtx Context for the request
-     * @param pkey When searching by globally unique identifier, the object
-     *        must also match this expected primary key.
-     * @param uniqueIdentifier Globally unique identifier
-     * @return The found directory object or null if it was not found
+     * @param ldapContext The context
+     * @param control The control to add.  It replaces an existing control
+     *        with the same OID.
+     * @param operation The operation
+     * @return The result of the operation
      */
-    DirContextAdapter lookupByGloballyUniqueIdentifier(
-            LdapRequestContext reqCtx,
-            String pkey,
-            Object uniqueIdentifier
-    ) {
-        return reqCtx.ldapTemplate.searchForObject(reqCtx.objectDef.getLdapQueryForGloballyUniqueIdentifier(pkey, uniqueIdentifier), toDirContextAdapterContextMapper)
+    protected static <T> T withRequestControl(LdapContext ldapContext, Control control, Closure<T> operation) {
+        Control[] originalControls = ldapContext.requestControls
+        List<Control> controls = (originalControls ?: [] as Control[]).findAll { Control existing -> existing.ID != control.ID }
+        controls.add(control)
+        ldapContext.setRequestControls(controls as Control[])
+        try {
+            return operation()
+        }
+        finally {
+            ldapContext.setRequestControls(originalControls)
+        }
     }
 
     /**
-     * Delete an object in the directory matching the DN.  The primary key
-     * (pkey) parameter is only passed in to pass back to the delete
-     * callback and is otherwise unused in determining which object to
-     * delete.
+     * Modify an entry with the Permissive Modify control, if it's
+     * supported.
      *
-     * @param reqCtx Context for the request
-     * @param pkey The primary key.  The parameter is only passed in to pass
-     *        back to the delete callback and is otherwise unused in
-     *        determining which object to delete.
-     * @param dn The distinguished name of the object to delete
-     * @throws LdapConnectorException If an error occurs
+     * @return true if the modification was made.  false if the control
+     *         isn't supported, in which case no modification was made.
      */
-    void delete(
-            LdapRequestContext reqCtx,
-            String pkey,
-            Name dn
-    ) throws LdapConnectorException {
-        Throwable exception
-        try {
-            // Recursively delete subordinates (leaves) first.  We have to search for them.
-            LdapQuery subordinateQuery = LdapQueryBuilder.query()
-                    .base(dn)
-                    .searchScope(SearchScope.ONELEVEL)
-                    .where("objectClass").isPresent()
-            List<DirContextAdapter> subordinates = reqCtx.ldapTemplate.search(
-                    subordinateQuery,
-                    toDirContextAdapterContextMapper
-            )
-            subordinates.each { DirContextAdapter foundSubordinate ->
-                if (!nameEquals(reqCtx.objectDef, foundSubordinate.dn, dn)) {
-                    delete(reqCtx, pkey, foundSubordinate.dn)
-                }
+    protected boolean modifyAttributesPermissively(LdapTemplate ldapTemplate, Name dn, ModificationItem[] items) {
+        if (!isPermissiveModifySupported()) {
+            return false
+        }
+        return (Boolean) ldapTemplate.executeReadWrite(new ContextExecutor<Boolean>() {
+            @Override
+            Boolean executeWithContext(DirContext ctx) throws javax.naming.NamingException {
+                return modifyAttributesPermissively(ctx, dn, items)
             }
+        })
+    }
 
-            // now that the subordinates are deleted, delete the DN
-            reqCtx.ldapTemplate.unbind(dn)
+    /**
+     * @return A shared pool of daemon threads for running directory
+     *         operations in parallel, sized by the parallelism property.
+     */
+    protected synchronized ExecutorService getParallelExecutor() {
+        if (!parallelExecutor) {
+            int threadNumber = 0
+            this.parallelExecutor = Executors.newFixedThreadPool(Math.max(1, parallelism), { Runnable r ->
+                Thread t = new Thread(r, "LDAP Connector Worker ${++threadNumber}")
+                t.daemon = true
+                return t
+            })
+        }
+        return parallelExecutor
+    }
+
+    /**
+     * @param reqCtx Context for the request
+     * @return A request context with the same eventId, objectDef, context
+     *         and deadline as reqCtx whose ldapTemplate may be used from
+     *         several threads at once.  That is reqCtx itself unless its
+     *         ldapTemplate has a single connection, which can't be shared
+     *         across threads.
+     */
+    protected LdapRequestContext parallelRequestContext(LdapRequestContext reqCtx) {
+        return (reqCtx.ldapTemplate.contextSource instanceof SingleContextSource ? reqCtx.withLdapTemplate(new LdapTemplate(contextSource)) : reqCtx)
+    }
+
+    /**
+     * Run operations on the parallel executor.  An operation takes a slot
+     * of the concurrencyLimiter, if there is one, before it is submitted.
+     * When no slot is free, a calling thread that already holds a slot,
+     * such as one running a persist(), runs the operation itself in that
+     * slot rather than waiting on itself.  Any other calling thread waits
+     * for a slot as {@link #acquireConcurrencySlot} does, and an operation
+     * that gets none has a future that fails with the reason.
+     *
+     * @param operations The operations
+     * @param deadline If set, a slot is waited for no longer than the
+     *        deadline
+     * @return The futures of the operations, in order
+     */
+    protected <T> List<Future<T>> submitParallel(List<Closure<T>> operations, LdapDeadline deadline = null) {
+        LdapConcurrencyLimiter limiter = concurrencyLimiter
+        return operations.collect { Closure<T> operation ->
+            if (limiter && !limiter.tryAcquire()) {
+                CompletableFuture<T> future = new CompletableFuture<T>()
+                if (holdingConcurrencySlot.get()) {
+                    try {
+                        future.complete(operation())
+                    }
+                    catch (Throwable t) {
+                        future.completeExceptionally(t)
+                    }
+                    return (Future<T>) future
+                }
+                try {
+                    acquireConcurrencySlot(limiter, deadline)
+                }
+                catch (Throwable t) {
+                    future.completeExceptionally(t)
+                    return (Future<T>) future
+                }
+            }
+            return getParallelExecutor().submit({
+                return limiter ? runInConcurrencySlot(limiter, operation) : operation()
+            } as Callable<T>)
+        }
+    }
+
+    /**
+     * Run a directory operation of a bulk or background path in a slot of
+     * the concurrencyLimiter, if there is one.  A thread that already
+     * holds a slot, such as one running a persist(), runs the operation in
+     * that slot rather than waiting on itself for another.
+     *
+     * @param operation The operation
+     * @return The result of the operation
+     * @throws LdapConcurrencyLimitExceededException If the
+     *         concurrencyLimiter limit was reached for too long
+     */
+    protected <T> T executeWithConcurrencyLimit(Closure<T> operation) throws LdapConnectorException {
+        LdapConcurrencyLimiter limiter = concurrencyLimiter
+        if (!limiter || holdingConcurrencySlot.get()) {
+            return operation()
+        }
+        if (!limiter.acquire()) {
+            throw concurrencyLimitExceeded(limiter)
+        }
+        return runInConcurrencySlot(limiter, operation)
+    }
+
+    /**
+     * Take a slot of the concurrencyLimiter, waiting no longer than its
+     * maxWaitMillis or the deadline, whichever is sooner.
+     *
+     * @param limiter The concurrencyLimiter
+     * @param deadline The deadline, or null for none
+     * @throws LdapDeadlineExceededException If no slot was free before the
+     *         deadline
+     * @throws LdapConcurrencyLimitExceededException If no slot was free
+     *         within maxWaitMillis
+     */
+    protected void acquireConcurrencySlot(LdapConcurrencyLimiter limiter, LdapDeadline deadline) throws LdapConnectorException {
+        if (deadline && deadline.remainingMillis < limiter.maxWaitMillis) {
+            if (!limiter.acquire(Math.max(0L, deadline.remainingMillis))) {
+                throw new LdapDeadlineExceededException("No concurrency slot was free within the deadline of ${deadline.timeoutMillis} ms")
+            }
+        } else if (!limiter.acquire()) {
+            throw concurrencyLimitExceeded(limiter)
+        }
+    }
+
+    // runs an operation in an acquired slot of the limiter and releases it
+    private <T> T runInConcurrencySlot(LdapConcurrencyLimiter limiter, Closure<T> operation) {
+        LdapRetryPolicy policy = retryPolicy ?: NO_RETRY_POLICY
+        long start = System.nanoTime()
+        boolean isOverloaded = false
+        holdingConcurrencySlot.set(true)
+        try {
+            return operation()
+        }
+        catch (Throwable t) {
+            isOverloaded = policy.isRetryable(t)
+            throw t
+        }
+        finally {
+            holdingConcurrencySlot.remove()
+            limiter.release(System.nanoTime() - start, isOverloaded)
+        }
+    }
+
+    private static LdapConcurrencyLimitExceededException concurrencyLimitExceeded(LdapConcurrencyLimiter limiter) {
+        return new LdapConcurrencyLimitExceededException("The concurrency limit of ${limiter.limit} operations was reached for longer than ${limiter.maxWaitMillis} ms")
+    }
+
+    /**
+     * @return The pool of daemon threads the async operations run on,
+     *         sized by the asyncThreads property.  Its queue is ordered by
+     *         priority, so only {@link AsyncTask}s may be executed on it.
+     * @throws LdapConnectorException If the connector is stopped
+     */
+    protected synchronized ExecutorService getAsyncExecutor() throws LdapConnectorException {
+        if (stopped) {
+            throw new LdapConnectorException("The connector is stopped")
+        }
+        if (!asyncExecutor) {
+            int threadNumber = 0
+            int threads = Math.max(1, asyncThreads)
+            this.asyncExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), { Runnable r ->
+                Thread t = new Thread(r, "LDAP Connector Async ${++threadNumber}")
+                t.daemon = true
+                return t
+            } as ThreadFactory)
+            this.asyncPermits = new Semaphore(Math.max(1, maxAsyncInFlight))
+        }
+        return asyncExecutor
+    }
+
+    /**
+     * An operation queued on the async executor, ordered by its priority
+     * and then by the order it was submitted in.
+     */
+    protected static class AsyncTask implements Runnable, Comparable<AsyncTask> {
+        final LdapPriority priority
+        final long sequence
+        private final Runnable task
+
+        AsyncTask(LdapPriority priority, long sequence, Runnable task) {
+            this.priority = priority
+            this.sequence = sequence
+            this.task = task
+        }
+
+        @Override
+        void run() {
+            task.run()
+        }
+
+        @Override
+        int compareTo(AsyncTask other) {
+            int byPriority = priority <=> other.priority
+            return byPriority ?: Long.compare(sequence, other.sequence)
+        }
+    }
+
+    /**
+     * Run an operation on the async executor with the defaultPriority.
+     * See {@link #submitAsync(LdapPriority, Closure)}.
+     */
+    protected <T> CompletableFuture<T> submitAsync(Closure<T> operation) {
+        return submitAsync(null, operation)
+    }
+
+    /**
+     * Run an operation on the async executor.  If maxAsyncInFlight
+     * operations are already submitted and not complete, the caller blocks
+     * until one completes, for at most maxAsyncWaitMillis.
+     *
+     * @param priority The priority the operation is queued with, or null
+     *        for the defaultPriority
+     * @param operation The operation
+     * @return A future completed with the result of the operation, or
+     *         completed exceptionally with the exception it threw
+     * @throws LdapConcurrencyLimitExceededException If no operation
+     *         completed within maxAsyncWaitMillis
+     * @throws LdapConnectorException If the connector is stopped
+     */
+    protected <T> CompletableFuture<T> submitAsync(LdapPriority priority, Closure<T> operation) {
+        Semaphore permits
+        ExecutorService executor
+        synchronized (this) {
+            executor = getAsyncExecutor()
+            permits = asyncPermits
+        }
+        if (!permits.tryAcquire(maxAsyncWaitMillis, TimeUnit.MILLISECONDS)) {
+            throw new LdapConcurrencyLimitExceededException("$maxAsyncInFlight async operations were in flight for longer than $maxAsyncWaitMillis ms")
+        }
+        CompletableFuture<T> future = new CompletableFuture<T>()
+        try {
+            executor.execute(new AsyncTask(priority ?: defaultPriority, asyncSequence.getAndIncrement(), {
+                try {
+                    future.complete(operation())
+                }
+                catch (Throwable t) {
+                    future.completeExceptionally(t)
+                }
+                finally {
+                    permits.release()
+                }
+            } as Runnable))
+            return future
+        }
+        catch (RejectedExecutionException e) {
+            permits.release()
+            throw new LdapConnectorException("The connector is stopped", e)
+        }
+    }
+
+    /**
+     * Read the attribute types from the directory's subschema entry.
+     *
+     * @return A schema codec for the directory's attribute types.
+     * @throws LdapConnectorException If the subschema could not be read.
+     */
+    LdapSchemaCodec loadSchemaCodec() throws LdapConnectorException {
+        DirContext ctx = null
+        try {
+            ctx = contextSource.readOnlyContext
+            // subschemaSubentry is an operational attribute of the root DSE
+            // and of every entry, so this also works when the context
+            // source has a base
+            Attribute subschemaSubentry = ctx.getAttributes("", ["subschemaSubentry"] as String[]).get("subschemaSubentry")
+            if (!subschemaSubentry?.size()) {
+                throw new LdapConnectorException("The directory does not publish a subschemaSubentry")
+            }
+            Attribute attributeTypes = ctx.getAttributes(subschemaSubentry.get().toString(), ["attributeTypes"] as String[]).get("attributeTypes")
+            if (!attributeTypes?.size()) {
+                throw new LdapConnectorException("The subschema entry ${subschemaSubentry.get()} has no attributeTypes")
+            }
+            LdapSchemaCodec codec = LdapSchemaCodec.fromAttributeTypeDescriptions(attributeTypes.all.collect { it.toString() })
+            log.debug("Loaded ${codec.size()} attribute types from the subschema entry ${subschemaSubentry.get()}")
+            return codec
+        }
+        catch (LdapConnectorException e) {
+            throw e
+        }
+        catch (Exception e) {
+            throw new LdapConnectorException("Unable to read the directory subschema", e)
+        }
+        finally {
+            ctx?.close()
+        }
+    }
+
+    /**
+     * In current thread, invoke the callback for an event message.  This
+     * invoked by the ldapConnector directly in synchronous callback mode
+     * and invoked by the callback queue monitor thread when running in
+     * asynchronous callback mode.
+     *
+     * @param eventMessage The event message to pass back to the callback.
+     */
+    protected void invokeCallback(LdapEventMessage eventMessage) {
+        switch (eventMessage.eventType) {
+            case LdapEventType.UPDATE_EVENT:
+                updateEventCallbacks?.each { it.receive((LdapUpdateEventMessage) eventMessage) }
+                break
+            case LdapEventType.INSERT_EVENT:
+                insertEventCallbacks?.each { it.receive((LdapInsertEventMessage) eventMessage) }
+                break
+            case LdapEventType.RENAME_EVENT:
+                renameEventCallbacks?.each { it.receive((LdapRenameEventMessage) eventMessage) }
+                break
+            case LdapEventType.DELETE_EVENT:
+                deleteEventCallbacks?.each { it.receive((LdapDeleteEventMessage) eventMessage) }
+                break
+            case LdapEventType.UNIQUE_IDENTIFIER_EVENT:
+                uniqueIdentifierEventCallbacks?.each { it.receive((LdapUniqueIdentifierEventMessage) eventMessage) }
+                break
+            case LdapEventType.REMOVE_ATTRIBUTES_EVENT:
+                removeAttributesEventCallbacks?.each { it.receive((LdapRemoveAttributesEventMessage) eventMessage) }
+                break
+            case LdapEventType.SET_ATTRIBUTE_EVENT:
+                setAttributeEventCallbacks?.each { it.receive((LdapSetAttributeEventMessage) eventMessage) }
+                break
+            case LdapEventType.PERSIST_COMPLETION_EVENT:
+                persistCompletionEventCallbacks?.each { it.receive((LdapPersistCompletionEventMessage) eventMessage) }
+                break
+            case LdapEventType.GROUP_MEMBERSHIP_EVENT:
+                groupMembershipEventCallbacks?.each { it.receive((LdapGroupMembershipEventMessage) eventMessage) }
+                break
+            default:
+                throw new RuntimeException("Unknown LdapEventType for event message: ${eventMessage.eventType}")
+        }
+    }
+
+    /**
+     * The callback queue monitor thread calls this to see if there are
+     * messages in the callback queue.  Blocks until a message appears in
+     * the queue or the timeout period has elapsed.
+     *
+     * @return The next message in the callback queue.  Returns null if
+     *         timeout period has elapsed.
+     * @throws InterruptedException if the thread is interrupted while
+     *         blocking
+     */
+    protected LdapEventMessage pollCallbackQueue(long timeout, TimeUnit unit) throws InterruptedException {
+        return callbackMessageQueue.poll(timeout, unit)
+    }
+
+    /**
+     * Deliver a callback message either synchronously or asynchronously
+     * depending on the isSynchronousCallback flag.
+     *
+     * @param eventMessage The event message to deliver.
+     */
+    void deliverCallbackMessage(LdapEventMessage eventMessage) {
+        RetryEventMessages retriedEventMessages = retryEventMessages.get()
+        if (retriedEventMessages != null && eventMessage && !retriedEventMessages.isDeliverable(eventMessage)) {
+            return
+        }
+        if (isSynchronousCallback) {
+            invokeCallback(eventMessage)
+        } else {
+            if (eventMessage) {
+                if (!callbackMessageQueue.offer(eventMessage)) {
+                    throw new LdapConnectorException("Could not add event message to the callback message queue")
+                }
+            } else {
+                log.warn("deliveryCallbackMessage was called with a null eventMessage")
+            }
+        }
+        if (retriedEventMessages != null && eventMessage) {
+            retriedEventMessages.delivered(eventMessage)
+        }
+    }
+
+    /**
+     * Search the directory for objects for a primary key if
+     * search-by-primary-key is enabled.  Search-by-primary-key is disabled
+     * if objectDef.getLdapQueryForPrimaryKey(pkey) returns null.
+     *
+     * @param reqCtx Context for the request
+     * @param pkey Primary key
+     * @return A list of objects found in the directory if search by primary
+     *         key is enabled, null otherwise.
+     */
+    List<DirContextAdapter> searchByPrimaryKey(LdapRequestContext reqCtx, String pkey) {
+        LdapQuery query = reqCtx.objectDef.getLdapQueryForPrimaryKey(pkey)
+        if (!query) {
+            return null
+        }
+        return hedgedRead(readRequestContext(reqCtx, [pkey], null)) { LdapRequestContext readReqCtx ->
+            searchObjectDefinitionBases(readReqCtx, query)
+        }
+    }
+
+    /**
+     * @param reqCtx Context for the request
+     * @param phase What the request is about to do, for the exception
+     *        message
+     * @throws LdapDeadlineExceededException If the deadline of the request
+     *         has passed
+     */
+    protected void checkDeadline(LdapRequestContext reqCtx, String phase) throws LdapDeadlineExceededException {
+        if (reqCtx.deadline?.expired) {
+            throw new LdapDeadlineExceededException("The deadline of ${reqCtx.deadline.timeoutMillis} ms passed before $phase")
+        }
+    }
+
+    /**
+     * @param reqCtx Context for a request with a deadline
+     * @return The time left before the deadline of the request, as a
+     *         search time limit of at least 1 ms
+     */
+    protected static int getDeadlineTimeLimit(LdapRequestContext reqCtx) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1L, reqCtx.deadline.remainingMillis))
+    }
+
+    /**
+     * Run a read that has the time limit of
+     * {@link #getDeadlineTimeLimit}.  A read that the directory stops at
+     * the time limit fails with {@link LdapDeadlineExceededException}, as
+     * the other phases of a request that run out of time do.
+     *
+     * @param reqCtx Context for a request with a deadline
+     * @param read The read
+     * @return The result of the read
+     * @throws LdapDeadlineExceededException If the time limit was exceeded
+     */
+    protected static <T> T withDeadlineTimeLimit(LdapRequestContext reqCtx, Closure<T> read) throws LdapDeadlineExceededException {
+        try {
+            return read()
+        }
+        catch (TimeLimitExceededException e) {
+            throw new LdapDeadlineExceededException("The read did not complete within the deadline of ${reqCtx.deadline.timeoutMillis} ms", e)
+        }
+    }
+
+    /**
+     * Run a write operation, retrying it according to the retryPolicy
+     * when it fails transiently and failing fast while the circuitBreaker
+     * is open.  Each attempt takes a slot of the concurrencyLimiter.
+     *
+     * @param operation The operation
+     * @return The result of the operation
+     * @throws LdapConnectorException If the operation fails for good, the
+     *         circuitBreaker is open or the concurrencyLimiter limit was
+     *         reached for too long
+     */
+    protected <T> T executeWithRetry(Closure<T> operation) throws LdapConnectorException {
+        return executeWithRetry(null, operation)
+    }
+
+    /**
+     * Run an operation once the priorityScheduler, if there is one, admits
+     * it.
+     *
+     * @param priority The priority of the operation, or null for the
+     *        defaultPriority
+     * @param deadline If set, the operation waits to be admitted no longer
+     *        than the deadline
+     * @param operation The operation
+     * @return The result of the operation
+     * @throws LdapDeadlineExceededException If the operation was not
+     *         admitted before the deadline
+     */
+    protected <T> T executeWithPriority(LdapPriority priority, LdapDeadline deadline, Closure<T> operation) throws LdapConnectorException {
+        LdapPriorityScheduler scheduler = priorityScheduler
+        if (!scheduler) {
+            return operation()
+        }
+        LdapPriority lane = priority ?: defaultPriority
+        if (deadline) {
+            if (!scheduler.acquire(lane, deadline.remainingMillis)) {
+                throw new LdapDeadlineExceededException("The $lane request was not admitted within the deadline of ${deadline.timeoutMillis} ms")
+            }
+        } else {
+            scheduler.acquire(lane)
+        }
+        try {
+            return operation()
+        }
+        finally {
+            scheduler.release(lane)
+        }
+    }
+
+    /**
+     * {@link #executeWithRetry(Closure)} with retries that stop at a
+     * deadline.
+     * <p>
+     * When the operation can be retried, the messages of the changes it
+     * makes are delivered as they are made, and a retry doesn't deliver a
+     * change of the same kind to the same entry for the same eventId
+     * again, so each change is reported once.  Its completion and failure
+     * messages are held until it succeeds or fails for good, and those of
+     * an attempt that is retried are dropped, because the next attempt
+     * delivers its own.
+     *
+     * @param deadline The deadline, or null for none
+     * @param operation The operation
+     * @return The result of the operation
+     */
+    protected <T> T executeWithRetry(LdapDeadline deadline, Closure<T> operation) throws LdapConnectorException {
+        LdapRetryPolicy policy = retryPolicy ?: NO_RETRY_POLICY
+        RetryEventMessages eventMessages = retryEventMessages.get()
+        boolean isHoldingEventMessages = (eventMessages == null && policy.maxAttempts > 1)
+        if (isHoldingEventMessages) {
+            eventMessages = new RetryEventMessages()
+            retryEventMessages.set(eventMessages)
+        }
+        try {
+            return doExecuteWithRetry(policy, deadline, eventMessages, operation)
+        }
+        finally {
+            if (isHoldingEventMessages) {
+                retryEventMessages.remove()
+                eventMessages.held.each { deliverCallbackMessage(it) }
+            }
+        }
+    }
+
+    private <T> T doExecuteWithRetry(LdapRetryPolicy policy, LdapDeadline deadline, RetryEventMessages eventMessages, Closure<T> operation) throws LdapConnectorException {
+        LdapCircuitBreaker breaker = circuitBreaker
+        // a thread that already holds a slot, such as a worker of a bulk
+        // operation, makes its attempts in that slot
+        LdapConcurrencyLimiter limiter = (holdingConcurrencySlot.get() ? null : concurrencyLimiter)
+        int attempt = 1
+        while (true) {
+            int firstHeldEventMessage = (eventMessages != null ? eventMessages.held.size() : 0)
+            if (limiter) {
+                acquireConcurrencySlot(limiter, deadline)
+            }
+            long start = System.nanoTime()
+            if (breaker && !breaker.tryAcquire()) {
+                limiter?.abandon()
+                throw new LdapCircuitOpenException("The circuit breaker of ${breaker.target} is open")
+            }
+            Boolean wasHoldingConcurrencySlot = holdingConcurrencySlot.get()
+            if (limiter) {
+                holdingConcurrencySlot.set(true)
+            }
+            try {
+                T result = operation()
+                limiter?.release(System.nanoTime() - start, false)
+                breaker?.recordSuccess()
+                return result
+            }
+            catch (Throwable t) {
+                // a request that ran out of time says nothing about the
+                // health of the directory
+                boolean isDeadlineExceeded = t instanceof LdapDeadlineExceededException
+                boolean isTransient = !isDeadlineExceeded && policy.isRetryable(t)
+                limiter?.release(System.nanoTime() - start, isTransient)
+                if (breaker) {
+                    if (isDeadlineExceeded) {
+                        breaker.recordAbandoned()
+                    } else if (isTransient) {
+                        breaker.recordFailure()
+                    } else {
+                        // the directory answered
+                        breaker.recordSuccess()
+                    }
+                }
+                if (!isTransient || attempt >= policy.maxAttempts) {
+                    throw t
+                }
+                long backoffMillis = policy.getBackoffMillis(attempt)
+                if (deadline && backoffMillis >= deadline.remainingMillis) {
+                    throw new LdapDeadlineExceededException("No time is left within the deadline of ${deadline.timeoutMillis} ms to retry", t)
+                }
+                eventMessages?.retry(firstHeldEventMessage)
+                log.debug("Attempt $attempt failed transiently, retrying in $backoffMillis ms", t)
+                Thread.sleep(backoffMillis)
+                attempt++
+            }
+            finally {
+                holdingConcurrencySlot.set(wasHoldingConcurrencySlot)
+            }
+        }
+    }
+
+    /**
+     * Run an attempt of an operation on a caller's request context.  A
+     * retry of an operation whose reqCtx has a single connection is run on
+     * a new single connection instead, because the failure that is being
+     * retried may have been the loss of that connection.  The new
+     * connection is closed when the attempt is done.
+     *
+     * @param reqCtx The caller's request context
+     * @param isRetry true if the attempt is a retry
+     * @param operation Runs the attempt with the request context it is
+     *        passed
+     * @return The result of the attempt
+     */
+    protected <T> T withRetryRequestContext(LdapRequestContext reqCtx, boolean isRetry, Closure<T> operation) {
+        if (!isRetry || !(reqCtx.ldapTemplate.contextSource instanceof SingleContextSource)) {
+            return operation(reqCtx)
+        }
+        LdapTemplate retryLdapTemplate = getSingleContextLdapTemplate()
+        try {
+            return operation(reqCtx.withLdapTemplate(retryLdapTemplate))
+        }
+        finally {
+            ((SingleContextSource) retryLdapTemplate.contextSource).destroy()
+        }
+    }
+
+    /**
+     * Run a read with the readHedger, if there is one.  The read is run
+     * with readReqCtx, and if it is slow, again with the request context
+     * of {@link #hedgeRequestContext}.  The read that loses is abandoned.
+     * <p>
+     * Without a readHedger, or when the ldapTemplate of readReqCtx has a
+     * single connection, the read runs inline on the calling thread with
+     * readReqCtx and is not hedged.  The single connection of a request
+     * can't be shared with a read on another thread, and reading on
+     * another connection instead would take an extra connection for every
+     * read of the request.
+     *
+     * @param readReqCtx The request context to read with
+     * @param read Reads with the request context it is passed
+     * @return The result of the read that completed first
+     */
+    protected <T> T hedgedRead(LdapRequestContext readReqCtx, Closure<T> read) {
+        LdapReadHedger hedger = readHedger
+        if (!hedger || readReqCtx.ldapTemplate.contextSource instanceof SingleContextSource) {
+            return read(readReqCtx)
+        }
+        LdapRequestContext hedgeReqCtx = hedgeRequestContext(readReqCtx)
+        return hedger.read({ read(readReqCtx) } as Callable<T>, { read(hedgeReqCtx) } as Callable<T>)
+    }
+
+    /**
+     * The request context a read with readReqCtx is hedged with: another
+     * read replica if readReqCtx reads from a replica and there is
+     * another, and a new connection from contextSource otherwise.  Reads
+     * from contextSource are never hedged to a replica, which could miss
+     * recent writes.
+     */
+    protected LdapRequestContext hedgeRequestContext(LdapRequestContext readReqCtx) {
+        List<LdapTemplate> templates = readLdapTemplates
+        LdapTemplate hedgeLdapTemplate
+        if (templates.size() > 1 && templates.any { it.is(readReqCtx.ldapTemplate) }) {
+            hedgeLdapTemplate = templates.get(Math.floorMod(nextReadLdapTemplate.getAndIncrement(), templates.size()))
+            if (hedgeLdapTemplate.is(readReqCtx.ldapTemplate)) {
+                hedgeLdapTemplate = templates.get(Math.floorMod(templates.indexOf(hedgeLdapTemplate) + 1, templates.size()))
+            }
+        } else {
+            hedgeLdapTemplate = new LdapTemplate(contextSource)
+        }
+        return readReqCtx.withLdapTemplate(hedgeLdapTemplate)
+    }
+
+    /**
+     * Route a query of the object definition to the object definition's
+     * search bases and scope.  A query that sets its own base is not
+     * routed, and a query that sets its own scope keeps it.
+     *
+     * @param objectDef The object definition
+     * @param query The query, such as one returned by
+     *        objectDef.getLdapQueryForPrimaryKey()
+     * @return One query per search base
+     */
+    List<LdapQuery> routeQuery(LdapObjectDefinition objectDef, LdapQuery query) {
+        SearchScope scope = query.searchScope() ?: objectDef.searchScope
+        List<String> searchBases = objectDef.searchBases
+        if ((query.base() && !query.base().isEmpty()) || !searchBases) {
+            return [query.searchScope() || !scope ? query : rebaseQuery(query, query.base(), scope)]
+        }
+        return searchBases.collect { String searchBase ->
+            rebaseQuery(query, buildDnName(searchBase), scope)
+        }
+    }
+
+    private static LdapQuery rebaseQuery(LdapQuery query, Name base, SearchScope scope, Integer timeLimit = query.timeLimit()) {
+        LdapQueryBuilder queryBuilder = LdapQueryBuilder.query()
+        if (base && !base.isEmpty()) {
+            queryBuilder.base(base)
+        }
+        if (scope) {
+            queryBuilder.searchScope(scope)
+        }
+        if (query.attributes()) {
+            queryBuilder.attributes(query.attributes())
+        }
+        if (query.countLimit() != null) {
+            queryBuilder.countLimit(query.countLimit())
+        }
+        if (timeLimit != null) {
+            queryBuilder.timeLimit(timeLimit)
+        }
+        return queryBuilder.filter(query.filter())
+    }
+
+    /**
+     * Search with a query of the object definition in each of the object
+     * definition's search bases.  When there are several bases, they are
+     * searched in parallel with {@link #submitParallel}, each with its own
+     * connection from the connector's contextSource.
+     *
+     * @param reqCtx Context for the request
+     * @param query The query, which is routed with {@link #routeQuery}
+     * @return The entries found in all the bases
+     */
+    protected List<DirContextAdapter> searchObjectDefinitionBases(LdapRequestContext reqCtx, LdapQuery query) throws LdapConnectorException {
+        List<LdapQuery> queries = routeQuery(reqCtx.objectDef, query)
+        if (reqCtx.deadline) {
+            checkDeadline(reqCtx, "searching")
+            int remainingMillis = getDeadlineTimeLimit(reqCtx)
+            queries = queries.collect { LdapQuery baseQuery ->
+                rebaseQuery(baseQuery, baseQuery.base(), baseQuery.searchScope(), Math.min(remainingMillis, baseQuery.timeLimit() ?: Integer.MAX_VALUE))
+            }
+        }
+        Closure<List<DirContextAdapter>> search = { LdapTemplate searchLdapTemplate, LdapQuery baseQuery ->
+            if (!reqCtx.deadline) {
+                return searchLdapTemplate.search(baseQuery, toDirContextAdapterContextMapper)
+            }
+            return withDeadlineTimeLimit(reqCtx) { searchLdapTemplate.search(baseQuery, toDirContextAdapterContextMapper) }
+        }
+        if (queries.size() == 1) {
+            return search(reqCtx.ldapTemplate, queries.first())
+        }
+        LdapTemplate parallelLdapTemplate = parallelRequestContext(reqCtx).ldapTemplate
+        List<Future<List<DirContextAdapter>>> futures = submitParallel(queries.collect { LdapQuery baseQuery ->
+            return { search(parallelLdapTemplate, baseQuery) } as Closure<List<DirContextAdapter>>
+        }, reqCtx.deadline)
+        List<DirContextAdapter> results = []
+        futures.each { Future<List<DirContextAdapter>> future ->
+            try {
+                results.addAll(future.get())
+            }
+            catch (java.util.concurrent.ExecutionException e) {
+                futures*.cancel(true)
+                throw (e.cause instanceof LdapConnectorException || e.cause instanceof RuntimeException ? e.cause : new LdapConnectorException(e.cause))
+            }
+        }
+        return results
+    }
+
+    /**
+     * Search the directory for the objects of many primary keys.  The
+     * primary keys are grouped into chunks of chunkSize and each chunk is
+     * searched with one search that ORs the filters returned by
+     * objectDef.getLdapQueryForPrimaryKey(pkey), so values are escaped as
+     * they are for {@link #searchByPrimaryKey}.  Up to parallelism chunks
+     * are searched concurrently with {@link #submitParallel}, each with its
+     * own connection from the connector's contextSource.
+     * <p>
+     * Results are passed to the resultConsumer on the calling thread, one
+     * call per distinct primary key in the order of the chunks, with an
+     * empty list for primary keys that weren't found.
+     *
+     * @param reqCtx Context for the request
+     * @param pkeys Primary keys
+     * @param attributes The attributes to return for each object, or null
+     *        for all attributes except operational attributes.  The primary
+     *        key attribute is always returned.
+     * @param resultConsumer Called with each primary key and the objects
+     *        found for it
+     * @param chunkSize The maximum number of primary keys per search
+     * @throws LdapConnectorException If search-by-primary-key is disabled
+     *         or a search fails
+     */
+    void searchByPrimaryKeys(
+            LdapRequestContext reqCtx,
+            Collection<String> pkeys,
+            String[] attributes,
+            BiConsumer<String, List<DirContextAdapter>> resultConsumer,
+            int chunkSize = 100
+    ) throws LdapConnectorException {
+        String pkeyAttributeName = reqCtx.objectDef.primaryKeyAttributeName
+        String[] searchAttributes = attributes
+        if (attributes && !attributes.any { it.equalsIgnoreCase(pkeyAttributeName) }) {
+            searchAttributes = (attributes.toList() + pkeyAttributeName) as String[]
+        }
+        // Each concurrent search uses its own connection
+        LdapRequestContext concurrentReqCtx = reqCtx.withLdapTemplate(new LdapTemplate(contextSource))
+        List<List<String>> chunks = new LinkedHashSet<String>(pkeys).collate(Math.max(1, chunkSize))
+        // At most parallelism chunks are in flight, so that results are
+        // held in memory for at most that many chunks
+        chunks.collate(Math.max(1, parallelism)).each { List<List<String>> concurrentChunks ->
+            List<Future<Map<String, List<DirContextAdapter>>>> chunkFutures = submitParallel(concurrentChunks.collect { List<String> chunk ->
+                return { searchByPrimaryKeyBatch(concurrentReqCtx, chunk, searchAttributes) } as Closure<Map<String, List<DirContextAdapter>>>
+            }, reqCtx.deadline)
+            Map<List<String>, Future<Map<String, List<DirContextAdapter>>>> futures = [concurrentChunks, chunkFutures].transpose().collectEntries()
+            futures.each { List<String> chunk, Future<Map<String, List<DirContextAdapter>>> future ->
+                Map<String, List<DirContextAdapter>> entriesByPkey
+                try {
+                    entriesByPkey = future.get()
+                }
+                catch (java.util.concurrent.ExecutionException e) {
+                    futures.values()*.cancel(true)
+                    throw (e.cause instanceof LdapConnectorException ? (LdapConnectorException) e.cause : new LdapConnectorException(e.cause))
+                }
+                chunk.each { String pkey ->
+                    resultConsumer.accept(pkey, entriesByPkey[pkey.toLowerCase()] ?: [])
+                }
+            }
+        }
+    }
+
+    /**
+     * Search the directory for an object by its DN.
+     *
+     * @param reqCtx Context for the request
+     * @param dn Distinguished name
+     * @param attributes Optionally, a list of attributes to return for each
+     *        object.  If null, returns all attributes except operational
+     *        attributes.  If operational attributes are desired, they have
+     *        to be specified.
+     * @return The found directory object or null if it was not found
+     */
+    DirContextAdapter lookup(LdapRequestContext reqCtx, Name dn, String[] attributes = null) {
+        return hedgedRead(reqCtx) { LdapRequestContext readReqCtx ->
+            if (readReqCtx.deadline) {
+                // a lookup can't carry a time limit, but a search of the
+                // entry itself can
+                checkDeadline(readReqCtx, "looking up $dn")
+                LdapQueryBuilder queryBuilder = LdapQueryBuilder.query()
+                        .base(dn)
+                        .searchScope(SearchScope.OBJECT)
+                        .timeLimit(getDeadlineTimeLimit(readReqCtx))
+                if (attributes) {
+                    queryBuilder.attributes(attributes)
+                }
+                return withDeadlineTimeLimit(readReqCtx) {
+                    readReqCtx.ldapTemplate.searchForObject(queryBuilder.where("objectClass").isPresent(), toDirContextAdapterContextMapper)
+                }
+            } else if (!attributes) {
+                return (DirContextAdapter) readReqCtx.ldapTemplate.lookup(dn)
+            } else {
+                return (DirContextAdapter) readReqCtx.ldapTemplate.lookup(dn, attributes, toDirContextAdapterContextMapper)
+            }
+        }
+    }
+
+    /**
+     * lookup() run on the connector's async executor.
+     *
+     * @return A future completed with the found directory object, or null
+     *         if it was not found
+     */
+    CompletableFuture<DirContextAdapter> lookupAsync(LdapRequestContext reqCtx, Name dn, String[] attributes = null) {
+        return submitAsync {
+            lookup(reqCtx, dn, attributes)
+        }
+    }
+
+    /**
+     * searchByPrimaryKey() run on the connector's async executor.
+     *
+     * @return A future completed with the found directory objects
+     */
+    CompletableFuture<List<DirContextAdapter>> searchByPrimaryKeyAsync(LdapRequestContext reqCtx, String pkey) {
+        return submitAsync {
+            searchByPrimaryKey(reqCtx, pkey)
+        }
+    }
+
+    /**
+     * lookupByGloballyUniqueIdentifier() run on the connector's async
+     * executor.
+     *
+     * @return A future completed with the found directory object, or null
+     *         if it was not found
+     */
+    CompletableFuture<DirContextAdapter> lookupByGloballyUniqueIdentifierAsync(
+            LdapRequestContext reqCtx,
+            String pkey,
+            Object uniqueIdentifier
+    ) {
+        return submitAsync {
+            lookupByGloballyUniqueIdentifier(reqCtx, pkey, uniqueIdentifier)
+        }
+    }
+
+    /**
+     * Search the directory for an object by its globally unique identifier.
+     * If objectDef.getGloballyUniqueIdentifierBoundDn() returns a DN, that
+     * DN is read instead of searching.
+     *
+     * @param reqCtx Context for the request
+     * @param pkey When searching by globally unique identifier, the object
+     *        must also match this expected primary key.
+     * @param uniqueIdentifier Globally unique identifier
+     * @return The found directory object or null if it was not found
+     */
+    DirContextAdapter lookupByGloballyUniqueIdentifier(
+            LdapRequestContext reqCtx,
+            String pkey,
+            Object uniqueIdentifier
+    ) {
+        // the entry of a recently written primary key is read from
+        // contextSource, such as right after it was inserted
+        return hedgedRead(readRequestContext(reqCtx, [pkey], null)) { LdapRequestContext readReqCtx ->
+            lookupByGloballyUniqueIdentifierWith(readReqCtx, pkey, uniqueIdentifier)
+        }
+    }
+
+    private DirContextAdapter lookupByGloballyUniqueIdentifierWith(LdapRequestContext readReqCtx, String pkey, Object uniqueIdentifier) {
+        String boundDn = readReqCtx.objectDef.getGloballyUniqueIdentifierBoundDn(uniqueIdentifier)
+        if (boundDn) {
+            DirContextAdapter entry = lookupByBoundDn(readReqCtx, boundDn)
+            // same semantics as searchForObject() with the primary key in
+            // the filter
+            if (!entry || !entry.getStringAttributes(readReqCtx.objectDef.primaryKeyAttributeName)?.any { it.equalsIgnoreCase(pkey) }) {
+                throw new EmptyResultDataAccessException(1)
+            }
+            return entry
+        }
+        LdapQuery query = readReqCtx.objectDef.getLdapQueryForGloballyUniqueIdentifier(pkey, uniqueIdentifier)
+        List<LdapQuery> queries = routeQuery(readReqCtx.objectDef, query)
+        if (queries.size() == 1) {
+            return readReqCtx.ldapTemplate.searchForObject(queries.first(), toDirContextAdapterContextMapper)
+        }
+        // same semantics as searchForObject() across all the bases
+        List<DirContextAdapter> results = searchObjectDefinitionBases(readReqCtx, query)
+        if (!results) {
+            throw new EmptyResultDataAccessException(1)
+        }
+        if (results.size() > 1) {
+            throw new IncorrectResultSizeDataAccessException(1, results.size())
+        }
+        return results.first()
+    }
+
+    /**
+     * Read an entry by a DN the server resolves to the entry, such as the
+     * <code>&lt;GUID=...&gt;</code> DN syntax of Active Directory.  The
+     * DN of the returned entry is taken from its distinguishedName
+     * attribute and is relative to the base of the context source, like
+     * the DNs of search results.
+     *
+     * @param reqCtx Context for the request
+     * @param boundDn The DN to read
+     * @return The entry, or null if the server has no entry for the DN
+     * @throws LdapConnectorException If the server doesn't return the
+     *         distinguishedName attribute
+     */
+    protected DirContextAdapter lookupByBoundDn(LdapRequestContext reqCtx, String boundDn) throws LdapConnectorException {
+        return reqCtx.ldapTemplate.executeReadOnly({ DirContext ctx ->
+            Attributes attributes
+            try {
+                attributes = ctx.getAttributes(boundDn)
+            }
+            catch (javax.naming.NameNotFoundException ignored) {
+                return null
+            }
+            String distinguishedName = attributes.get("distinguishedName")?.get()?.toString()
+            if (!distinguishedName) {
+                throw new LdapConnectorException("The entry of $boundDn does not have a distinguishedName attribute")
+            }
+            LdapName base = LdapUtils.newLdapName(ctx.nameInNamespace)
+            LdapName fullDn = LdapUtils.newLdapName(distinguishedName)
+            Name dn = (base.isEmpty() ? fullDn : LdapUtils.removeFirst(fullDn, base))
+            return new DirContextAdapter(attributes, dn, base)
+        } as ContextExecutor<DirContextAdapter>)
+    }
+
+    /**
+     * Delete an object in the directory matching the DN.  The primary key
+     * (pkey) parameter is only passed in to pass back to the delete
+     * callback and is otherwise unused in determining which object to
+     * delete.
+     *
+     * @param reqCtx Context for the request
+     * @param pkey The primary key.  The parameter is only passed in to pass
+     *        back to the delete callback and is otherwise unused in
+     *        determining which object to delete.
+     * @param dn The distinguished name of the object to delete
+     * @throws LdapConnectorException If an error occurs
+     */
+    void delete(
+            LdapRequestContext reqCtx,
+            String pkey,
+            Name dn
+    ) throws LdapConnectorException {
+        Throwable exception
+        try {
+            // Find all subordinates with a single subtree search.  No
+            // attributes are needed, only the DNs.
+            LdapQuery subordinateQuery = LdapQueryBuilder.query()
+                    .base(dn)
+                    .searchScope(SearchScope.SUBTREE)
+                    .attributes("1.1")
+                    .where("objectClass").isPresent()
+            List<Name> subordinateDns = (List<Name>) reqCtx.ldapTemplate.search(
+                    subordinateQuery,
+                    toDirContextAdapterContextMapper
+            ).collect { DirContextAdapter foundSubordinate -> foundSubordinate.dn }.findAll { Name subordinateDn ->
+                !dnEquals(reqCtx.objectDef, subordinateDn, dn)
+            }
+
+            recordWrite(reqCtx.objectDef, pkey, dn)
+            if (!subordinateDns) {
+                reqCtx.ldapTemplate.unbind(dn)
+            } else if (isTreeDeleteControlEnabled && getServerCapabilities().supportsControl(TreeDeleteControl.OID)) {
+                treeDelete(reqCtx, dn)
+                subordinateDns.sort { -it.size() }.each { Name subordinateDn ->
+                    deliverDeleteEventMessage(reqCtx, pkey, subordinateDn, null)
+                }
+            } else {
+                deleteSubordinates(reqCtx, pkey, subordinateDns)
+                // now that the subordinates are deleted, delete the DN
+                reqCtx.ldapTemplate.unbind(dn)
+            }
         }
         catch (Throwable t) {
             exception = t
             throw new LdapConnectorException(t)
         }
         finally {
-            deliverCallbackMessage(new LdapDeleteEventMessage(
-                    success: exception == null,
-                    eventId: reqCtx.eventId,
-                    objectDef: reqCtx.objectDef,
-                    context: reqCtx.context,
-                    pkey: pkey,
-                    dn: dn,
-                    exception: exception
-            ))
+            deliverDeleteEventMessage(reqCtx, pkey, dn, exception)
+        }
+    }
+
+    /**
+     * Delete an entry and its subordinates with the Tree Delete control.
+     */
+    @SuppressWarnings("GrMethodMayBeStatic")
+    protected void treeDelete(LdapRequestContext reqCtx, Name dn) {
+        reqCtx.ldapTemplate.executeReadWrite(new ContextExecutor<Object>() {
+            @Override
+            Object executeWithContext(DirContext ctx) throws javax.naming.NamingException {
+                withRequestControl((LdapContext) ctx, new TreeDeleteControl()) {
+                    ctx.unbind(dn)
+                }
+                return null
+            }
+        })
+    }
+
+    /**
+     * Delete subordinate entries from the bottom up.  The entries of each
+     * level are leaves once the level below has been deleted, so the
+     * entries of a level are deleted in parallel.  A delete event is
+     * delivered for each subordinate.
+     *
+     * @throws LdapConnectorException If a subordinate could not be deleted,
+     *         after the rest of its level has been attempted.
+     */
+    protected void deleteSubordinates(LdapRequestContext reqCtx, String pkey, List<Name> subordinateDns) throws LdapConnectorException {
+        Map<Integer, List<Name>> levels = subordinateDns.groupBy { Name subordinateDn -> subordinateDn.size() }
+        LdapRequestContext parallelReqCtx = parallelRequestContext(reqCtx)
+        levels.keySet().sort { -it }.each { Integer level ->
+            List<Name> levelDns = levels[level]
+            Throwable levelException = null
+            if (levelDns.size() == 1 || parallelism <= 1) {
+                levelDns.each { Name subordinateDn ->
+                    Throwable exception = null
+                    try {
+                        reqCtx.ldapTemplate.unbind(subordinateDn)
+                    }
+                    catch (Throwable t) {
+                        exception = t
+                        levelException = levelException ?: t
+                    }
+                    deliverDeleteEventMessage(reqCtx, pkey, subordinateDn, exception)
+                }
+            } else {
+                List<Future<Object>> levelFutures = submitParallel(levelDns.collect { Name subordinateDn ->
+                    return { parallelReqCtx.ldapTemplate.unbind(subordinateDn) } as Closure<Object>
+                }, reqCtx.deadline)
+                Map<Name, Future<Object>> futures = [levelDns, levelFutures].transpose().collectEntries()
+                futures.each { Name subordinateDn, Future<Object> future ->
+                    Throwable exception = null
+                    try {
+                        future.get()
+                    }
+                    catch (java.util.concurrent.ExecutionException e) {
+                        exception = e.cause
+                        levelException = levelException ?: e.cause
+                    }
+                    deliverDeleteEventMessage(reqCtx, pkey, subordinateDn, exception)
+                }
+            }
+            if (levelException) {
+                throw new LdapConnectorException(levelException)
+            }
         }
     }
 
+    private void deliverDeleteEventMessage(LdapRequestContext reqCtx, String pkey, Name dn, Throwable exception) {
+        deliverCallbackMessage(new LdapDeleteEventMessage(
+                success: exception == null,
+                eventId: reqCtx.eventId,
+                objectDef: reqCtx.objectDef,
+                context: reqCtx.context,
+                pkey: pkey,
+                dn: dn,
+                exception: exception
+        ))
+    }
+
     /**
      * Rename an object in the directory, which means changing its
      * distinguished name.
@@ -501,6 +1889,8 @@ class LdapConnector implements Connector {
         Throwable exception
         Object directoryUniqueIdentifier = null
         try {
+            recordWrite(reqCtx.objectDef, pkey, oldDn)
+            recordWrite(reqCtx.objectDef, null, newDn)
             reqCtx.ldapTemplate.rename(oldDn, newDn)
 
             if (reqCtx.objectDef.globallyUniqueIdentifierAttributeName && uniqueIdentifierEventCallbacks) {
@@ -603,27 +1993,61 @@ class LdapConnector implements Connector {
         Map<String, Object> convertedNewAttributeMap = null
         ModificationItem[] modificationItems = null
         try {
-            oldAttributeMap = toMapContextMapper.mapFromContext(existingEntry)
-            oldAttributeMap.remove("dn")
+            oldAttributeMap = mapExistingAttributes(existingEntry)
 
             convertedNewAttributeMap = convertCallerProvidedMap(newReplaceAttributeMap)
+
+            // Attributes the server returned only a range of values for
+            // (attr;range=low-high) are compared by streaming their values
+            // rather than by reading all of them into the entry.
+            List<ModificationItem> rangedModificationItems = []
+            Map<String, Object> diffedOldAttributeMap = oldAttributeMap
+            Map<String, Object> diffedNewAttributeMap = convertedNewAttributeMap
+            Map<String, Object> diffedNewReplaceAttributeMap = newReplaceAttributeMap
+            Set<String> rangedAttributeIds = oldAttributeMap.keySet().findAll { String id -> parseAttributeValueRange(id) != null } as Set<String>
+            if (rangedAttributeIds) {
+                Set<String> rangedAttributeNames = rangedAttributeIds.collect { String id -> id.substring(0, id.indexOf(';')).toLowerCase() } as Set<String>
+                Closure<Boolean> isRanged = { String name -> name.toLowerCase() in rangedAttributeNames }
+                rangedAttributeIds.each { String id ->
+                    String attributeName = id.substring(0, id.indexOf(';'))
+                    String newKey = convertedNewAttributeMap.keySet().find { String key -> key.equalsIgnoreCase(attributeName) }
+                    if (newKey != null && convertedNewAttributeMap[newKey] != null) {
+                        Object newValue = convertedNewAttributeMap[newKey]
+                        rangedModificationItems.addAll(diffRangedAttribute(reqCtx, existingEntry.dn, attributeName, newValue instanceof Collection ? (Collection) newValue : [newValue]))
+                    } else if (newKey != null || !reqCtx.objectDef.isKeepExistingAttributesWhenUpdating()) {
+                        // remove all values
+                        rangedModificationItems.add(new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute(attributeName)))
+                    }
+                }
+                diffedOldAttributeMap = oldAttributeMap.findAll { !rangedAttributeIds.contains(it.key) }
+                diffedNewAttributeMap = convertedNewAttributeMap.findAll { !isRanged(it.key) }
+                diffedNewReplaceAttributeMap = newReplaceAttributeMap.findAll { !isRanged(it.key) }
+            }
+
             Map<String, Object> attributesToKeepOrUpdate
             if (reqCtx.objectDef.isKeepExistingAttributesWhenUpdating()) {
-                attributesToKeepOrUpdate = new LinkedHashMap<String, Object>(oldAttributeMap)
-                attributesToKeepOrUpdate.putAll(convertedNewAttributeMap)
+                attributesToKeepOrUpdate = new LinkedHashMap<String, Object>(diffedOldAttributeMap)
+                attributesToKeepOrUpdate.putAll(diffedNewAttributeMap)
             } else {
-                attributesToKeepOrUpdate = convertedNewAttributeMap
+                attributesToKeepOrUpdate = diffedNewAttributeMap
             }
 
-            Map<String, Object> changedAttributes = attributesToKeepOrUpdate - oldAttributeMap
+            Map<String, Object> changedAttributes = attributesToKeepOrUpdate - diffedOldAttributeMap
+            if (schemaCodec) {
+                // Drop changes the directory would consider no-ops under
+                // the attribute's equality matching rule.
+                changedAttributes = changedAttributes.findAll { Map.Entry<String, Object> entry ->
+                    !diffedOldAttributeMap.containsKey(entry.key) || !schemaCodec.valuesEqual(entry.key, diffedOldAttributeMap[entry.key], entry.value)
+                }
+            }
 
             // Removing the attribute if keepExistingAttributes is false and
             // the attribute is not in the newAttributeMap or if the
             // attribute is explicitly set to null in the newAttributeMap.
             HashSet<String> attributeNamesToRemove = (
-                    (!reqCtx.objectDef.isKeepExistingAttributesWhenUpdating() ? oldAttributeMap.keySet() - attributesToKeepOrUpdate.keySet() : []) as HashSet<String>
+                    (!reqCtx.objectDef.isKeepExistingAttributesWhenUpdating() ? diffedOldAttributeMap.keySet() - attributesToKeepOrUpdate.keySet() : []) as HashSet<String>
             ) + (
-                    (newReplaceAttributeMap.findAll { it.value == null && oldAttributeMap.containsKey(it.key) }*.key) as HashSet<String>
+                    (diffedNewReplaceAttributeMap.findAll { it.value == null && diffedOldAttributeMap.containsKey(it.key) }*.key) as HashSet<String>
             )
 
             Collection<Attribute> attributesToRemove = existingEntry.attributes.all.findAll { Attribute attr ->
@@ -638,8 +2062,8 @@ class LdapConnector implements Connector {
 
             changedAttributes.each { Map.Entry<String, Object> entry ->
                 Collection toKeepOrUpdateCollection = (attributesToKeepOrUpdate[entry.key] instanceof Collection ? (Collection) attributesToKeepOrUpdate[entry.key] : [attributesToKeepOrUpdate[entry.key]])
-                if (oldAttributeMap[entry.key] instanceof Collection) {
-                    Collection attrsToRemove = ((Collection) oldAttributeMap[entry.key]) - toKeepOrUpdateCollection
+                if (diffedOldAttributeMap[entry.key] instanceof Collection) {
+                    Collection attrsToRemove = ((Collection) diffedOldAttributeMap[entry.key]) - toKeepOrUpdateCollection
 
                     // See if an attribute is being replaced with the same
                     // value, just a different case.  In these cases we need
@@ -647,7 +2071,13 @@ class LdapConnector implements Connector {
                     // than a REMOVE/ADD.  We force this by passing
                     // "orderMatters=true" to
                     // existingEntry.setAttributeValues().
-                    boolean hasADifferentCasedValue = attrsToRemove.any { it.toString().toLowerCase().trim() in toKeepOrUpdateCollection.collect { it.toString().toLowerCase().trim() } }
+                    boolean hasADifferentCasedValue
+                    if (schemaCodec) {
+                        Set normalizedToKeepOrUpdate = toKeepOrUpdateCollection.collect { schemaCodec.normalize(entry.key, it, true) } as Set
+                        hasADifferentCasedValue = attrsToRemove.any { schemaCodec.normalize(entry.key, it, true) in normalizedToKeepOrUpdate }
+                    } else {
+                        hasADifferentCasedValue = attrsToRemove.any { it.toString().toLowerCase().trim() in toKeepOrUpdateCollection.collect { it.toString().toLowerCase().trim() } }
+                    }
                     if (hasADifferentCasedValue) {
                         // REPLACE approach
                         existingEntry.setAttributeValues(entry.key, toKeepOrUpdateCollection.toArray(), true)
@@ -664,8 +2094,18 @@ class LdapConnector implements Connector {
             }
 
             modificationItems = existingEntry.modificationItems
+            if (rangedModificationItems) {
+                modificationItems = (((modificationItems ?: []) as List<ModificationItem>) + rangedModificationItems) as ModificationItem[]
+            }
             boolean isModified = modificationItems?.size()
-            reqCtx.ldapTemplate.modifyAttributes(existingEntry)
+            if (isModified) {
+                recordWrite(reqCtx.objectDef, pkey, existingEntry.dn)
+            }
+            if (rangedModificationItems) {
+                reqCtx.ldapTemplate.modifyAttributes(existingEntry.dn, modificationItems)
+            } else {
+                reqCtx.ldapTemplate.modifyAttributes(existingEntry)
+            }
 
             return isModified
         }
@@ -681,7 +2121,8 @@ class LdapConnector implements Connector {
                     context: reqCtx.context,
                     foundMethod: foundObjectMethod,
                     pkey: pkey,
-                    oldAttributes: oldAttributeMap,
+                    // the event may be delivered after the entry changes
+                    oldAttributes: (oldAttributeMap instanceof AttributesMapView ? ((AttributesMapView) oldAttributeMap).snapshot() : oldAttributeMap),
                     dn: existingEntry.dn,
                     newAttributes: convertedNewAttributeMap ?: newReplaceAttributeMap,
                     modificationItems: modificationItems,
@@ -690,6 +2131,24 @@ class LdapConnector implements Connector {
         }
     }
 
+    /**
+     * Map the attributes of an existing entry, without the dn
+     * pseudo-attribute.  When the toMapContextMapper returns an {@link
+     * AttributesMapView}, the attributes are not copied.
+     *
+     * @param existingEntry The existing directory entry
+     * @return A map of the entry's attributes
+     */
+    protected Map<String, Object> mapExistingAttributes(DirContextAdapter existingEntry) {
+        Map<String, Object> attributeMap = toMapContextMapper.mapFromContext(existingEntry)
+        if (attributeMap instanceof AttributesMapView) {
+            return ((AttributesMapView) attributeMap).withoutDn()
+        }
+        attributeMap = new LinkedHashMap<String, Object>(attributeMap)
+        attributeMap.remove("dn")
+        return attributeMap
+    }
+
     /**
      * Insert a new object into the directory.
      *
@@ -720,6 +2179,7 @@ class LdapConnector implements Connector {
             // word "bind" and "rebind" to mean "create" and "update." In
             // this context, it does not mean "authenticate (bind) to the
             // directory server.
+            recordWrite(reqCtx.objectDef, pkey, dn)
             reqCtx.ldapTemplate.bind(dn, null, buildAttributes(convertedNewAttributeMap))
 
             if (reqCtx.objectDef.globallyUniqueIdentifierAttributeName && uniqueIdentifierEventCallbacks) {
@@ -765,17 +2225,120 @@ class LdapConnector implements Connector {
         }
     }
 
+    /**
+     * The event messages of an operation executeWithRetry() is retrying.
+     * Messages of changes are delivered as they are made, except that a
+     * retry doesn't deliver a change an earlier attempt already delivered.
+     * Failure and completion messages are held, and those of an attempt
+     * that is retried are dropped because the next attempt delivers its
+     * own.
+     */
+    private static class RetryEventMessages {
+        final List<LdapEventMessage> held = []
+        final Set<List<Object>> deliveredKeys = new HashSet<List<Object>>()
+        final Set<List<Object>> attemptKeys = new HashSet<List<Object>>()
+
+        /**
+         * @return true if the message is to be delivered now
+         */
+        boolean isDeliverable(LdapEventMessage eventMessage) {
+            if (!eventMessage.success || eventMessage.eventType == LdapEventType.PERSIST_COMPLETION_EVENT) {
+                held.add(eventMessage)
+                return false
+            }
+            return !deliveredKeys.contains(getKey(eventMessage))
+        }
+
+        void delivered(LdapEventMessage eventMessage) {
+            attemptKeys.add(getKey(eventMessage))
+        }
+
+        /**
+         * Drop the held messages of an attempt that is retried.
+         *
+         * @param firstHeld The number of messages that were held when the
+         *        attempt started
+         */
+        void retry(int firstHeld) {
+            held.subList(firstHeld, held.size()).clear()
+            deliveredKeys.addAll(attemptKeys)
+            attemptKeys.clear()
+        }
+
+        // the change a message reports: its kind, eventId and entry
+        private static List<Object> getKey(LdapEventMessage eventMessage) {
+            if (eventMessage instanceof LdapGroupMembershipEventMessage) {
+                LdapGroupMembershipEventMessage m = (LdapGroupMembershipEventMessage) eventMessage
+                return [m.eventType, m.eventId, m.groupDn, m.memberDn, m.operation]
+            } else if (eventMessage instanceof LdapRenameEventMessage) {
+                LdapRenameEventMessage m = (LdapRenameEventMessage) eventMessage
+                return [m.eventType, m.eventId, m.oldDn, m.newDn]
+            } else if (eventMessage instanceof LdapUniqueIdentifierEventMessage) {
+                LdapUniqueIdentifierEventMessage m = (LdapUniqueIdentifierEventMessage) eventMessage
+                return [m.eventType, m.eventId, m.newDn]
+            }
+            return [eventMessage.eventType, eventMessage.eventId, eventMessage.hasProperty("dn") ? eventMessage.dn : null]
+        }
+    }
+
+    /**
+     * Run an operation whose event messages aren't those of the operation
+     * executeWithRetry() may be retrying on this thread, such as a flush of
+     * the groupMembershipCoalescer, so that its messages are delivered as
+     * they are made and never dropped by a retry.
+     *
+     * @param operation The operation
+     * @return The result of the operation
+     */
+    protected <T> T withoutRetryEventMessages(Closure<T> operation) {
+        RetryEventMessages retriedEventMessages = retryEventMessages.get()
+        retryEventMessages.remove()
+        try {
+            return operation()
+        }
+        finally {
+            if (retriedEventMessages != null) {
+                retryEventMessages.set(retriedEventMessages)
+            }
+        }
+    }
+
     static class MatchingEntryResult {
         DirContextAdapter entry
         FoundObjectMethod foundObjectMethod
         List<DirContextAdapter> searchResults
     }
 
+    /**
+     * Find the existing entry a persist request applies to with the
+     * entryMatchingStrategy.
+     *
+     * @param reqCtx Context for the request
+     * @param dn The requested DN, or null if not provided
+     * @param pkey The primary key
+     * @param uniqueIdentifier The globally unique identifier, or null if
+     *        not provided
+     * @return The result, with a null entry if no existing entry was found
+     */
     MatchingEntryResult findMatchingEntry(
             LdapRequestContext reqCtx,
             Name dn,
             String pkey,
             Object uniqueIdentifier
+    ) {
+        return entryMatchingStrategy.findMatchingEntry(this, reqCtx, dn, pkey, uniqueIdentifier)
+    }
+
+    /**
+     * Find the existing entry a persist request applies to by searching
+     * by primary key first, which finds all the entries of the primary
+     * key.  This is {@link LdapPrimaryKeyFirstEntryMatchingStrategy}.
+     */
+    MatchingEntryResult findMatchingEntryByPrimaryKeyFirst(
+            LdapRequestContext reqCtx,
+            Name dn,
+            String pkey,
+            Object uniqueIdentifier
     ) {
         MatchingEntryResult result = new MatchingEntryResult()
 
@@ -792,13 +2355,13 @@ class LdapConnector implements Connector {
         // See if records belonging to the pkey exist.
         // This will return null if objectDef.getLdapQueryForPrimaryKey()
         // returns null, indicating search-by-primary-key is disabled.
-        result.searchResults = searchByPrimaryKey(reqCtx, pkey)
+        result.searchResults = primaryKeySearchBatcher ? primaryKeySearchBatcher.search(reqCtx, pkey) : searchByPrimaryKey(reqCtx, pkey)
 
         if (!result.entry && dn) {
             // Find entries with matching dn.  searchResults only
             // contains entries with matching pkey.
             result.entry = result.searchResults?.find { DirContextAdapter entry ->
-                entry.dn == dn
+                canonicalDn(entry.dn) == canonicalDn(dn)
             }
             if (result.entry) {
                 result.foundObjectMethod = FoundObjectMethod.BY_DN_MATCHED_KEY
@@ -845,7 +2408,7 @@ class LdapConnector implements Connector {
         // DN may still exist but with a different primary key
         if (!result.entry && dn) {
             try {
-                result.entry = lookup(reqCtx, dn)
+                result.entry = lookup(readRequestContext(reqCtx, [pkey], dn), dn)
             }
             catch (NameNotFoundException ignored) {
                 // no-op
@@ -943,6 +2506,14 @@ class LdapConnector implements Connector {
      * attribute names in the directory schema, as when retrieved from the
      * directory via a search() or lookup().
      *
+     * <p/>
+     *
+     * If there is a groupMembershipCoalescer, group membership changes are
+     * deferred: they are queued and written after persist() returns, so the
+     * returned value doesn't reflect them, and a failed group modification
+     * doesn't throw to the caller.  Its outcome is only reported to the
+     * groupMembershipEventCallbacks.
+     *
      * @param eventId Optional eventId string that is passed to callbacks.
      * @param objectDef An {@link ObjectDefinition} which may contain
      *        configuration for the particular connector implementation in
@@ -972,87 +2543,297 @@ class LdapConnector implements Connector {
             Map<String, Object> attrMap,
             boolean isDelete
     ) throws LdapConnectorException {
-        LdapRequestContext reqCtx = new LdapRequestContext(singleContextLdapTemplate, eventId, (LdapObjectDefinition) objectDef, (LdapCallbackContext) context)
-        Throwable exception = null
-        try {
-            LinkedHashMap<String, Object> attrMapCopy = new LinkedHashMap<String, Object>(attrMap)
+        return executeWithPriority(null, null) {
+            executeWithRetry {
+                doPersist(eventId, (LdapObjectDefinition) objectDef, (LdapCallbackContext) context, attrMap, null, isDelete)
+            }
+        }
+    }
 
-            // (optional) globally unique identifier
-            String uniqueIdentifierAttrName = ((LdapObjectDefinition) objectDef).globallyUniqueIdentifierAttributeName
-            Object uniqueIdentifier = null
-            if (uniqueIdentifierAttrName) {
-                uniqueIdentifier = attrMapCopy[uniqueIdentifierAttrName]
-                // Remove the uniqueIdentifier from the object -- we're
-                // assuming this is an operational attribute that we can't
-                // set.
-                attrMapCopy.remove(uniqueIdentifierAttrName)
+    /**
+     * The map-based persist() with a deadline.  Searches and lookups are
+     * sent with a time limit of the time left, the deadline is checked
+     * before each phase of the persist and retries of transient failures
+     * stop at the deadline.  A deadline that passes is not counted as a
+     * failure by the circuitBreaker.
+     * <p>
+     * A write that has been sent is not aborted at the deadline, because
+     * LDAP has no time limit for writes and the request's connection can't
+     * be safely closed from another thread.  To bound how long a write can
+     * wait for a reply, set the <code>com.sun.jndi.ldap.read.timeout</code>
+     * JNDI property, in milliseconds, in the base environment of the
+     * contextSource.  A write that fails after the deadline fails the
+     * persist with a {@link LdapDeadlineExceededException}.
+     *
+     * @param eventId Optional eventId string that is passed to callbacks.
+     * @param objectDef The object definition.
+     * @param context Optional callback context.
+     * @param attrMap The attribute map of the object.  See the map-based
+     *        persist().
+     * @param isDelete If true, the object will be deleted.  See the
+     *        map-based persist().
+     * @param deadline The time by which the persist must be complete, or
+     *        null for no deadline
+     * @param priority (optional) The lane of the priorityScheduler the
+     *        persist is admitted in.  Defaults to the defaultPriority.
+     * @return true if an update actually occurred in the directory.
+     * @throws LdapDeadlineExceededException If the deadline passed
+     * @throws LdapConnectorException If another error occurs
+     */
+    boolean persist(
+            String eventId,
+            LdapObjectDefinition objectDef,
+            LdapCallbackContext context,
+            Map<String, Object> attrMap,
+            boolean isDelete,
+            LdapDeadline deadline,
+            LdapPriority priority = null
+    ) throws LdapConnectorException {
+        return executeWithPriority(priority, deadline) {
+            executeWithRetry(deadline) {
+                doPersist(eventId, objectDef, context, attrMap, null, isDelete, deadline)
             }
+        }
+    }
 
-            // primary key
-            String pkeyAttrName = ((LdapObjectDefinition) objectDef).primaryKeyAttributeName
-            String pkey = attrMapCopy[pkeyAttrName]
-            if (!isDelete && !pkey) {
-                throw new LdapConnectorException("Directory object is missing a required value for primary key $pkeyAttrName")
+    /**
+     * Insert, update or delete (persist) an object in the directory using
+     * a typed request rather than an attribute map.  This behaves the same
+     * as the map-based persist() but the caller-provided map is not copied
+     * and scanned for the dn, dynamic, globally unique identifier and group
+     * directive meta-attributes because the request already carries them
+     * as separate fields.
+     *
+     * @param eventId Optional eventId string that is passed to callbacks.
+     * @param objectDef The object definition.
+     * @param context Optional callback context.
+     * @param request The typed persist request.  The request is not
+     *        modified and may be reused.
+     * @param isDelete If true, the object matching the distinguished name
+     *        will be deleted.  See the map-based persist().
+     * @param deadline (optional) The time by which the persist must be
+     *        complete.  See the map-based persist() with a deadline.
+     * @param priority (optional) The lane of the priorityScheduler the
+     *        persist is admitted in.  Defaults to the defaultPriority.
+     * @return true if an update actually occurred in the directory.  false
+     *         may be returned if the object is unchanged.
+     * @throws LdapDeadlineExceededException If the deadline passed
+     * @throws LdapConnectorException If an error occurs
+     */
+    boolean persist(
+            String eventId,
+            LdapObjectDefinition objectDef,
+            LdapCallbackContext context,
+            LdapPersistRequest request,
+            boolean isDelete,
+            LdapDeadline deadline = null,
+            LdapPriority priority = null
+    ) throws LdapConnectorException {
+        return executeWithPriority(priority, deadline) {
+            executeWithRetry(deadline) {
+                doPersist(eventId, objectDef, context, null, request, isDelete, deadline)
             }
+        }
+    }
 
-            // (optional) DN
-            Name dn = null
-            boolean hasDynamicDn = false
-            boolean hasDnOnCreate = false
-            boolean hasDnOnUpdate = false
-            boolean hasDnNotConditional = false
-            dnDeterminationLabel:
-            {
-                String dnNotConditional = attrMapCopy.dn
-                hasDnNotConditional = dnNotConditional != null
-                if (hasDnNotConditional) {
-                    // Remove the dn from the object -- not an actual
-                    // attribute
-                    attrMapCopy.remove("dn")
-                }
+    /**
+     * The map-based persist() run on the connector's async executor.  The
+     * callbacks are delivered as they are for persist(), from the executor
+     * thread when isSynchronousCallback is true.
+     *
+     * @param eventId Optional eventId string that is passed to callbacks.
+     * @param objectDef The object definition.
+     * @param context Optional callback context.
+     * @param attrMap The attribute map of the object.  See the map-based
+     *        persist().  It must not be modified until the future
+     *        completes.
+     * @param isDelete If true, the object will be deleted.  See the
+     *        map-based persist().
+     * @param deadline (optional) The time by which the persist must be
+     *        complete, including the time it waits to run.
+     * @param priority (optional) The lane of the priorityScheduler the
+     *        persist is admitted in, and the priority it is queued with
+     *        on the async executor.
+     * @return A future completed with the result of persist(), or
+     *         completed exceptionally with its LdapConnectorException
+     */
+    CompletableFuture<Boolean> persistAsync(
+            String eventId,
+            LdapObjectDefinition objectDef,
+            LdapCallbackContext context,
+            Map<String, Object> attrMap,
+            boolean isDelete,
+            LdapDeadline deadline = null,
+            LdapPriority priority = null
+    ) {
+        return submitAsync(priority) {
+            persist(eventId, objectDef, context, attrMap, isDelete, deadline, priority)
+        }
+    }
 
-                String dnDynamic = attrMapCopy["dn.DYNAMIC"]
-                hasDynamicDn = dnDynamic != null
-                if (hasDynamicDn) {
-                    attrMapCopy.remove("dn.DYNAMIC")
-                }
-                if (hasDynamicDn && !((LdapObjectDefinition) objectDef).dynamicAttributeNames.contains("dn.DYNAMIC")) {
-                    throw new LdapConnectorException("dn.DYNAMIC is provided but it is not listed in dynamicAttributeNames in the object definition")
-                }
+    /**
+     * The typed-request persist() run on the connector's async executor.
+     * See the map-based persistAsync().
+     *
+     * @return A future completed with the result of persist(), or
+     *         completed exceptionally with its LdapConnectorException
+     */
+    CompletableFuture<Boolean> persistAsync(
+            String eventId,
+            LdapObjectDefinition objectDef,
+            LdapCallbackContext context,
+            LdapPersistRequest request,
+            boolean isDelete,
+            LdapDeadline deadline = null,
+            LdapPriority priority = null
+    ) {
+        return submitAsync(priority) {
+            persist(eventId, objectDef, context, request, isDelete, deadline, priority)
+        }
+    }
 
-                String dnOnCreate = attrMapCopy["dn.ONCREATE"]
-                hasDnOnCreate = dnOnCreate != null
-                if (hasDnOnCreate) {
-                    attrMapCopy.remove("dn.ONCREATE")
-                }
-                if (hasDnOnCreate && !((LdapObjectDefinition) objectDef).dynamicAttributeNames.contains("dn.ONCREATE")) {
-                    throw new LdapConnectorException("dn.ONCREATE is provided but it is not listed in dynamicAttributeNames in the object definition")
-                }
+    /**
+     * Convert a map-based persist attribute map into a typed {@link
+     * LdapPersistRequest}.  The meta-attributes (dn, dn.DYNAMIC,
+     * dn.ONCREATE, dn.ONUPDATE, the globally unique identifier, the
+     * dynamic attributes and the group directives) are moved out of the
+     * attribute map into their own request fields.
+     *
+     * @param objectDef The object definition.
+     * @param attrMap The caller-provided attribute map, which is not
+     *        modified.
+     * @return The typed persist request.
+     * @throws LdapConnectorException If the dn meta-attributes conflict
+     */
+    LdapPersistRequest buildPersistRequest(LdapObjectDefinition objectDef, Map<String, Object> attrMap) throws LdapConnectorException {
+        LinkedHashMap<String, Object> attrMapCopy = new LinkedHashMap<String, Object>(attrMap)
+        LdapPersistRequest request = new LdapPersistRequest()
+        request.sourceAttributeMap = attrMap
+        request.attributes = attrMapCopy
 
-                String dnOnUpdate = attrMapCopy["dn.ONUPDATE"]
-                hasDnOnUpdate = dnOnUpdate != null
-                if (hasDnOnUpdate) {
-                    attrMapCopy.remove("dn.ONUPDATE")
-                }
-                if (hasDnOnUpdate && !((LdapObjectDefinition) objectDef).dynamicAttributeNames.contains("dn.ONUPDATE")) {
-                    throw new LdapConnectorException("dn.ONUPDATE is provided but it is not listed in dynamicAttributeNames in the object definition")
-                }
+        // (optional) globally unique identifier
+        if (objectDef.globallyUniqueIdentifierAttributeName) {
+            // Remove the uniqueIdentifier from the object -- we're
+            // assuming this is an operational attribute that we can't
+            // set.
+            request.globallyUniqueIdentifier = attrMapCopy.remove(objectDef.globallyUniqueIdentifierAttributeName)
+        }
 
-                if (hasDnOnCreate && hasDnOnUpdate) {
-                    throw new LdapConnectorException("Only one of dn.ONCREATE or dn.ONUPDATE is allowed: provide only one of these")
-                }
-                // dn.DYNAMIC trumps dn.UPDATE
-                String conditionalDn = dnDynamic ?: dnOnUpdate ?: dnOnCreate
+        // primary key: stays in the attribute map
+        String pkey = attrMapCopy[objectDef.primaryKeyAttributeName]
+        request.pkey = pkey
 
-                if (hasDnNotConditional && conditionalDn) {
-                    throw new LdapConnectorException("Only one of dn.DYNAMIC, dn.ONCREATE, dn.ONUPDATE or dn is allowed: provide only one of these")
-                }
+        // (optional) DN: Remove the dn keys from the object -- not actual
+        // attributes
+        String dnNotConditional = attrMapCopy.remove("dn")
+        String dnDynamic = attrMapCopy.remove("dn.DYNAMIC")
+        String dnOnCreate = attrMapCopy.remove("dn.ONCREATE")
+        String dnOnUpdate = attrMapCopy.remove("dn.ONUPDATE")
+        if (dnOnCreate != null && dnOnUpdate != null) {
+            throw new LdapConnectorException("Only one of dn.ONCREATE or dn.ONUPDATE is allowed: provide only one of these")
+        }
+        // dn.DYNAMIC trumps dn.UPDATE
+        if (dnDynamic != null) {
+            request.dnDirective = LdapPersistRequest.DnDirective.DYNAMIC
+            request.dn = dnDynamic
+        } else if (dnOnUpdate != null) {
+            request.dnDirective = LdapPersistRequest.DnDirective.ONUPDATE
+            request.dn = dnOnUpdate
+        } else if (dnOnCreate != null) {
+            request.dnDirective = LdapPersistRequest.DnDirective.ONCREATE
+            request.dn = dnOnCreate
+        } else {
+            request.dnDirective = LdapPersistRequest.DnDirective.NOT_CONDITIONAL
+            request.dn = dnNotConditional
+        }
+        if (dnNotConditional != null && request.dnDirective != LdapPersistRequest.DnDirective.NOT_CONDITIONAL && request.dn) {
+            throw new LdapConnectorException("Only one of dn.DYNAMIC, dn.ONCREATE, dn.ONUPDATE or dn is allowed: provide only one of these")
+        }
 
-                String dnString = conditionalDn ?: dnNotConditional
-                if (dnString) {
-                    dn = buildDnName(dnString)
+        // dynamic attribute templates
+        Map<String, Object> dynamicAttributes = null
+        objectDef.dynamicAttributeNames?.each { String attrNameAndIndicator ->
+            if (!attrNameAndIndicator.startsWith("dn.") && attrMapCopy.containsKey(attrNameAndIndicator)) {
+                Object dynamicValueTemplate = attrMapCopy.remove(attrNameAndIndicator)
+                if (dynamicValueTemplate != null) {
+                    if (dynamicAttributes == null) {
+                        dynamicAttributes = new LinkedHashMap<String, Object>()
+                    }
+                    dynamicAttributes[attrNameAndIndicator] = dynamicValueTemplate
                 }
             }
+        }
+        request.dynamicAttributes = dynamicAttributes
+
+        // Group directives
+        if (objectDef.groupDirectiveMetaAttributePrefix) {
+            request.groupAdditions = toGroupDnList(attrMapCopy.remove("${objectDef.groupDirectiveMetaAttributePrefix}.ADD".toString()))
+            request.groupRemovals = toGroupDnList(attrMapCopy.remove("${objectDef.groupDirectiveMetaAttributePrefix}.REMOVE".toString()))
+        }
+
+        return request
+    }
+
+    /**
+     * Convert a group directive value, which may be a single DN string, a
+     * collection or an array, to a list of group DN strings.
+     */
+    @SuppressWarnings("GrMethodMayBeStatic")
+    protected List<String> toGroupDnList(Object groupDirectiveValue) {
+        if (!groupDirectiveValue) {
+            return []
+        }
+        return groupDirectiveValue instanceof Collection || groupDirectiveValue.getClass().array ? groupDirectiveValue as List<String> : [groupDirectiveValue] as List<String>
+    }
+
+    /**
+     * Common implementation of the map-based and typed persist methods. 
+     * Exactly one of attrMap or request is provided.  When attrMap is
+     * provided, it is converted to a request with buildPersistRequest().
+     */
+    protected boolean doPersist(
+            String eventId,
+            LdapObjectDefinition objectDef,
+            LdapCallbackContext context,
+            Map<String, Object> attrMap,
+            LdapPersistRequest request,
+            boolean isDelete,
+            LdapDeadline deadline = null
+    ) throws LdapConnectorException {
+        LdapRequestContext reqCtx = new LdapRequestContext(singleContextLdapTemplate, eventId, objectDef, context)
+        reqCtx.deadline = deadline
+        Throwable exception = null
+        try {
+            checkDeadline(reqCtx, "starting the persist")
+            if (request == null) {
+                request = buildPersistRequest(objectDef, attrMap)
+            }
+
+            // (optional) globally unique identifier
+            String uniqueIdentifierAttrName = objectDef.globallyUniqueIdentifierAttributeName
+            Object uniqueIdentifier = (uniqueIdentifierAttrName ? request.globallyUniqueIdentifier : null)
+
+            // primary key
+            String pkeyAttrName = objectDef.primaryKeyAttributeName
+            String pkey = request.pkey
+            if (!isDelete && !pkey) {
+                throw new LdapConnectorException("Directory object is missing a required value for primary key $pkeyAttrName")
+            }
+
+            // (optional) DN
+            LdapPersistRequest.DnDirective dnDirective = request.dnDirective
+            boolean hasDynamicDn = request.dn != null && dnDirective == LdapPersistRequest.DnDirective.DYNAMIC
+            boolean hasDnOnCreate = request.dn != null && dnDirective == LdapPersistRequest.DnDirective.ONCREATE
+            boolean hasDnOnUpdate = request.dn != null && dnDirective == LdapPersistRequest.DnDirective.ONUPDATE
+            boolean hasDnNotConditional = request.dn != null && dnDirective == LdapPersistRequest.DnDirective.NOT_CONDITIONAL
+            if (request.dn != null && !hasDnNotConditional && !objectDef.dynamicAttributeNames.contains("dn.${dnDirective.name()}".toString())) {
+                throw new LdapConnectorException("dn.${dnDirective.name()} is provided but it is not listed in dynamicAttributeNames in the object definition")
+            }
+            Name dn = (request.dn ? buildDnName(request.dn) : null)
+
+            // The map dynamic attribute callbacks receive as their
+            // newAttributeMap.  Built on demand for typed requests.
+            Map<String, Object> callerAttrMap = request.sourceAttributeMap
 
             MatchingEntryResult matchingEntryResult = null
             DirContextAdapter existingEntry = null
@@ -1064,6 +2845,7 @@ class LdapConnector implements Connector {
                 // must be used to retrieve the object.
                 matchingEntryResult = findMatchingEntry(reqCtx, (!hasDynamicDn ? dn : null), pkey, uniqueIdentifier)
                 existingEntry = matchingEntryResult.entry
+                checkDeadline(reqCtx, "finding the existing entry")
                 foundObjectMethod = matchingEntryResult.foundObjectMethod
 
                 // For dn.DYNAMIC, need to execute the callback early to get
@@ -1073,6 +2855,9 @@ class LdapConnector implements Connector {
                     if (existingEntry && existingAttrMapForDynamicAttributeCallbacks == null) {
                         existingAttrMapForDynamicAttributeCallbacks = toMapContextMapper.mapFromContext(existingEntry)
                     }
+                    if (callerAttrMap == null) {
+                        callerAttrMap = request.toAttributeMap(objectDef)
+                    }
 
                     LdapDynamicAttributeCallback callback = dynamicAttributeCallbacks["dn.DYNAMIC"]
                     if (!callback) {
@@ -1080,13 +2865,13 @@ class LdapConnector implements Connector {
                     }
                     LdapDynamicAttributeCallbackResult result = callback.attributeValue(
                             eventId,
-                            (LdapObjectDefinition) objectDef,
-                            (LdapCallbackContext) context,
+                            objectDef,
+                            context,
                             foundObjectMethod,
                             pkey,
                             null,
                             "dn",
-                            attrMap,
+                            callerAttrMap,
                             existingAttrMapForDynamicAttributeCallbacks,
                             existingDn,
                             "DYNAMIC",
@@ -1100,11 +2885,11 @@ class LdapConnector implements Connector {
             boolean wasRenamed = false
 
             if (!isDelete) {
-                if (existingEntry && ((LdapObjectDefinition) objectDef).isRemoveDuplicatePrimaryKeys()) {
+                if (existingEntry && objectDef.isRemoveDuplicatePrimaryKeys()) {
                     // Delete all the entries that we're not keeping as the
                     // existingEntry
                     matchingEntryResult.searchResults.each { DirContextAdapter entry ->
-                        if (!nameEquals(objectDef, entry.dn, existingEntry.dn)) {
+                        if (!dnEquals(objectDef, entry.dn, existingEntry.dn)) {
                             delete(reqCtx, pkey, entry.dn)
                             isModified = true
                         }
@@ -1115,18 +2900,27 @@ class LdapConnector implements Connector {
                 // dn.ONUPDATE, dn exists in the attribute map.
                 boolean renamingEnabled = hasDynamicDn || hasDnOnUpdate || hasDnNotConditional
 
-                // Deal with dynamic attributes
-                ((LdapObjectDefinition) objectDef).dynamicAttributeNames?.each { String attrNameAndIndicator ->
-                    // everything before the last dot is the attribute name
-                    // and everything after the last dot is the dynamic
-                    // callback indicator
-                    String attributeName = attrNameAndIndicator.substring(0, attrNameAndIndicator.lastIndexOf('.'))
-                    String dynamicCallbackIndicator = attrNameAndIndicator.substring(attributeName.length() + 1)
+                // Deal with dynamic attributes.  The results are collected
+                // separately so the request's attribute map only has to be
+                // copied when there are dynamic results to apply to it.  A
+                // null value in dynamicResults will result in attribute
+                // removal and a name in unmodifiedDynamicAttributeNames
+                // will leave the attribute unchanged downstream.
+                Map<String, Object> dynamicResults = null
+                Set<String> unmodifiedDynamicAttributeNames = null
+                if (request.dynamicAttributes) {
+                    objectDef.dynamicAttributeNames?.each { String attrNameAndIndicator ->
+                        Object dynamicValueTemplate = request.dynamicAttributes[attrNameAndIndicator]
+                        if (dynamicValueTemplate == null) {
+                            return
+                        }
 
-                    Object dynamicValueTemplate = attrMapCopy[attrNameAndIndicator]
-                    attrMapCopy.remove(attrNameAndIndicator)
+                        // everything before the last dot is the attribute
+                        // name and everything after the last dot is the
+                        // dynamic callback indicator
+                        String attributeName = attrNameAndIndicator.substring(0, attrNameAndIndicator.lastIndexOf('.'))
+                        String dynamicCallbackIndicator = attrNameAndIndicator.substring(attributeName.length() + 1)
 
-                    if (dynamicValueTemplate != null) {
                         Object existingAttributeValue = null
                         Attribute existingAttribute = null
                         try {
@@ -1141,6 +2935,9 @@ class LdapConnector implements Connector {
                         if (existingEntry && existingAttrMapForDynamicAttributeCallbacks == null) {
                             existingAttrMapForDynamicAttributeCallbacks = toMapContextMapper.mapFromContext(existingEntry)
                         }
+                        if (callerAttrMap == null) {
+                            callerAttrMap = request.toAttributeMap(objectDef)
+                        }
 
                         LdapDynamicAttributeCallback callback = dynamicAttributeCallbacks[attrNameAndIndicator] ?: dynamicAttributeCallbacks[dynamicCallbackIndicator]
                         if (!callback) {
@@ -1148,13 +2945,13 @@ class LdapConnector implements Connector {
                         }
                         LdapDynamicAttributeCallbackResult result = callback.attributeValue(
                                 eventId,
-                                (LdapObjectDefinition) objectDef,
-                                (LdapCallbackContext) context,
+                                objectDef,
+                                context,
                                 foundObjectMethod,
                                 pkey,
                                 dn,
                                 attributeName,
-                                attrMap,
+                                callerAttrMap,
                                 existingAttrMapForDynamicAttributeCallbacks,
                                 existingAttributeValue,
                                 dynamicCallbackIndicator,
@@ -1162,36 +2959,50 @@ class LdapConnector implements Connector {
                         )
 
                         if (result) {
-                            // a null attributeValue will result in
-                            // attribute removal
-                            attrMapCopy[attributeName] = result.attributeValue
+                            if (dynamicResults == null) {
+                                dynamicResults = new LinkedHashMap<String, Object>()
+                            }
+                            dynamicResults[attributeName] = result.attributeValue
+                            unmodifiedDynamicAttributeNames?.remove(attributeName)
                         } else {
-                            // Don't modify: The attribute name shouldn't be
-                            // in the map, but ust in case it is, remove it
-                            // so we leave it unchanged downstream.
-                            attrMapCopy.remove(attributeName)
+                            if (unmodifiedDynamicAttributeNames == null) {
+                                unmodifiedDynamicAttributeNames = new HashSet<String>()
+                            }
+                            unmodifiedDynamicAttributeNames.add(attributeName)
+                            dynamicResults?.remove(attributeName)
                         }
                     }
                 }
 
-                // Group directives
+                // Group directives, which may have been dynamically
+                // determined
                 List<String> requestedGroupAdditions = []
                 List<String> requestedGroupRemovals = []
                 if (objectDef.groupDirectiveMetaAttributePrefix) {
                     String groupAddAttributeName = "${objectDef.groupDirectiveMetaAttributePrefix}.ADD"
                     String groupRemoveAttributeName = "${objectDef.groupDirectiveMetaAttributePrefix}.REMOVE"
-                    if (attrMapCopy[groupAddAttributeName]) {
-                        requestedGroupAdditions = attrMapCopy[groupAddAttributeName] instanceof Collection || attrMapCopy[groupAddAttributeName].getClass().array ? attrMapCopy[groupAddAttributeName] as List<String> : [attrMapCopy[groupAddAttributeName]] as List<String>
-                    } else {
-                        requestedGroupAdditions = []
+                    requestedGroupAdditions = (dynamicResults?.containsKey(groupAddAttributeName) ? toGroupDnList(dynamicResults.remove(groupAddAttributeName)) : request.groupAdditions)
+                    requestedGroupRemovals = (dynamicResults?.containsKey(groupRemoveAttributeName) ? toGroupDnList(dynamicResults.remove(groupRemoveAttributeName)) : request.groupRemovals)
+                }
+
+                // Only copy the request's attributes when something has to
+                // be changed in them.
+                Map<String, Object> attrMapCopy = request.attributes
+                boolean addPkeyAttribute = !attrMapCopy.containsKey(pkeyAttrName)
+                if (dynamicResults || unmodifiedDynamicAttributeNames || addPkeyAttribute) {
+                    attrMapCopy = new LinkedHashMap<String, Object>(attrMapCopy)
+                    if (addPkeyAttribute) {
+                        attrMapCopy[pkeyAttrName] = pkey
                     }
-                    attrMapCopy.remove(groupAddAttributeName)
-                    if (attrMapCopy[groupRemoveAttributeName]) {
-                        requestedGroupRemovals = attrMapCopy[groupRemoveAttributeName] instanceof Collection || attrMapCopy[groupRemoveAttributeName].getClass().array ? attrMapCopy[groupRemoveAttributeName] as List<String> : [attrMapCopy[groupRemoveAttributeName]] as List<String>
-                    } else {
-                        requestedGroupRemovals = []
+                    unmodifiedDynamicAttributeNames?.each { String attributeName ->
+                        // Don't modify: The attribute name shouldn't be in
+                        // the map, but just in case it is, remove it so we
+                        // leave it unchanged downstream.
+                        attrMapCopy.remove(attributeName)
+                    }
+                    if (dynamicResults) {
+                        attrMapCopy.putAll(dynamicResults)
                     }
-                    attrMapCopy.remove(groupRemoveAttributeName)
                 }
 
                 if (existingEntry) {
@@ -1200,8 +3011,9 @@ class LdapConnector implements Connector {
                     Name originalDn = existingEntry.dn
 
                     // Check for need to move DNs
-                    if (renamingEnabled && dn && !nameEquals(objectDef, originalDn, dn)) {
+                    if (renamingEnabled && dn && !dnEquals(objectDef, originalDn, dn)) {
                         // Move DN
+                        checkDeadline(reqCtx, "renaming")
                         rename(reqCtx, pkey, originalDn, dn)
                         try {
                             existingEntry = lookup(reqCtx, dn)
@@ -1216,9 +3028,15 @@ class LdapConnector implements Connector {
                         wasRenamed = true
                     }
 
+                    checkDeadline(reqCtx, "updating")
+
+                    // The groups the entry is a member of are looked up
+                    // once for both the additions and the removals
+                    Set<CanonicalDn> existingGroupMemberships = (objectDef.memberOfAttributeName && (requestedGroupAdditions || requestedGroupRemovals) ? getExistingGroupMemberships(reqCtx, existingEntry) : null)
+
                     // Do group membership additions (removals done after
                     // person entry has been updated)
-                    if (doGroupMembershipChanges(reqCtx, requestedGroupAdditions, null, existingEntry)) {
+                    if (doGroupMembershipChanges(reqCtx, pkey, requestedGroupAdditions, null, existingEntry, existingGroupMemberships)) {
                         isModified = true
                     }
 
@@ -1237,7 +3055,7 @@ class LdapConnector implements Connector {
                     }
 
                     // Do group membership removals
-                    if (doGroupMembershipChanges(reqCtx, null, requestedGroupRemovals, existingEntry)) {
+                    if (doGroupMembershipChanges(reqCtx, pkey, null, requestedGroupRemovals, existingEntry, existingGroupMemberships)) {
                         isModified = true
                     }
 
@@ -1255,11 +3073,11 @@ class LdapConnector implements Connector {
                     boolean renamingDisabledCase = !renamingEnabled &&
                             uniqueIdentifierAttrName &&
                             uniqueIdentifierEventCallbacks &&
-                            dn && !nameEquals(objectDef, existingEntry.dn, dn)
+                            dn && !dnEquals(objectDef, existingEntry.dn, dn)
                     boolean missingUniqIdCase = !wasRenamed &&
                             uniqueIdentifierAttrName &&
                             uniqueIdentifierEventCallbacks &&
-                            !attrMap[uniqueIdentifierAttrName]
+                            !uniqueIdentifier
                     if (renamingDisabledCase || missingUniqIdCase) {
                         // Renaming disabled and the requested dn doesn't
                         // match the actual dn, indicating a rename from
@@ -1268,15 +3086,15 @@ class LdapConnector implements Connector {
                         // existingEntry object was replaced with new entry.
                         Object directoryUniqueIdentifier = getGloballyUniqueIdentifier(reqCtx, existingEntry.dn)
                         if (!directoryUniqueIdentifier) {
-                            log.warn("The ${((LdapObjectDefinition) objectDef).globallyUniqueIdentifierAttributeName} was unable to be retrieved from the just updated entry of ${existingEntry.dn}")
+                            log.warn("The ${objectDef.globallyUniqueIdentifierAttributeName} was unable to be retrieved from the just updated entry of ${existingEntry.dn}")
                         } else {
                             if (directoryUniqueIdentifier) {
                                 deliverCallbackMessage(new LdapUniqueIdentifierEventMessage(
                                         success: true,
                                         causingEvent: LdapEventType.UPDATE_EVENT,
                                         eventId: eventId,
-                                        objectDef: (LdapObjectDefinition) objectDef,
-                                        context: (LdapCallbackContext) context,
+                                        objectDef: objectDef,
+                                        context: context,
                                         pkey: pkey,
                                         oldDn: originalDn,
                                         newDn: dn,
@@ -1291,21 +3109,28 @@ class LdapConnector implements Connector {
                     if (!dn) {
                         throw new LdapConnectorException("Unable to find existing object in directory by pkey $pkey but unable to insert a new object because the dn was not provided")
                     }
+                    checkDeadline(reqCtx, "inserting")
                     Object insertedGloballyUniqId = insert(reqCtx, pkey, dn, attrMapCopy)
                     isModified = true
 
-                    boolean hasUpdateOnlyAttributes = ((LdapObjectDefinition) objectDef).dynamicAttributeNames.any {
-                        it.endsWith(".ONUPDATE") && attrMap.containsKey(it)
+                    boolean hasUpdateOnlyAttributes = hasDnOnUpdate && objectDef.dynamicAttributeNames.contains("dn.ONUPDATE") || objectDef.dynamicAttributeNames.any {
+                        it.endsWith(".ONUPDATE") && request.dynamicAttributes.containsKey(it)
                     }
-                    boolean hasGroupDirectiveAttributes = ((LdapObjectDefinition) objectDef).groupDirectiveMetaAttributePrefix && (attrMap.containsKey("${objectDef.groupDirectiveMetaAttributePrefix}.ADD".toString()) || attrMap.containsKey("${objectDef.groupDirectiveMetaAttributePrefix}.REMOVAL".toString()))
+                    boolean hasGroupDirectiveAttributes = objectDef.groupDirectiveMetaAttributePrefix && request.groupAdditions
                     if (hasUpdateOnlyAttributes || hasGroupDirectiveAttributes) {
                         // Since there are update-only or group directive attributes, we do a
                         // subsequent update after the insert, but only if
                         // we found the object we just inserted.
                         if (insertedGloballyUniqId) {
-                            LinkedHashMap<String, Object> attrMapForUpdate = new LinkedHashMap<String, Object>(attrMap)
-                            attrMapForUpdate[((LdapObjectDefinition) objectDef).globallyUniqueIdentifierAttributeName] = insertedGloballyUniqId
-                            persist(eventId, objectDef, context, attrMapForUpdate, false)
+                            LdapPersistRequest requestForUpdate = new LdapPersistRequest(request)
+                            requestForUpdate.globallyUniqueIdentifier = insertedGloballyUniqId
+                            if (request.sourceAttributeMap != null) {
+                                LinkedHashMap<String, Object> attrMapForUpdate = new LinkedHashMap<String, Object>(request.sourceAttributeMap)
+                                attrMapForUpdate[objectDef.globallyUniqueIdentifierAttributeName] = insertedGloballyUniqId
+                                requestForUpdate.sourceAttributeMap = attrMapForUpdate
+                            }
+                            checkDeadline(reqCtx, "updating the inserted entry")
+                            doPersist(eventId, objectDef, context, null, requestForUpdate, false, deadline)
                         } else {
                             log.warn("pkey $pkey has ONUPDATE or group directive attributes but we couldn't perform an update after the insert because we couldn't find the object right after inserting it")
                         }
@@ -1333,7 +3158,8 @@ class LdapConnector implements Connector {
 
                 // Delete by primary key
                 if (pkey) {
-                    if (((LdapObjectDefinition) objectDef).removeDuplicatePrimaryKeys) {
+                    if (objectDef.removeDuplicatePrimaryKeys) {
+                        checkDeadline(reqCtx, "deleting by primary key")
                         List<DirContextAdapter> searchResults = searchByPrimaryKey(reqCtx, pkey)
                         searchResults.each { DirContextAdapter entry ->
                             String entryPkey = ((Attribute) entry.attributes.all.find { Attribute attr -> attr.ID == pkeyAttrName })?.get()
@@ -1347,11 +3173,11 @@ class LdapConnector implements Connector {
             return isModified
         }
         catch (LdapConnectorException e) {
-            exception = e
-            throw e
+            exception = (deadline?.expired && !(e instanceof LdapDeadlineExceededException) ? new LdapDeadlineExceededException("The persist did not complete within ${deadline.timeoutMillis} ms", e) : e)
+            throw exception
         }
         catch (Throwable t) {
-            exception = new LdapConnectorException(t)
+            exception = (deadline?.expired ? new LdapDeadlineExceededException("The persist did not complete within ${deadline.timeoutMillis} ms", t) : new LdapConnectorException(t))
             throw exception
         }
         finally {
@@ -1367,11 +3193,27 @@ class LdapConnector implements Connector {
     }
 
     /**
-     * Create a Name object that represents a distinguished name string.
+     * Create a Name object that represents a distinguished name string. 
+     * The string is only parsed the first time it's seen, as long as it
+     * remains in the canonicalDnCache.
      */
-    @SuppressWarnings("GrMethodMayBeStatic")
     Name buildDnName(String dn) {
-        return LdapNameBuilder.newInstance(dn).build()
+        return canonicalDnCache.intern(dn).name
+    }
+
+    /**
+     * @return The interned {@link CanonicalDn} for a distinguished name
+     *         string.
+     */
+    CanonicalDn canonicalDn(String dn) {
+        return canonicalDnCache.intern(dn)
+    }
+
+    /**
+     * @return The interned {@link CanonicalDn} for a distinguished name.
+     */
+    CanonicalDn canonicalDn(Name dn) {
+        return canonicalDnCache.intern(dn)
     }
 
     /**
@@ -1406,31 +3248,46 @@ class LdapConnector implements Connector {
      */
     protected Map<String, Object> convertCallerProvidedMap(Map<String, Object> map) {
         return (Map<String, Object>) map.findAll { it.value != null && !(it.value instanceof List && !((List) it.value).size()) }.collectEntries {
-            [it.key, (it.value instanceof List ? convertCallerProvidedList((List) it.value) : convertCallerProvidedValue(it.value))]
+            [it.key, (it.value instanceof List ? convertCallerProvidedList(it.key, (List) it.value) : convertCallerProvidedValue(it.key, it.value))]
         }
     }
 
     /**
      * Normalize a caller-provided list of attribute values.
      */
-    @SuppressWarnings("GrMethodMayBeStatic")
     protected Object convertCallerProvidedList(List list) {
+        return convertCallerProvidedList(null, list)
+    }
+
+    /**
+     * Normalize a caller-provided list of values for an attribute.
+     */
+    protected Object convertCallerProvidedList(String attributeName, List list) {
         if (list.size() == 1) {
-            return convertCallerProvidedValue(list.first())
+            return convertCallerProvidedValue(attributeName, list.first())
         } else {
-            return list.collect { convertCallerProvidedValue(it) }
+            return list.collect { convertCallerProvidedValue(attributeName, it) }
         }
     }
 
+    /**
+     * Normalize a caller-provided value for an attribute.  If there is a
+     * schema codec, the value is encoded according to the attribute's
+     * syntax, e.g. booleans as TRUE or FALSE.
+     */
+    protected Object convertCallerProvidedValue(String attributeName, Object value) {
+        String encoded = attributeName != null ? schemaCodec?.encode(attributeName, value) : null
+        return encoded != null ? (valueInterner ? valueInterner.intern(encoded) : encoded) : convertCallerProvidedValue(value)
+    }
+
     /**
      * Normalize a caller-provided value.
      */
-    @SuppressWarnings("GrMethodMayBeStatic")
     protected Object convertCallerProvidedValue(Object value) {
         if (value instanceof String || value instanceof Number || value instanceof Boolean) {
             // Directory servers interpret numbers and booleans as strings,
             // so we use toString()
-            return value.toString()
+            return valueInterner ? valueInterner.intern(value.toString()) : value.toString()
         } else if (value instanceof byte[]) {
             // an example of using bytes for an attribute: AD unicodePwd
             return value
@@ -1488,6 +3345,8 @@ class LdapConnector implements Connector {
      * @param primaryKeyAttrValue Primary key attribute value of the object to modify
      * @param globallyUniqueIdentifierAttrValue (optional) Globally unique identifier value of the object to modify
      * @param attributeNamesToRemove A string array of attribute names to remove
+     * @param ignoreMissingAttributes If true, attributes the entry doesn't
+     *        have are skipped rather than failing the removal of the others.
      * @return true if an update actually occured in the directory.  false
      *         may be returned if the object is unchanged or not found.
      * @throws LdapConnectorException If an error occurs
@@ -1497,7 +3356,45 @@ class LdapConnector implements Connector {
             Name dn,
             String primaryKeyAttrValue,
             Object globallyUniqueIdentifierAttrValue,
-            String[] attributeNamesToRemove
+            String[] attributeNamesToRemove,
+            boolean ignoreMissingAttributes = false
+    ) throws LdapConnectorException {
+        int attempt = 0
+        return executeWithRetry {
+            withRetryRequestContext(reqCtx, ++attempt > 1) { LdapRequestContext attemptReqCtx ->
+                doRemoveAttributes(attemptReqCtx, dn, primaryKeyAttrValue, globallyUniqueIdentifierAttrValue, attributeNamesToRemove, ignoreMissingAttributes)
+            }
+        }
+    }
+
+    /**
+     * removeAttributes() run on the connector's async executor.  The
+     * ldapTemplate of reqCtx must not be used by another request until the
+     * future completes if it has a single connection.
+     *
+     * @return A future completed with the result of removeAttributes(), or
+     *         completed exceptionally with its LdapConnectorException
+     */
+    CompletableFuture<Boolean> removeAttributesAsync(
+            LdapRequestContext reqCtx,
+            Name dn,
+            String primaryKeyAttrValue,
+            Object globallyUniqueIdentifierAttrValue,
+            String[] attributeNamesToRemove,
+            boolean ignoreMissingAttributes = false
+    ) {
+        return submitAsync {
+            removeAttributes(reqCtx, dn, primaryKeyAttrValue, globallyUniqueIdentifierAttrValue, attributeNamesToRemove, ignoreMissingAttributes)
+        }
+    }
+
+    protected boolean doRemoveAttributes(
+            LdapRequestContext reqCtx,
+            Name dn,
+            String primaryKeyAttrValue,
+            Object globallyUniqueIdentifierAttrValue,
+            String[] attributeNamesToRemove,
+            boolean ignoreMissingAttributes
     ) throws LdapConnectorException {
         MatchingEntryResult matchingEntryResult = null
         try {
@@ -1522,10 +3419,33 @@ class LdapConnector implements Connector {
             // DirContext directly here.
             DirContext dirctx = reqCtx.ldapTemplate.contextSource.readWriteContext
             try {
-                attributeNamesToRemove.each { String attrNameToRemove ->
-                    ModificationItem item = new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute(attrNameToRemove, null))
-                    modificationItems << item
-                    dirctx.modifyAttributes(matchingEntryResult.entry.dn, item)
+                // All the removals are sent in one modify request
+                ModificationItem[] items = attributeNamesToRemove.collect { String attrNameToRemove ->
+                    new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute(attrNameToRemove, null))
+                } as ModificationItem[]
+                recordWrite(reqCtx.objectDef, primaryKeyAttrValue, matchingEntryResult.entry.dn)
+                try {
+                    if (items) {
+                        dirctx.modifyAttributes(matchingEntryResult.entry.dn, items)
+                    }
+                    modificationItems.addAll(items)
+                }
+                catch (NoSuchAttributeException e) {
+                    if (!ignoreMissingAttributes) {
+                        throw e
+                    }
+                    // The server doesn't say which attribute is missing and
+                    // write-only attributes can't be read to check, so
+                    // fall back to one request per attribute.
+                    items.each { ModificationItem item ->
+                        try {
+                            dirctx.modifyAttributes(matchingEntryResult.entry.dn, [item] as ModificationItem[])
+                            modificationItems << item
+                        }
+                        catch (NoSuchAttributeException ignored) {
+                            // already absent
+                        }
+                    }
                 }
             }
             finally {
@@ -1556,22 +3476,63 @@ class LdapConnector implements Connector {
         }
     }
 
-    /**
-     * Set an attribute for an existing directory entry.
-     *
-     * Normally persist() is used to add or modify attribute values, but
-     * persist() doesn't work when trying to modify a "write-only" attribute
-     * (e.g., userPassword).  This method supports "write-only" attributes.
-     */
-    boolean setAttribute(
+    /**
+     * Set an attribute for an existing directory entry.
+     *
+     * Normally persist() is used to add or modify attribute values, but
+     * persist() doesn't work when trying to modify a "write-only" attribute
+     * (e.g., userPassword).  This method supports "write-only" attributes.
+     */
+    boolean setAttribute(
+            LdapRequestContext reqCtx,
+            Name dn,
+            String primaryKeyAttrValue,
+            Object globallyUniqueIdentifierAttrValue,
+            String attributeName,
+            Object newAttributeValue,
+            boolean useRemoveAndAddApproach = false,
+            Object oldAttributeValue = null // when useRemoveAndAddApproach is true
+    ) throws LdapConnectorException {
+        int attempt = 0
+        return executeWithRetry {
+            withRetryRequestContext(reqCtx, ++attempt > 1) { LdapRequestContext attemptReqCtx ->
+                doSetAttribute(attemptReqCtx, dn, primaryKeyAttrValue, globallyUniqueIdentifierAttrValue, attributeName, newAttributeValue, useRemoveAndAddApproach, oldAttributeValue)
+            }
+        }
+    }
+
+    /**
+     * setAttribute() run on the connector's async executor.  The
+     * ldapTemplate of reqCtx must not be used by another request until the
+     * future completes if it has a single connection.
+     *
+     * @return A future completed with the result of setAttribute(), or
+     *         completed exceptionally with its LdapConnectorException
+     */
+    CompletableFuture<Boolean> setAttributeAsync(
+            LdapRequestContext reqCtx,
+            Name dn,
+            String primaryKeyAttrValue,
+            Object globallyUniqueIdentifierAttrValue,
+            String attributeName,
+            Object newAttributeValue,
+            boolean useRemoveAndAddApproach = false,
+            Object oldAttributeValue = null
+    ) {
+        return submitAsync {
+            setAttribute(reqCtx, dn, primaryKeyAttrValue, globallyUniqueIdentifierAttrValue, attributeName, newAttributeValue, useRemoveAndAddApproach, oldAttributeValue)
+        }
+    }
+
+    protected boolean doSetAttribute(
             LdapRequestContext reqCtx,
             Name dn,
             String primaryKeyAttrValue,
             Object globallyUniqueIdentifierAttrValue,
             String attributeName,
             Object newAttributeValue,
-            boolean useRemoveAndAddApproach = false,
-            Object oldAttributeValue = null // when useRemoveAndAddApproach is true
+            boolean useRemoveAndAddApproach,
+            Object oldAttributeValue
     ) throws LdapConnectorException {
         MatchingEntryResult matchingEntryResult = null
         try {
@@ -1596,26 +3557,8 @@ class LdapConnector implements Connector {
             // here.
             DirContext dirctx = reqCtx.ldapTemplate.contextSource.readWriteContext
             try {
-                if (!useRemoveAndAddApproach) {
-                    ModificationItem item = new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute(attributeName, newAttributeValue))
-                    items = [item]
-                    dirctx.modifyAttributes(matchingEntryResult.entry.dn, items)
-                } else {
-                    // Active Directory requires this approach when user
-                    // changes own password.  First try remove and add and
-                    // if that fails, try just an add.
-                    try {
-                        ModificationItem removeItem = new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute(attributeName, oldAttributeValue))
-                        ModificationItem addItem = new ModificationItem(DirContext.ADD_ATTRIBUTE, new BasicAttribute(attributeName, newAttributeValue))
-                        items = [removeItem, addItem]
-                        dirctx.modifyAttributes(matchingEntryResult.entry.dn, items)
-                    }
-                    catch (NoSuchAttributeException ignored) {
-                        ModificationItem addItem = new ModificationItem(DirContext.ADD_ATTRIBUTE, new BasicAttribute(attributeName, newAttributeValue))
-                        items = [addItem]
-                        dirctx.modifyAttributes(matchingEntryResult.entry.dn, items)
-                    }
-                }
+                recordWrite(reqCtx.objectDef, primaryKeyAttrValue, matchingEntryResult.entry.dn)
+                items = modifyAttributeValue(dirctx, matchingEntryResult.entry.dn, attributeName, newAttributeValue, useRemoveAndAddApproach, oldAttributeValue)
             }
             finally {
                 dirctx.close()
@@ -1644,6 +3587,289 @@ class LdapConnector implements Connector {
         }
     }
 
+    /**
+     * Set an attribute value of an entry, as setAttribute() does.
+     *
+     * @param dirctx The context to modify the entry with.  The DirContext
+     *        is used directly because Spring LDAP doesn't support
+     *        write-only attributes (like userPassword).
+     * @param dn The DN of the entry
+     * @param attributeName The attribute to set
+     * @param newAttributeValue The new value
+     * @param useRemoveAndAddApproach If true, the old value is removed and
+     *        the new value added rather than the attribute replaced
+     * @param oldAttributeValue The old value, when useRemoveAndAddApproach
+     *        is true
+     * @return The modifications that were made
+     */
+    protected ModificationItem[] modifyAttributeValue(
+            DirContext dirctx,
+            Name dn,
+            String attributeName,
+            Object newAttributeValue,
+            boolean useRemoveAndAddApproach,
+            Object oldAttributeValue
+    ) {
+        ModificationItem[] items
+        if (!useRemoveAndAddApproach) {
+            ModificationItem item = new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute(attributeName, newAttributeValue))
+            items = [item]
+            dirctx.modifyAttributes(dn, items)
+        } else {
+            // Active Directory requires this approach when user
+            // changes own password.  First try remove and add and
+            // if that fails, try just an add.  With the Permissive
+            // Modify control, the remove of a missing value doesn't
+            // fail.
+            try {
+                ModificationItem removeItem = new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute(attributeName, oldAttributeValue))
+                ModificationItem addItem = new ModificationItem(DirContext.ADD_ATTRIBUTE, new BasicAttribute(attributeName, newAttributeValue))
+                items = [removeItem, addItem]
+                if (!modifyAttributesPermissively(dirctx, dn, items)) {
+                    dirctx.modifyAttributes(dn, items)
+                }
+            }
+            catch (NoSuchAttributeException ignored) {
+                ModificationItem addItem = new ModificationItem(DirContext.ADD_ATTRIBUTE, new BasicAttribute(attributeName, newAttributeValue))
+                items = [addItem]
+                dirctx.modifyAttributes(dn, items)
+            }
+        }
+        return items
+    }
+
+    /**
+     * Set an attribute on many existing entries.  Items are processed in
+     * batches of batchSize: the entries of the items without a DN are found
+     * with one search per batch that ORs the primary key filters of the
+     * object definition, and the modifications of a batch are made in
+     * parallel, bounded by the connector's parallelism.
+     * <p>
+     * The attribute value is set as {@link #setAttribute} sets it, including
+     * the remove and add approach with the item's oldValue, and a
+     * {@link LdapSetAttributeEventMessage} is delivered per entry.  The
+     * entry of an item with a DN and a primary key is found as
+     * setAttribute() finds it, and the entry of an item with only a DN is
+     * looked up by its DN, with a null found method because no key was
+     * checked.  If there are multiple entries with the primary key of an
+     * item without a DN, the first accepted by the object definition's
+     * acceptAsExistingDn() is modified.
+     * <p>
+     * Each modification is retried and limited as setAttribute() is.  An
+     * item that can't be resolved or modified, including one with a
+     * malformed DN, has a failed result and doesn't stop the other items.
+     *
+     * @param reqCtx Context for the request
+     * @param attributeName The attribute to set
+     * @param items The entries and values.  May be streamed rather than held
+     *        in memory.
+     * @param resultConsumer Called on the calling thread with the result of
+     *        each item
+     * @param batchSize The number of items per search and per set of
+     *        parallel modifications
+     * @param useRemoveAndAddApproach If true, the old value of each item is
+     *        removed and the new value added.  See setAttribute().
+     */
+    void bulkSetAttribute(
+            LdapRequestContext reqCtx,
+            String attributeName,
+            Iterator<LdapSetAttributeItem> items,
+            Consumer<LdapSetAttributeResult> resultConsumer,
+            int batchSize = 100,
+            boolean useRemoveAndAddApproach = false
+    ) {
+        LdapRequestContext parallelReqCtx = parallelRequestContext(reqCtx)
+        while (items.hasNext()) {
+            List<LdapSetAttributeItem> batch = []
+            while (items.hasNext() && batch.size() < batchSize) {
+                batch.add(items.next())
+            }
+
+            // Resolve the entries of items without a DN with one search
+            Map<String, List<DirContextAdapter>> entriesByPkey = [:]
+            Throwable searchException = null
+            List<String> pkeys = batch.findAll { !it.dn && it.pkey }*.pkey
+            if (pkeys) {
+                try {
+                    entriesByPkey = searchByPrimaryKeyBatch(reqCtx, pkeys, [reqCtx.objectDef.primaryKeyAttributeName] as String[])
+                }
+                catch (Throwable t) {
+                    searchException = t
+                }
+            }
+
+            List<Closure<LdapSetAttributeResult>> operations = []
+            List<LdapSetAttributeItem> operationItems = []
+            List<LdapSetAttributeResult> unresolved = []
+            batch.each { LdapSetAttributeItem item ->
+                Name dn
+                FoundObjectMethod foundMethod = null
+                if (item.dn) {
+                    try {
+                        dn = buildDnName(item.dn)
+                    }
+                    catch (Throwable t) {
+                        unresolved.add(new LdapSetAttributeResult(item, null, null, new LdapConnectorException(t)))
+                        return
+                    }
+                } else {
+                    List<DirContextAdapter> found = item.pkey ? entriesByPkey[item.pkey.toLowerCase()] : null
+                    DirContextAdapter entry = found?.find { reqCtx.objectDef.acceptAsExistingDn(it.dn.toString()) }
+                    if (!entry) {
+                        Throwable notFound = searchException ?: new ConnectorObjectNotFoundException("not found: primaryKey=$item.pkey")
+                        unresolved.add(new LdapSetAttributeResult(item, null, null, new LdapConnectorException(notFound)))
+                        return
+                    }
+                    dn = entry.dn
+                    foundMethod = found.size() > 1 ? FoundObjectMethod.BY_FIRST_FOUND : FoundObjectMethod.BY_MATCHED_KEY_DN_NOT_PROVIDED
+                }
+                operations.add({
+                    setAttributeOnEntry(parallelReqCtx, item, foundMethod, dn, attributeName, useRemoveAndAddApproach)
+                } as Closure<LdapSetAttributeResult>)
+                operationItems.add(item)
+            }
+            List<Future<LdapSetAttributeResult>> futures = submitParallel(operations, reqCtx.deadline)
+
+            unresolved.each { LdapSetAttributeResult result ->
+                deliverSetAttributeEventMessage(reqCtx, result, attributeName, null)
+                resultConsumer.accept(result)
+            }
+            [operationItems, futures].transpose().each { LdapSetAttributeItem item, Future<LdapSetAttributeResult> future ->
+                LdapSetAttributeResult result
+                try {
+                    result = future.get()
+                }
+                catch (java.util.concurrent.ExecutionException e) {
+                    // the item didn't get a concurrency slot
+                    result = new LdapSetAttributeResult(item, null, null, (e.cause instanceof LdapConnectorException ? e.cause : new LdapConnectorException(e.cause)))
+                    deliverSetAttributeEventMessage(reqCtx, result, attributeName, null)
+                }
+                resultConsumer.accept(result)
+            }
+        }
+    }
+
+    // Sets the attribute of an item.  The entry of an item with a DN is
+    // found here, in the attempt, rather than by the batch search.
+    private LdapSetAttributeResult setAttributeOnEntry(LdapRequestContext reqCtx, LdapSetAttributeItem item, FoundObjectMethod foundMethod, Name dn, String attributeName, boolean useRemoveAndAddApproach) {
+        ModificationItem[] modificationItems = null
+        FoundObjectMethod entryFoundMethod = foundMethod
+        Name entryDn = (item.dn ? null : dn)
+        Throwable exception = null
+        int attempt = 0
+        try {
+            executeWithRetry {
+                withRetryRequestContext(reqCtx, ++attempt > 1) { LdapRequestContext attemptReqCtx ->
+                    if (item.dn) {
+                        DirContextAdapter entry
+                        if (item.pkey) {
+                            MatchingEntryResult matchingEntryResult = findMatchingEntry(attemptReqCtx, dn, item.pkey, null)
+                            entry = matchingEntryResult?.entry
+                            entryFoundMethod = matchingEntryResult?.foundObjectMethod
+                        } else {
+                            try {
+                                entry = lookup(readRequestContext(attemptReqCtx, [], dn), dn)
+                            }
+                            catch (NameNotFoundException ignored) {
+                                entry = null
+                            }
+                        }
+                        if (!entry) {
+                            throw new ConnectorObjectNotFoundException("not found: dn=$dn, primaryKey=$item.pkey")
+                        }
+                        entryDn = entry.dn
+                    }
+                    // The DirContext is used directly for write-only
+                    // attributes, as in setAttribute().  Each worker thread
+                    // uses its own context.
+                    DirContext dirctx = attemptReqCtx.ldapTemplate.contextSource.readWriteContext
+                    try {
+                        recordWrite(attemptReqCtx.objectDef, item.pkey, entryDn)
+                        modificationItems = modifyAttributeValue(dirctx, entryDn, attributeName, item.value, useRemoveAndAddApproach, item.oldValue)
+                    }
+                    finally {
+                        dirctx.close()
+                    }
+                }
+            }
+        }
+        catch (Throwable t) {
+            exception = (t instanceof LdapConnectorException ? t : new LdapConnectorException(t))
+        }
+        LdapSetAttributeResult result = new LdapSetAttributeResult(item, entryDn?.toString(), entryFoundMethod, exception)
+        deliverSetAttributeEventMessage(reqCtx, result, attributeName, modificationItems)
+        return result
+    }
+
+    private void deliverSetAttributeEventMessage(LdapRequestContext reqCtx, LdapSetAttributeResult result, String attributeName, ModificationItem[] modificationItems) {
+        deliverCallbackMessage(new LdapSetAttributeEventMessage(
+                success: result.success,
+                eventId: reqCtx.eventId,
+                objectDef: reqCtx.objectDef,
+                context: reqCtx.context,
+                foundMethod: result.foundMethod,
+                pkey: result.item.pkey,
+                attributeName: attributeName,
+                attributeValue: result.item.value,
+                dn: result.dn ?: result.item.dn,
+                modificationItems: modificationItems,
+                exception: result.exception
+        ))
+    }
+
+    /**
+     * Search for the entries of many primary keys with one search that ORs
+     * the primary key filters of the object definition.  The search uses
+     * the base and scope of the primary key query of the first primary
+     * key, routed to the object definition's search bases as for
+     * {@link #searchByPrimaryKey}.
+     *
+     * @param reqCtx Context for the request
+     * @param pkeys The primary keys
+     * @param attributes The attributes to return, which must include the
+     *        primary key attribute, or null for all attributes
+     * @param isPrimaryRead If true, the entries are read with reqCtx
+     *        rather than with the request context of
+     *        {@link #readRequestContext}
+     * @return The found entries, keyed by the lower case value of their
+     *         primary key attribute
+     * @throws LdapConnectorException If the object definition doesn't
+     *         support searching by primary key
+     */
+    protected Map<String, List<DirContextAdapter>> searchByPrimaryKeyBatch(LdapRequestContext reqCtx, Collection<String> pkeys, String[] attributes, boolean isPrimaryRead = false) throws LdapConnectorException {
+        OrFilter filter = new OrFilter()
+        LdapQuery firstQuery = null
+        pkeys.each { String pkey ->
+            LdapQuery pkeyQuery = reqCtx.objectDef.getLdapQueryForPrimaryKey(pkey)
+            if (!pkeyQuery) {
+                throw new LdapConnectorException("The object definition does not support searching by primary key")
+            }
+            firstQuery = firstQuery ?: pkeyQuery
+            filter.or(pkeyQuery.filter())
+        }
+        if (!firstQuery) {
+            return [:]
+        }
+        LdapQueryBuilder queryBuilder = LdapQueryBuilder.query()
+        if (firstQuery.searchScope()) {
+            queryBuilder.searchScope(firstQuery.searchScope())
+        }
+        if (firstQuery.base()) {
+            queryBuilder.base(firstQuery.base())
+        }
+        if (attributes) {
+            queryBuilder.attributes(attributes)
+        }
+        List<DirContextAdapter> results = searchObjectDefinitionBases(isPrimaryRead ? reqCtx : readRequestContext(reqCtx, pkeys, null), queryBuilder.filter(filter))
+        Map<String, List<DirContextAdapter>> entriesByPkey = [:]
+        results.each { DirContextAdapter entry ->
+            entry.getStringAttributes(reqCtx.objectDef.primaryKeyAttributeName)?.each { String pkeyValue ->
+                entriesByPkey.computeIfAbsent(pkeyValue.toLowerCase()) { [] }.add(entry)
+            }
+        }
+        return entriesByPkey
+    }
+
     /**
      * If objectDef indicates that case sensitive DN checking is enabled,
      * then the attribute values of name1 and name2 are checked with case
@@ -1665,6 +3891,22 @@ class LdapConnector implements Connector {
         }
     }
 
+    /**
+     * Same as {@link #nameEquals} but the names are compared using the
+     * precomputed normalized forms of their interned {@link CanonicalDn}s.
+     *
+     * @param objectDef Object definition
+     * @param name1 Left name to check for equality
+     * @param name2 Left name to check for equality
+     * @return true if name1 and name2 are considered equivalent
+     */
+    boolean dnEquals(LdapObjectDefinition objectDef, Name name1, Name name2) {
+        if (name1 == null || name2 == null) {
+            return nameEquals(objectDef, name1, name2)
+        }
+        return canonicalDn(name1).equals(canonicalDn(name2), objectDef.caseSensitiveDnCheckingEnabled)
+    }
+
     /**
      * {@link Name#equals} is not case sensitive.  This method will do an
      * equality check on name1 and name2 (typically both {@link LdapName}s)
@@ -1693,16 +3935,9 @@ class LdapConnector implements Connector {
             return false
         }
         if (name1 instanceof LdapName && name2 instanceof LdapName) {
-            def name1Map = name1.rdns.collectEntries { Rdn rdn ->
-                // rdn.type is the attribute name and we store it lower case
-                // to make it case insensitive when we compare maps
-                [rdn.type.toLowerCase(), rdn.value]
-            }
-            def name2Map = name2.rdns.collectEntries { Rdn rdn ->
-                [rdn.type.toLowerCase(), rdn.value]
-            }
-            return name1Map == name2Map
-
+            // The canonical form lower cases rdn.type, the attribute name,
+            // but leaves the attribute value case intact.
+            return CanonicalDn.valueOf(name1).equals(CanonicalDn.valueOf(name2), true)
         } else {
             // not both LdapNames - use toString() to compare
             return name1.toString() == name2.toString()
@@ -1724,33 +3959,429 @@ class LdapConnector implements Connector {
     /**
      * @return true if there was at least one group membership modification
      */
-    @SuppressWarnings("GrMethodMayBeStatic")
     protected boolean doGroupMembershipChanges(LdapRequestContext reqCtx, List<String> requestedGroupAdditions, List<String> requestedGroupRemovals, DirContextAdapter existingEntry) {
+        return doGroupMembershipChanges(reqCtx, null, requestedGroupAdditions, requestedGroupRemovals, existingEntry)
+    }
+
+    /**
+     * If there is a groupMembershipCoalescer, the changes are queued
+     * rather than written immediately.
+     *
+     * @return true if there was at least one group membership modification
+     */
+    protected boolean doGroupMembershipChanges(LdapRequestContext reqCtx, String pkey, List<String> requestedGroupAdditions, List<String> requestedGroupRemovals, DirContextAdapter existingEntry) {
+        return doGroupMembershipChanges(reqCtx, pkey, requestedGroupAdditions, requestedGroupRemovals, existingEntry, null)
+    }
+
+    /**
+     * Directives that wouldn't change the group are skipped.  Whether the
+     * entry is a member is taken from the change of the
+     * groupMembershipCoalescer that is queued and not yet written, if there
+     * is one, and from the entry's memberOf attribute otherwise.
+     *
+     * @param existingGroupMemberships The groups the entry is a member of,
+     *        as returned by {@link #getExistingGroupMemberships}, so that
+     *        they are looked up once per persist rather than once per call.
+     *        Updated with the changes made.  If null, they are looked up
+     *        when needed.
+     * @return true if there was at least one group membership modification
+     */
+    protected boolean doGroupMembershipChanges(
+            LdapRequestContext reqCtx,
+            String pkey,
+            List<String> requestedGroupAdditions,
+            List<String> requestedGroupRemovals,
+            DirContextAdapter existingEntry,
+            Set<CanonicalDn> existingGroupMemberships
+    ) {
+        LdapGroupMembershipCoalescer coalescer = groupMembershipCoalescer
+        if (reqCtx.objectDef.memberOfAttributeName && (requestedGroupAdditions || requestedGroupRemovals)) {
+            // Skip directives that wouldn't change the group
+            Set<CanonicalDn> memberships = existingGroupMemberships != null ? existingGroupMemberships : getExistingGroupMemberships(reqCtx, existingEntry)
+            Closure<Boolean> isMember = { String groupDN ->
+                // memberOf doesn't show the changes the coalescer hasn't
+                // written yet
+                LdapGroupMembershipEventMessage.Operation pendingOperation = coalescer?.getPendingOperation(buildDnName(groupDN), existingEntry.dn.toString())
+                return pendingOperation ? pendingOperation == LdapGroupMembershipEventMessage.Operation.ADD : memberships.contains(canonicalDn(groupDN))
+            }
+            requestedGroupAdditions = requestedGroupAdditions?.findAll { String groupDN -> !isMember(groupDN) }
+            requestedGroupRemovals = requestedGroupRemovals?.findAll { String groupDN -> isMember(groupDN) }
+            requestedGroupAdditions?.each { String groupDN -> memberships.add(canonicalDn(groupDN)) }
+            requestedGroupRemovals?.each { String groupDN -> memberships.remove(canonicalDn(groupDN)) }
+        }
         requestedGroupAdditions?.each { String groupDN ->
-            addDnToGroup(reqCtx, existingEntry.dn.toString(), buildDnName(groupDN))
+            if (coalescer) {
+                coalescer.enqueue(reqCtx, pkey, existingEntry.dn.toString(), buildDnName(groupDN), LdapGroupMembershipEventMessage.Operation.ADD)
+            } else {
+                addDnToGroup(reqCtx, existingEntry.dn.toString(), buildDnName(groupDN))
+            }
         }
         requestedGroupRemovals?.each { String groupDN ->
-            removeDnFromGroup(reqCtx, existingEntry.dn.toString(), buildDnName(groupDN))
+            if (coalescer) {
+                coalescer.enqueue(reqCtx, pkey, existingEntry.dn.toString(), buildDnName(groupDN), LdapGroupMembershipEventMessage.Operation.REMOVE)
+            } else {
+                removeDnFromGroup(reqCtx, existingEntry.dn.toString(), buildDnName(groupDN))
+            }
         }
         return requestedGroupAdditions || requestedGroupRemovals
     }
 
-    @SuppressWarnings("GrMethodMayBeStatic")
+    /**
+     * Set the full member list of a group.  The current members are read
+     * once and compared with the desired members using a {@link
+     * LdapDnDictionary} of int ids, so that the member lists of large
+     * groups don't need to be held as sets of strings.  The differences are
+     * then applied in modifications of at most chunkSize values, additions
+     * before removals so that a group that requires a member never becomes
+     * empty.  The modifications are retried, limited and guarded like
+     * other writes.  If a chunk fails because of one of its values, its
+     * members are applied one at a time.  The members that fail are
+     * reported in the result.
+     * <p>
+     * Each member change is also reported to the
+     * groupMembershipEventCallbacks, if there are any.
+     *
+     * @param reqCtx Context for the request
+     * @param groupDn The DN of the group
+     * @param desiredMemberDns The DNs of all the desired members.  May be
+     *        streamed rather than held in memory.
+     * @param chunkSize The maximum number of values per modification
+     * @return The members that were added, removed or failed
+     * @throws LdapConnectorException If the members could not be read
+     */
+    LdapGroupReconciliationResult reconcileGroupMembers(
+            LdapRequestContext reqCtx,
+            Name groupDn,
+            Iterator<String> desiredMemberDns,
+            int chunkSize = 1000
+    ) throws LdapConnectorException {
+        LdapDnDictionary dictionary = new LdapDnDictionary()
+        IntHashSet currentMembers = new IntHashSet()
+        IntHashSet desiredMembers = new IntHashSet()
+        try {
+            readGroupMembers(reqCtx, groupDn) { String memberDn ->
+                currentMembers.add(dictionary.add(memberDn))
+            }
+            while (desiredMemberDns.hasNext()) {
+                desiredMembers.add(dictionary.add(desiredMemberDns.next()))
+            }
+        }
+        catch (Throwable t) {
+            throw new LdapConnectorException(t)
+        }
+
+        LdapGroupReconciliationResult result = new LdapGroupReconciliationResult(groupDn.toString())
+        int unchangedCount = 0
+        List<String> chunk = []
+        PrimitiveIterator.OfInt desiredIterator = desiredMembers.iterator()
+        while (desiredIterator.hasNext()) {
+            int id = desiredIterator.nextInt()
+            if (currentMembers.contains(id)) {
+                unchangedCount++
+            } else {
+                chunk.add(dictionary.getDn(id))
+                if (chunk.size() >= chunkSize) {
+                    applyGroupMemberChunk(reqCtx, groupDn, LdapGroupMembershipEventMessage.Operation.ADD, chunk, result)
+                    chunk = []
+                }
+            }
+        }
+        if (chunk) {
+            applyGroupMemberChunk(reqCtx, groupDn, LdapGroupMembershipEventMessage.Operation.ADD, chunk, result)
+            chunk = []
+        }
+        PrimitiveIterator.OfInt currentIterator = currentMembers.iterator()
+        while (currentIterator.hasNext()) {
+            int id = currentIterator.nextInt()
+            if (!desiredMembers.contains(id)) {
+                chunk.add(dictionary.getDn(id))
+                if (chunk.size() >= chunkSize) {
+                    applyGroupMemberChunk(reqCtx, groupDn, LdapGroupMembershipEventMessage.Operation.REMOVE, chunk, result)
+                    chunk = []
+                }
+            }
+        }
+        if (chunk) {
+            applyGroupMemberChunk(reqCtx, groupDn, LdapGroupMembershipEventMessage.Operation.REMOVE, chunk, result)
+        }
+        result.unchangedCount = unchangedCount
+        return result
+    }
+
+    /**
+     * Read the member DNs of a group.
+     *
+     * @param reqCtx Context for the request
+     * @param groupDn The DN of the group
+     * @param memberConsumer Called with each member DN
+     */
+    protected void readGroupMembers(LdapRequestContext reqCtx, Name groupDn, Closure memberConsumer) {
+        readAttributeValues(reqCtx, groupDn, reqCtx.objectDef.groupMemberAttributeName) { Object memberDn ->
+            memberConsumer(memberDn.toString())
+        }
+    }
+
+    /**
+     * Read all the values of an attribute, one range at a time if the
+     * server returns ranged values (<code>attr;range=low-high</code>) or
+     * if the object definition has an attributeValueRangeSize.  Only one
+     * range of values is held in memory at a time.
+     *
+     * @param reqCtx Context for the request
+     * @param dn The DN of the entry
+     * @param attributeName The attribute name, without a range option
+     * @param valueConsumer Called with each value
+     */
+    protected void readAttributeValues(LdapRequestContext reqCtx, Name dn, String attributeName, Closure valueConsumer) {
+        int rangeSize = reqCtx.objectDef.attributeValueRangeSize
+        String requestedId = rangeSize > 0 ? "$attributeName;range=0-${rangeSize - 1}" : attributeName
+        boolean isFirstRange = true
+        while (requestedId) {
+            Attribute attr = findRangedAttribute(lookup(reqCtx, dn, [requestedId] as String[]).attributes, attributeName)
+            requestedId = null
+            if (!attr && isFirstRange && rangeSize > 0) {
+                // the server doesn't support range options: read the
+                // attribute without one
+                rangeSize = 0
+                requestedId = attributeName
+                continue
+            }
+            isFirstRange = false
+            attr?.all?.each(valueConsumer)
+            long[] range = attr ? parseAttributeValueRange(attr.ID) : null
+            if (range && range[1] >= 0) {
+                // not the last range
+                long low = range[1] + 1
+                requestedId = rangeSize > 0 ? "$attributeName;range=$low-${low + rangeSize - 1}" : "$attributeName;range=$low-*"
+            }
+        }
+    }
+
+    /**
+     * Compare the values of a ranged attribute (<code>attr;range=low-high</code>)
+     * of an existing entry with the desired values.  The existing values
+     * are streamed one range at a time with {@link #readAttributeValues},
+     * so memory grows with the number of desired values and the number of
+     * values to remove, not with the size of the attribute.
+     *
+     * @param reqCtx Context for the request
+     * @param dn The DN of the existing entry
+     * @param attributeName The attribute name, without a range option
+     * @param desiredValues The desired values of the attribute
+     * @return The modifications that remove the values that are not
+     *         desired and then add the desired values that are missing
+     */
+    protected List<ModificationItem> diffRangedAttribute(LdapRequestContext reqCtx, Name dn, String attributeName, Collection desiredValues) {
+        // keyed by normalized value
+        Map<Object, Object> desired = new LinkedHashMap<Object, Object>()
+        desiredValues.each { Object value ->
+            desired.put(schemaCodec ? schemaCodec.normalize(attributeName, value, false) : value, value)
+        }
+        Set<Object> present = new HashSet<Object>()
+        BasicAttribute removals = new BasicAttribute(attributeName)
+        readAttributeValues(reqCtx, dn, attributeName) { Object value ->
+            Object key = schemaCodec ? schemaCodec.normalize(attributeName, value, false) : value
+            if (desired.containsKey(key)) {
+                present.add(key)
+            } else {
+                removals.add(value)
+            }
+        }
+        BasicAttribute additions = new BasicAttribute(attributeName)
+        desired.each { Object key, Object value ->
+            if (!present.contains(key)) {
+                additions.add(value)
+            }
+        }
+        List<ModificationItem> mods = []
+        if (removals.size()) {
+            mods.add(new ModificationItem(DirContext.REMOVE_ATTRIBUTE, removals))
+        }
+        if (additions.size()) {
+            mods.add(new ModificationItem(DirContext.ADD_ATTRIBUTE, additions))
+        }
+        return mods
+    }
+
+    /**
+     * @return The attribute with the given name, either with or without a
+     * range option.
+     */
+    private static Attribute findRangedAttribute(Attributes attributes, String attributeName) {
+        return (Attribute) attributes.all.find { Attribute attr ->
+            attr.ID.equalsIgnoreCase(attributeName) || (attr.ID.toLowerCase().startsWith("${attributeName.toLowerCase()};range=") && parseAttributeValueRange(attr.ID) != null)
+        }
+    }
+
+    /**
+     * Parse the range option of an attribute ID, such as
+     * <code>member;range=0-1499</code> or <code>member;range=1500-*</code>.
+     *
+     * @return An array of the low and high values of the range, where the
+     *         high value is -1 for the last range, or null if the attribute
+     *         ID has no range option.
+     */
+    protected static long[] parseAttributeValueRange(String attributeId) {
+        int rangeIndex = attributeId.toLowerCase().indexOf(";range=")
+        if (rangeIndex < 0) {
+            return null
+        }
+        String range = attributeId.substring(rangeIndex + ";range=".length())
+        int dashIndex = range.indexOf('-')
+        if (dashIndex < 0) {
+            return null
+        }
+        try {
+            long low = Long.parseLong(range.substring(0, dashIndex))
+            String high = range.substring(dashIndex + 1)
+            return [low, high == "*" ? -1L : Long.parseLong(high)] as long[]
+        }
+        catch (NumberFormatException ignored) {
+            return null
+        }
+    }
+
+    /**
+     * Apply a chunk of member changes to a group in one modification.  The
+     * modification is a write like persist(): it is retried, limited and
+     * guarded by the circuitBreaker with {@link #executeWithRetry}.  If it
+     * fails because of one of its values, such as a member that is
+     * already in the group, the members are applied one at a time.  Other
+     * failures, such as a lost connection, fail the whole chunk.
+     */
+    private void applyGroupMemberChunk(LdapRequestContext reqCtx, Name groupDn, LdapGroupMembershipEventMessage.Operation operation, List<String> memberDns, LdapGroupReconciliationResult result) {
+        int modOp = operation == LdapGroupMembershipEventMessage.Operation.ADD ? DirContext.ADD_ATTRIBUTE : DirContext.REMOVE_ATTRIBUTE
+        List<String> succeeded = operation == LdapGroupMembershipEventMessage.Operation.ADD ? result.addedMemberDns : result.removedMemberDns
+        try {
+            BasicAttribute values = new BasicAttribute(reqCtx.objectDef.groupMemberAttributeName)
+            memberDns.each { values.add(it) }
+            modifyGroupMembers(reqCtx, groupDn, new ModificationItem(modOp, values))
+            succeeded.addAll(memberDns)
+            memberDns.each { reportGroupMemberChange(reqCtx, groupDn, it, operation, null) }
+        }
+        catch (Exception e) {
+            if (!isValueError(e)) {
+                LdapConnectorException exception = (e instanceof LdapConnectorException ? (LdapConnectorException) e : new LdapConnectorException(e))
+                memberDns.each { String memberDn ->
+                    result.failedMemberDns.put(memberDn, exception)
+                    reportGroupMemberChange(reqCtx, groupDn, memberDn, operation, exception)
+                }
+                return
+            }
+            log.debug("Modification of ${memberDns.size()} members of $groupDn failed, retrying one member at a time", e)
+            memberDns.each { String memberDn ->
+                Throwable exception = null
+                try {
+                    modifyGroupMembers(reqCtx, groupDn, new ModificationItem(modOp, new BasicAttribute(reqCtx.objectDef.groupMemberAttributeName, memberDn)))
+                    succeeded.add(memberDn)
+                }
+                catch (Exception memberException) {
+                    exception = (memberException instanceof LdapConnectorException ? memberException : new LdapConnectorException(memberException))
+                    result.failedMemberDns.put(memberDn, exception)
+                }
+                reportGroupMemberChange(reqCtx, groupDn, memberDn, operation, exception)
+            }
+        }
+    }
+
+    private void modifyGroupMembers(LdapRequestContext reqCtx, Name groupDn, ModificationItem mod) {
+        int attempt = 0
+        executeWithRetry {
+            withRetryRequestContext(reqCtx, ++attempt > 1) { LdapRequestContext attemptReqCtx ->
+                ModificationItem[] mods = [mod] as ModificationItem[]
+                if (!modifyAttributesPermissively(attemptReqCtx.ldapTemplate, groupDn, mods)) {
+                    attemptReqCtx.ldapTemplate.modifyAttributes(groupDn, mods)
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if a modification failed because of one of its values
+     *         (LDAP result codes 16, no such attribute, 20, attribute or
+     *         value exists, and 21, invalid attribute syntax) rather than
+     *         because of the directory or the connection
+     */
+    protected static boolean isValueError(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.cause) {
+            if (cause instanceof javax.naming.directory.AttributeInUseException || cause instanceof javax.naming.directory.NoSuchAttributeException ||
+                    cause instanceof javax.naming.directory.InvalidAttributeValueException ||
+                    cause instanceof org.springframework.ldap.AttributeInUseException || cause instanceof org.springframework.ldap.NoSuchAttributeException ||
+                    cause instanceof org.springframework.ldap.InvalidAttributeValueException) {
+                return true
+            }
+            Integer resultCode = LdapConnectorException.parseLdapErrorCode(cause.message)
+            if (resultCode in [16, 20, 21]) {
+                return true
+            }
+        }
+        return false
+    }
+
+    private void reportGroupMemberChange(LdapRequestContext reqCtx, Name groupDn, String memberDn, LdapGroupMembershipEventMessage.Operation operation, Throwable exception) {
+        if (groupMembershipEventCallbacks) {
+            deliverCallbackMessage(new LdapGroupMembershipEventMessage(
+                    success: exception == null,
+                    eventId: reqCtx.eventId,
+                    objectDef: reqCtx.objectDef,
+                    context: reqCtx.context,
+                    groupDn: groupDn.toString(),
+                    memberDn: memberDn,
+                    operation: operation,
+                    exception: exception
+            ))
+        }
+    }
+
+    /**
+     * Get the groups an entry is a member of from the object definition's
+     * memberOfAttributeName attribute.  The attribute is looked up if it's
+     * not in the existing entry.
+     *
+     * @param reqCtx Context for the request
+     * @param existingEntry The member entry
+     * @return The DNs of the groups the entry is a member of
+     */
+    protected Set<CanonicalDn> getExistingGroupMemberships(LdapRequestContext reqCtx, DirContextAdapter existingEntry) {
+        String memberOfAttributeName = reqCtx.objectDef.memberOfAttributeName
+        Set<CanonicalDn> memberships = new HashSet<CanonicalDn>()
+        Attribute attr = existingEntry.attributes.get(memberOfAttributeName)
+        if (attr != null && reqCtx.objectDef.attributeValueRangeSize <= 0) {
+            attr.all.each { Object groupDN ->
+                memberships.add(canonicalDn(groupDN.toString()))
+            }
+        } else {
+            // memberOf attributes are usually operational and only returned
+            // when requested, and may be ranged
+            readAttributeValues(reqCtx, existingEntry.dn, memberOfAttributeName) { Object groupDN ->
+                memberships.add(canonicalDn(groupDN.toString()))
+            }
+        }
+        return memberships
+    }
+
     void addDnToGroup(LdapRequestContext reqCtx, String memberDN, Name groupDN) throws LdapConnectorException {
         try {
-            ModificationItem mod = new ModificationItem(DirContext.ADD_ATTRIBUTE, new BasicAttribute(reqCtx.objectDef.groupMemberAttributeName, memberDN))
-            reqCtx.ldapTemplate.modifyAttributes(groupDN, [mod] as ModificationItem[])
+            ModificationItem[] mods = [new ModificationItem(DirContext.ADD_ATTRIBUTE, new BasicAttribute(reqCtx.objectDef.groupMemberAttributeName, memberDN))] as ModificationItem[]
+            // With the Permissive Modify control, adding an existing member
+            // doesn't fail
+            if (!modifyAttributesPermissively(reqCtx.ldapTemplate, groupDN, mods)) {
+                reqCtx.ldapTemplate.modifyAttributes(groupDN, mods)
+            }
         }
         catch (Throwable t) {
             throw new LdapConnectorException(t)
         }
     }
 
-    @SuppressWarnings("GrMethodMayBeStatic")
     void removeDnFromGroup(LdapRequestContext reqCtx, String memberDN, Name groupDN) throws LdapConnectorException {
         try {
-            ModificationItem mod = new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute(reqCtx.objectDef.groupMemberAttributeName, memberDN))
-            reqCtx.ldapTemplate.modifyAttributes(groupDN, [mod] as ModificationItem[])
+            ModificationItem[] mods = [new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute(reqCtx.objectDef.groupMemberAttributeName, memberDN))] as ModificationItem[]
+            // With the Permissive Modify control, removing a missing member
+            // doesn't fail
+            if (!modifyAttributesPermissively(reqCtx.ldapTemplate, groupDN, mods)) {
+                reqCtx.ldapTemplate.modifyAttributes(groupDN, mods)
+            }
         }
         catch (Throwable t) {
             throw new LdapConnectorException(t)
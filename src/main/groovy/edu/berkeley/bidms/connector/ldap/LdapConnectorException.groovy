@@ -39,7 +39,7 @@ import java.util.regex.Pattern
  */
 @InheritConstructors
 class LdapConnectorException extends ConnectorException {
-    private Pattern ldapErrorCodePattern = Pattern.compile("error code (\\d+)")
+    private static final Pattern ldapErrorCodePattern = Pattern.compile("error code (\\d+)")
     private Pattern adErrorCodePattern = Pattern.compile("error code (\\d+) - ([0-9A-F]+)")
 
     private NamingException _namingException
@@ -76,18 +76,31 @@ class LdapConnectorException extends ConnectorException {
 
     Integer getLdapErrorCode() {
         if (ldapErrorCode == null && getNamingException() && getNamingException().message) {
-            // Unfortunately, Java doesn't provide any way to extract the
-            // LDAP error code from the NamingException other than to parse
-            // the exception string.
-            Matcher m = ldapErrorCodePattern.matcher(cause.message)
-            if (m.find()) {
-                this.ldapErrorCode = m.group(1) as Integer
-            }
+            this.ldapErrorCode = parseLdapErrorCode(cause.message)
         }
 
         return ldapErrorCode
     }
 
+    /**
+     * Unfortunately, Java doesn't provide any way to extract the LDAP
+     * error code from a NamingException other than to parse the exception
+     * string.
+     *
+     * @param message The message of a NamingException
+     * @return The LDAP error code in the message, or null if there isn't
+     *         one
+     */
+    static Integer parseLdapErrorCode(String message) {
+        if (message) {
+            Matcher m = ldapErrorCodePattern.matcher(message)
+            if (m.find()) {
+                return m.group(1) as Integer
+            }
+        }
+        return null
+    }
+
     String getLdapErrorMessage() {
         if (getNamingException()) {
             return getNamingException().message
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.bidms.connector.ldap
+
+import groovy.util.logging.Slf4j
+import org.springframework.dao.EmptyResultDataAccessException
+import org.springframework.ldap.NameNotFoundException
+import org.springframework.ldap.core.DirContextAdapter
+import org.springframework.ldap.query.LdapQuery
+import org.springframework.ldap.query.LdapQueryBuilder
+import org.springframework.ldap.query.SearchScope
+import org.springframework.ldap.support.LdapUtils
+
+import javax.naming.Name
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Tries the cheapest available key first: a base object search of the
+ * requested DN, then a search by globally unique identifier, and only
+ * then the subtree search by primary key of
+ * {@link LdapPrimaryKeyFirstEntryMatchingStrategy}.
+ * <p>
+ * The DN is searched with the primary key filter of the object
+ * definition, so a hit is exactly an entry the primary key search would
+ * have classified as {@link FoundObjectMethod#BY_DN_MATCHED_KEY}.  The
+ * globally unique identifier query also requires the primary key, so a
+ * hit is one of the entries the primary key search would have found.  The
+ * primary key strategy prefers an entry of the primary key at the
+ * requested DN over it, so a hit is only used when it is at the requested
+ * DN, when no DN was requested or when the DN step found no such entry.
+ * Otherwise the primary key strategy decides, so results are the same as
+ * that strategy's.
+ * <p>
+ * When objectDef.isRemoveDuplicatePrimaryKeys() returns true, all
+ * entries of the primary key are needed, so the primary key strategy is
+ * used directly.
+ * <p>
+ * Statistics are kept per object definition.  When the DN step has been
+ * tried minSamples times and finds the entry less often than
+ * minDnHitRate, such as when DNs are usually renamed, it is skipped except
+ * for every probeInterval'th request.
+ */
+@Slf4j
+class LdapCostBasedEntryMatchingStrategy implements LdapEntryMatchingStrategy {
+    /**
+     * The number of DN attempts before the hit rate is used to skip the DN
+     * step.
+     */
+    long minSamples = 100
+
+    /**
+     * The DN step is skipped when its hit rate is below this.
+     */
+    double minDnHitRate = 0.1
+
+    /**
+     * A skipped DN step is still tried every this many requests so that
+     * the hit rate keeps up to date.
+     */
+    long probeInterval = 20
+
+    LdapEntryMatchingStrategy fallbackStrategy = new LdapPrimaryKeyFirstEntryMatchingStrategy()
+
+    private final Map<LdapObjectDefinition, LdapEntryMatchingStatistics> statistics = new ConcurrentHashMap<LdapObjectDefinition, LdapEntryMatchingStatistics>()
+    private final AtomicLong requestCount = new AtomicLong()
+
+    /**
+     * @return The statistics of the object definition.
+     */
+    LdapEntryMatchingStatistics getStatistics(LdapObjectDefinition objectDef) {
+        return statistics.computeIfAbsent(objectDef) { new LdapEntryMatchingStatistics() }
+    }
+
+    @Override
+    LdapConnector.MatchingEntryResult findMatchingEntry(LdapConnector ldapConnector, LdapRequestContext reqCtx, Name dn, String pkey, Object uniqueIdentifier) {
+        LdapEntryMatchingStatistics stats = getStatistics(reqCtx.objectDef)
+        LdapConnector.MatchingEntryResult result = null
+        LdapQuery pkeyQuery = (pkey != null && !reqCtx.objectDef.isRemoveDuplicatePrimaryKeys() ? reqCtx.objectDef.getLdapQueryForPrimaryKey(pkey) : null)
+        if (pkeyQuery) {
+            // true once it is known that no entry of the primary key is at
+            // the requested DN
+            boolean isDnRuledOut = true
+            if (dn && ldapConnector.routeQuery(reqCtx.objectDef, pkeyQuery).any { isDnWithinQuery(dn, it) }) {
+                isDnRuledOut = false
+                if (isDnStepWorthTrying(stats)) {
+                    DirContextAdapter entry = searchDnByPrimaryKey(ldapConnector, ldapConnector.readRequestContext(reqCtx, [pkey], dn), dn, pkeyQuery)
+                    stats.recordAttempt(LdapEntryMatchingStatistics.Step.DN, entry != null)
+                    if (entry) {
+                        result = new LdapConnector.MatchingEntryResult(entry: entry, foundObjectMethod: FoundObjectMethod.BY_DN_MATCHED_KEY)
+                    } else {
+                        isDnRuledOut = true
+                    }
+                }
+            }
+            if (!result && uniqueIdentifier) {
+                DirContextAdapter entry = null
+                try {
+                    entry = ldapConnector.lookupByGloballyUniqueIdentifier(reqCtx, pkey, uniqueIdentifier)
+                }
+                catch (EmptyResultDataAccessException ignored) {
+                    // no-op
+                }
+                stats.recordAttempt(LdapEntryMatchingStatistics.Step.GLOBALLY_UNIQUE_IDENTIFIER, entry != null)
+                if (entry && dn && ldapConnector.canonicalDn(entry.dn) == ldapConnector.canonicalDn(dn)) {
+                    result = new LdapConnector.MatchingEntryResult(entry: entry, foundObjectMethod: FoundObjectMethod.BY_DN_MATCHED_KEY)
+                } else if (entry && isDnRuledOut) {
+                    result = new LdapConnector.MatchingEntryResult(entry: entry, foundObjectMethod: (dn ? FoundObjectMethod.BY_MATCHED_KEY_DN_MISMATCH : FoundObjectMethod.BY_MATCHED_KEY_DN_NOT_PROVIDED))
+                }
+            }
+        }
+        if (!result) {
+            result = fallbackStrategy.findMatchingEntry(ldapConnector, reqCtx, dn, pkey, uniqueIdentifier)
+            if (pkeyQuery) {
+                stats.recordAttempt(LdapEntryMatchingStatistics.Step.PRIMARY_KEY, result.entry != null)
+            }
+        }
+        stats.recordResult(result.entry ? result.foundObjectMethod : null)
+        return result
+    }
+
+    private boolean isDnStepWorthTrying(LdapEntryMatchingStatistics stats) {
+        if (stats.getAttempts(LdapEntryMatchingStatistics.Step.DN) < minSamples || stats.getHitRate(LdapEntryMatchingStatistics.Step.DN) >= minDnHitRate) {
+            return true
+        }
+        return requestCount.incrementAndGet() % Math.max(1L, probeInterval) == 0
+    }
+
+    /**
+     * The primary key search would only find the DN if it is in the scope
+     * of one of the routed primary key queries.
+     */
+    private static boolean isDnWithinQuery(Name dn, LdapQuery pkeyQuery) {
+        Name base = pkeyQuery.base() ?: LdapUtils.emptyLdapName()
+        switch (pkeyQuery.searchScope() ?: SearchScope.SUBTREE) {
+            case SearchScope.OBJECT:
+                return dn == base
+            case SearchScope.ONELEVEL:
+                return dn.size() == base.size() + 1 && dn.startsWith(base)
+            default:
+                return dn.startsWith(base)
+        }
+    }
+
+    private static DirContextAdapter searchDnByPrimaryKey(LdapConnector ldapConnector, LdapRequestContext reqCtx, Name dn, LdapQuery pkeyQuery) {
+        LdapQueryBuilder queryBuilder = LdapQueryBuilder.query().base(dn).searchScope(SearchScope.OBJECT)
+        if (pkeyQuery.attributes()) {
+            queryBuilder.attributes(pkeyQuery.attributes())
+        }
+        try {
+            List<DirContextAdapter> results = reqCtx.ldapTemplate.search(queryBuilder.filter(pkeyQuery.filter()), ldapConnector.toDirContextAdapterContextMapper)
+            return results ? results.first() : null
+        }
+        catch (NameNotFoundException ignored) {
+            return null
+        }
+    }
+}
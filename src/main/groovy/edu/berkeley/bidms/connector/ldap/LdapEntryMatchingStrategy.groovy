@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.bidms.connector.ldap
+
+import javax.naming.Name
+
+/**
+ * Finds the existing entry in the directory that a persist request
+ * applies to.  Set on {@link LdapConnector#entryMatchingStrategy}.
+ * <p>
+ * Implementations must classify the found entry with the same
+ * {@link FoundObjectMethod} as
+ * {@link LdapConnector#findMatchingEntryByPrimaryKeyFirst} does, and must
+ * populate searchResults with all the entries of the primary key when
+ * objectDef.isRemoveDuplicatePrimaryKeys() returns true, since the
+ * duplicates are deleted from it.
+ */
+interface LdapEntryMatchingStrategy {
+    /**
+     * @param ldapConnector The connector to search with
+     * @param reqCtx Context for the request
+     * @param dn The requested DN, or null if not provided
+     * @param pkey The primary key
+     * @param uniqueIdentifier The globally unique identifier, or null if
+     *        not provided
+     * @return The result, with a null entry if no existing entry was found
+     */
+    LdapConnector.MatchingEntryResult findMatchingEntry(
+            LdapConnector ldapConnector,
+            LdapRequestContext reqCtx,
+            Name dn,
+            String pkey,
+            Object uniqueIdentifier
+    )
+}
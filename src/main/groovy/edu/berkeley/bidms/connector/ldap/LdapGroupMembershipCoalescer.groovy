@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.bidms.connector.ldap
+
+import edu.berkeley.bidms.connector.ldap.event.LdapCallbackContext
+import edu.berkeley.bidms.connector.ldap.event.message.LdapGroupMembershipEventMessage
+import groovy.util.logging.Slf4j
+import org.springframework.ldap.core.LdapTemplate
+
+import javax.naming.Name
+import javax.naming.directory.BasicAttribute
+import javax.naming.directory.DirContext
+import javax.naming.directory.ModificationItem
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * Buffers group member additions and removals across persists and writes
+ * them as one multi-valued modification per group.
+ * <p>
+ * When many objects are added to the same few groups, the connector would
+ * otherwise modify each group once per member.  With a coalescer set on
+ * the connector, group membership changes are queued per group and
+ * flushed when a group has maxPendingChangesPerGroup queued changes, when
+ * the oldest queued change of a group is older than maxDelayMillis (only
+ * when the coalescer has been started, which {@link LdapConnector#start()}
+ * does) or when {@link #flush()} is called.  {@link LdapConnector#stop()}
+ * flushes all remaining changes.
+ * <p>
+ * The flushes of a group are serialized and written in the order their
+ * changes were taken from the queue, so that a later change of a member
+ * is never overtaken by an earlier one.  Different groups are flushed
+ * concurrently.
+ * <p>
+ * If a member is queued more than once for a group before a flush, the
+ * last requested change wins.  The Permissive Modify control is used when
+ * the server supports it, so that adding an existing member or removing a
+ * missing one doesn't fail the modification.  If the modification for a
+ * group fails otherwise, the changes of that group are retried one member
+ * at a time.  The outcome of every
+ * member change is reported to the connector's
+ * groupMembershipEventCallbacks.
+ */
+@Slf4j
+class LdapGroupMembershipCoalescer {
+    private final LdapConnector ldapConnector
+
+    /**
+     * A group is flushed as soon as it has this many queued changes.
+     */
+    int maxPendingChangesPerGroup = 500
+
+    /**
+     * A group is flushed when its oldest queued change is older than this.
+     */
+    long maxDelayMillis = 1000
+
+    private final Map<CanonicalDn, PendingGroup> pendingGroups = new LinkedHashMap<CanonicalDn, PendingGroup>()
+
+    // batches taken from pendingGroups and not yet flushed, in the order
+    // they were taken.  Guarded by pendingGroups.
+    private final Map<CanonicalDn, FlushQueue> flushQueues = new HashMap<CanonicalDn, FlushQueue>()
+
+    private ScheduledExecutorService flushExecutor
+
+    /**
+     * @param ldapConnector The connector whose contextSource is used for
+     *        the group modifications and whose callbacks are sent the
+     *        group membership event messages.
+     */
+    LdapGroupMembershipCoalescer(LdapConnector ldapConnector) {
+        this.ldapConnector = ldapConnector
+    }
+
+    private static class PendingChange {
+        String memberDn
+        LdapGroupMembershipEventMessage.Operation operation
+        String eventId
+        LdapObjectDefinition objectDef
+        LdapCallbackContext context
+        String pkey
+    }
+
+    private static class PendingGroup {
+        CanonicalDn groupKey
+        Name groupDn
+        String memberAttributeName
+        long firstQueuedAt
+        // keyed by member DN, so that the last change for a member wins
+        LinkedHashMap<CanonicalDn, PendingChange> changes = new LinkedHashMap<CanonicalDn, PendingChange>()
+    }
+
+    private static class FlushQueue {
+        CanonicalDn groupKey
+        ArrayDeque<PendingGroup> batches = new ArrayDeque<PendingGroup>()
+        // the batch being written, taken from batches
+        PendingGroup writing
+    }
+
+    /**
+     * Start the thread that flushes groups with changes older than
+     * maxDelayMillis.
+     */
+    synchronized void start() {
+        if (!flushExecutor) {
+            this.flushExecutor = Executors.newSingleThreadScheduledExecutor({ Runnable r ->
+                Thread t = new Thread(r, "LDAP Connector Group Membership Coalescer")
+                t.daemon = true
+                return t
+            })
+            long period = Math.max(10L, (long) (maxDelayMillis / 2))
+            flushExecutor.scheduleWithFixedDelay({
+                try {
+                    flushExpired()
+                }
+                catch (Throwable t) {
+                    log.error("There was an unexpected exception flushing group membership changes", t)
+                }
+            }, period, period, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    /**
+     * Stop the flush thread and flush all remaining changes.
+     */
+    void stop() {
+        ScheduledExecutorService executor
+        synchronized (this) {
+            executor = flushExecutor
+            this.flushExecutor = null
+        }
+        if (executor) {
+            executor.shutdown()
+            executor.awaitTermination(30, TimeUnit.SECONDS)
+        }
+        flush()
+    }
+
+    /**
+     * Queue a group member addition or removal.
+     *
+     * @param reqCtx Context for the request
+     * @param pkey The primary key of the member object, used for
+     *        reporting only
+     * @param memberDn The DN of the member
+     * @param groupDn The DN of the group
+     * @param operation ADD or REMOVE
+     */
+    void enqueue(LdapRequestContext reqCtx, String pkey, String memberDn, Name groupDn, LdapGroupMembershipEventMessage.Operation operation) {
+        FlushQueue queueToDrain = null
+        CanonicalDn groupKey = ldapConnector.canonicalDn(groupDn)
+        synchronized (pendingGroups) {
+            PendingGroup pendingGroup = pendingGroups.get(groupKey)
+            if (!pendingGroup) {
+                pendingGroup = new PendingGroup(
+                        groupKey: groupKey,
+                        groupDn: groupDn,
+                        memberAttributeName: reqCtx.objectDef.groupMemberAttributeName,
+                        firstQueuedAt: System.currentTimeMillis()
+                )
+                pendingGroups.put(groupKey, pendingGroup)
+            }
+            CanonicalDn memberKey = ldapConnector.canonicalDn(memberDn)
+            // remove first so that the member moves to the end
+            pendingGroup.changes.remove(memberKey)
+            pendingGroup.changes.put(memberKey, new PendingChange(
+                    memberDn: memberDn,
+                    operation: operation,
+                    eventId: reqCtx.eventId,
+                    objectDef: reqCtx.objectDef,
+                    context: reqCtx.context,
+                    pkey: pkey
+            ))
+            if (pendingGroup.changes.size() >= maxPendingChangesPerGroup) {
+                pendingGroups.remove(groupKey)
+                queueToDrain = queueForFlush(pendingGroup)
+            }
+        }
+        if (queueToDrain) {
+            drain(queueToDrain)
+        }
+    }
+
+    /**
+     * A member's group memberships as read from the directory don't show
+     * the changes that are queued and not yet written, which this does.
+     *
+     * @param groupDn The DN of the group
+     * @param memberDn The DN of the member
+     * @return The last change queued for the member of the group that is
+     *         not yet written, or null if there is none
+     */
+    LdapGroupMembershipEventMessage.Operation getPendingOperation(Name groupDn, String memberDn) {
+        CanonicalDn groupKey = ldapConnector.canonicalDn(groupDn)
+        CanonicalDn memberKey = ldapConnector.canonicalDn(memberDn)
+        synchronized (pendingGroups) {
+            PendingChange change = pendingGroups.get(groupKey)?.changes?.get(memberKey)
+            FlushQueue queue = flushQueues.get(groupKey)
+            if (!change && queue) {
+                // the most recently taken batches first
+                Iterator<PendingGroup> batches = queue.batches.descendingIterator()
+                while (!change && batches.hasNext()) {
+                    change = batches.next().changes.get(memberKey)
+                }
+                change = change ?: queue.writing?.changes?.get(memberKey)
+            }
+            return change?.operation
+        }
+    }
+
+    /**
+     * @return The number of queued member changes across all groups.
+     */
+    int getPendingChangeCount() {
+        synchronized (pendingGroups) {
+            return (int) (pendingGroups.values().sum { it.changes.size() } ?: 0)
+        }
+    }
+
+    /**
+     * Flush the queued changes of all groups.
+     */
+    void flush() {
+        flushGroups(takeGroups { true })
+    }
+
+    /**
+     * Flush the queued changes of groups whose oldest queued change is
+     * older than maxDelayMillis.
+     */
+    void flushExpired() {
+        long now = System.currentTimeMillis()
+        flushGroups(takeGroups { PendingGroup pendingGroup -> now - pendingGroup.firstQueuedAt >= maxDelayMillis })
+    }
+
+    private List<FlushQueue> takeGroups(Closure<Boolean> predicate) {
+        List<FlushQueue> taken = []
+        synchronized (pendingGroups) {
+            Iterator<PendingGroup> it = pendingGroups.values().iterator()
+            while (it.hasNext()) {
+                PendingGroup pendingGroup = it.next()
+                if (predicate(pendingGroup)) {
+                    taken.add(queueForFlush(pendingGroup))
+                    it.remove()
+                }
+            }
+        }
+        return taken
+    }
+
+    private void flushGroups(List<FlushQueue> queues) {
+        queues.each { FlushQueue queue ->
+            drain(queue)
+        }
+    }
+
+    // must be called holding the pendingGroups lock
+    private FlushQueue queueForFlush(PendingGroup pendingGroup) {
+        FlushQueue queue = flushQueues.get(pendingGroup.groupKey)
+        if (!queue) {
+            queue = new FlushQueue(groupKey: pendingGroup.groupKey)
+            flushQueues.put(pendingGroup.groupKey, queue)
+        }
+        queue.batches.add(pendingGroup)
+        return queue
+    }
+
+    /**
+     * Flush the batches of a group in order.  Only one thread flushes a
+     * group at a time.  A thread that finds another thread flushing the
+     * group waits for it, and the batches it queued have been flushed by
+     * then.
+     */
+    private void drain(FlushQueue queue) {
+        synchronized (queue) {
+            while (true) {
+                PendingGroup batch
+                synchronized (pendingGroups) {
+                    batch = queue.batches.poll()
+                    queue.writing = batch
+                    if (!batch) {
+                        // the last batch is written, so a new queue for
+                        // the group can't overtake it
+                        if (flushQueues.get(queue.groupKey).is(queue)) {
+                            flushQueues.remove(queue.groupKey)
+                        }
+                        return
+                    }
+                }
+                try {
+                    // the reports are delivered as they are made even when
+                    // a persist that is being retried drains the group
+                    ldapConnector.withoutRetryEventMessages {
+                        flushGroup(batch)
+                    }
+                }
+                finally {
+                    synchronized (pendingGroups) {
+                        queue.writing = null
+                    }
+                }
+            }
+        }
+    }
+
+    private void flushGroup(PendingGroup pendingGroup) {
+        try {
+            // the write takes a slot of the connector's concurrencyLimiter
+            ldapConnector.executeWithConcurrencyLimit {
+                writeGroup(pendingGroup)
+            }
+        }
+        catch (LdapConcurrencyLimitExceededException e) {
+            pendingGroup.changes.values().each { PendingChange change ->
+                report(pendingGroup, change, e)
+            }
+        }
+    }
+
+    private void writeGroup(PendingGroup pendingGroup) {
+        Collection<PendingChange> changes = pendingGroup.changes.values()
+        LdapTemplate ldapTemplate = new LdapTemplate(ldapConnector.contextSource)
+        try {
+            List<ModificationItem> mods = []
+            BasicAttribute additions = new BasicAttribute(pendingGroup.memberAttributeName)
+            BasicAttribute removals = new BasicAttribute(pendingGroup.memberAttributeName)
+            changes.each { PendingChange change ->
+                (change.operation == LdapGroupMembershipEventMessage.Operation.ADD ? additions : removals).add(change.memberDn)
+            }
+            if (additions.size()) {
+                mods.add(new ModificationItem(DirContext.ADD_ATTRIBUTE, additions))
+            }
+            if (removals.size()) {
+                mods.add(new ModificationItem(DirContext.REMOVE_ATTRIBUTE, removals))
+            }
+            if (!ldapConnector.modifyAttributesPermissively(ldapTemplate, pendingGroup.groupDn, mods as ModificationItem[])) {
+                ldapTemplate.modifyAttributes(pendingGroup.groupDn, mods as ModificationItem[])
+            }
+            changes.each { PendingChange change ->
+                report(pendingGroup, change, null)
+            }
+        }
+        catch (Exception e) {
+            log.debug("Modification of ${changes.size()} members of ${pendingGroup.groupDn} failed, retrying one member at a time", e)
+            changes.each { PendingChange change ->
+                Throwable exception = null
+                try {
+                    int modOp = change.operation == LdapGroupMembershipEventMessage.Operation.ADD ? DirContext.ADD_ATTRIBUTE : DirContext.REMOVE_ATTRIBUTE
+                    ModificationItem mod = new ModificationItem(modOp, new BasicAttribute(pendingGroup.memberAttributeName, change.memberDn))
+                    ldapTemplate.modifyAttributes(pendingGroup.groupDn, [mod] as ModificationItem[])
+                }
+                catch (Exception memberException) {
+                    exception = new LdapConnectorException(memberException)
+                }
+                report(pendingGroup, change, exception)
+            }
+        }
+    }
+
+    private void report(PendingGroup pendingGroup, PendingChange change, Throwable exception) {
+        ldapConnector.deliverCallbackMessage(new LdapGroupMembershipEventMessage(
+                success: exception == null,
+                eventId: change.eventId,
+                objectDef: change.objectDef,
+                context: change.context,
+                pkey: change.pkey,
+                groupDn: pendingGroup.groupDn.toString(),
+                memberDn: change.memberDn,
+                operation: change.operation,
+                exception: exception
+        ))
+    }
+}
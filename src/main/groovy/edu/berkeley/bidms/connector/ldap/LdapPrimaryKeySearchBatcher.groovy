@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.bidms.connector.ldap
+
+import groovy.util.logging.Slf4j
+import org.springframework.ldap.core.DirContextAdapter
+import org.springframework.ldap.core.LdapTemplate
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Coalesces concurrent searches by primary key into OR-filter searches.
+ * <p>
+ * When many threads persist objects at once, each would otherwise send its
+ * own search for its primary key.  With a batcher set on the connector,
+ * {@link LdapConnector#findMatchingEntry} queues the primary key in a
+ * pending batch for its object definition.  The thread that starts a
+ * batch waits up to maxDelayMillis for other threads to join it, then
+ * sends one search for the whole batch with
+ * {@link LdapConnector#searchByPrimaryKeyBatch} and hands each waiting
+ * thread the entries for its primary key.  A batch is sent early by the
+ * thread that fills it to maxBatchSize.
+ * <p>
+ * A primary key that is already pending in the open batch is searched on
+ * its own, so that concurrent requests for the same primary key never
+ * share the same DirContextAdapter objects.
+ * <p>
+ * Only requests that would read from the same place are batched together:
+ * a request whose primary key must be read from the connector's
+ * contextSource, because it was recently written or there are no
+ * readContextSources, never joins a batch that is read from a replica.  A
+ * batch's search has the time limit of the latest deadline of its
+ * requests, or none if a request has no deadline, and each request stops
+ * waiting for the batch at its own deadline.
+ */
+@Slf4j
+class LdapPrimaryKeySearchBatcher {
+    private final LdapConnector ldapConnector
+
+    /**
+     * A batch is sent as soon as it has this many primary keys.
+     */
+    int maxBatchSize = 50
+
+    /**
+     * How long the thread that starts a batch waits for other threads to
+     * join it before sending it.
+     */
+    long maxDelayMillis = 5
+
+    // keyed by object definition identity, for batches read from the
+    // connector's contextSource and from replicas
+    private final Map<LdapObjectDefinition, Batch> openPrimaryBatches = new IdentityHashMap<LdapObjectDefinition, Batch>()
+    private final Map<LdapObjectDefinition, Batch> openReplicaBatches = new IdentityHashMap<LdapObjectDefinition, Batch>()
+
+    private final LongAdder searchCount = new LongAdder()
+    private final LongAdder primaryKeyCount = new LongAdder()
+
+    /**
+     * @param ldapConnector The connector whose contextSource is used for
+     *        the searches.
+     */
+    LdapPrimaryKeySearchBatcher(LdapConnector ldapConnector) {
+        this.ldapConnector = ldapConnector
+    }
+
+    private static class Batch {
+        LdapRequestContext reqCtx
+        // the latest deadline of the waiters, null if one has no deadline
+        LdapDeadline deadline
+        boolean isReplica
+        // keyed by lower case primary key
+        LinkedHashMap<String, CompletableFuture<List<DirContextAdapter>>> waiters = new LinkedHashMap<String, CompletableFuture<List<DirContextAdapter>>>()
+        boolean sent
+    }
+
+    /**
+     * Search for the objects of a primary key as part of a batch.
+     *
+     * @param reqCtx Context for the request
+     * @param pkey Primary key
+     * @return The found entries, or null if objectDef.getLdapQueryForPrimaryKey()
+     *         returns null, as for {@link LdapConnector#searchByPrimaryKey}
+     */
+    List<DirContextAdapter> search(LdapRequestContext reqCtx, String pkey) throws LdapConnectorException {
+        if (pkey == null || !reqCtx.objectDef.getLdapQueryForPrimaryKey(pkey)) {
+            return ldapConnector.searchByPrimaryKey(reqCtx, pkey)
+        }
+        String pkeyKey = pkey.toLowerCase()
+        boolean isReplica = !ldapConnector.readRequestContext(reqCtx, [pkey], null).is(reqCtx)
+        Map<LdapObjectDefinition, Batch> openBatches = (isReplica ? openReplicaBatches : openPrimaryBatches)
+        CompletableFuture<List<DirContextAdapter>> future = new CompletableFuture<List<DirContextAdapter>>()
+        Batch batch
+        boolean isLeader = false
+        boolean isFull = false
+        synchronized (openBatches) {
+            batch = openBatches.get(reqCtx.objectDef)
+            if (batch?.waiters?.containsKey(pkeyKey)) {
+                batch = null
+            } else {
+                if (!batch) {
+                    batch = new Batch(reqCtx: reqCtx, deadline: reqCtx.deadline, isReplica: isReplica)
+                    openBatches.put(reqCtx.objectDef, batch)
+                    isLeader = true
+                } else if (batch.deadline && (!reqCtx.deadline || reqCtx.deadline.remainingMillis > batch.deadline.remainingMillis)) {
+                    batch.deadline = reqCtx.deadline
+                }
+                batch.waiters.put(pkeyKey, future)
+                if (batch.waiters.size() >= maxBatchSize) {
+                    openBatches.remove(reqCtx.objectDef)
+                    batch.sent = true
+                    isFull = true
+                }
+            }
+        }
+        if (!batch) {
+            // already pending in the open batch
+            return ldapConnector.searchByPrimaryKey(reqCtx, pkey)
+        }
+        if (isFull) {
+            send(batch)
+        } else if (isLeader) {
+            if (maxDelayMillis > 0) {
+                try {
+                    Thread.sleep(maxDelayMillis)
+                }
+                catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt()
+                }
+            }
+            boolean isSender = false
+            synchronized (openBatches) {
+                if (!batch.sent) {
+                    if (openBatches.get(reqCtx.objectDef).is(batch)) {
+                        openBatches.remove(reqCtx.objectDef)
+                    }
+                    batch.sent = true
+                    isSender = true
+                }
+            }
+            if (isSender) {
+                send(batch)
+            }
+        }
+        try {
+            if (!reqCtx.deadline) {
+                return future.get()
+            }
+            return future.get(Math.max(0L, reqCtx.deadline.remainingMillis), TimeUnit.MILLISECONDS)
+        }
+        catch (TimeoutException ignored) {
+            throw new LdapDeadlineExceededException("The batched search did not complete within the deadline of ${reqCtx.deadline.timeoutMillis} ms")
+        }
+        catch (ExecutionException e) {
+            throw (e.cause instanceof LdapConnectorException || e.cause instanceof RuntimeException ? e.cause : new LdapConnectorException(e.cause))
+        }
+    }
+
+    private void send(Batch batch) {
+        searchCount.increment()
+        primaryKeyCount.add(batch.waiters.size())
+        try {
+            // the batch is shared by many requests, so it uses its own
+            // connection rather than the sender's ldapTemplate, and the
+            // deadline of the waiter that can wait the longest
+            LdapRequestContext batchReqCtx = batch.reqCtx.withLdapTemplate(new LdapTemplate(ldapConnector.contextSource))
+            batchReqCtx.deadline = batch.deadline
+            Map<String, List<DirContextAdapter>> entriesByPkey = ldapConnector.searchByPrimaryKeyBatch(batchReqCtx, batch.waiters.keySet(), null, !batch.isReplica)
+            batch.waiters.each { String pkeyKey, CompletableFuture<List<DirContextAdapter>> future ->
+                future.complete(entriesByPkey[pkeyKey] ?: [])
+            }
+        }
+        catch (Throwable t) {
+            log.debug("Batched search of ${batch.waiters.size()} primary keys failed", t)
+            batch.waiters.values()*.completeExceptionally(t)
+        }
+    }
+
+    /**
+     * @return The number of searches sent.
+     */
+    long getSearchCount() {
+        return searchCount.sum()
+    }
+
+    /**
+     * @return The number of primary keys searched for in batches.
+     */
+    long getPrimaryKeyCount() {
+        return primaryKeyCount.sum()
+    }
+}
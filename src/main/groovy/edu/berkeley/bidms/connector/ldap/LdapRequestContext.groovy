@@ -36,10 +36,25 @@ class LdapRequestContext {
     LdapObjectDefinition objectDef
     LdapCallbackContext context
 
+    /**
+     * If set, the time by which the request must be complete.  See
+     * {@link LdapDeadline}.
+     */
+    LdapDeadline deadline
+
     LdapRequestContext(LdapTemplate ldapTemplate, String eventId, LdapObjectDefinition objectDef, LdapCallbackContext context) {
         this.ldapTemplate = ldapTemplate
         this.eventId = eventId
         this.objectDef = objectDef
         this.context = context
     }
+
+    /**
+     * @return A copy of this context that uses another ldapTemplate.
+     */
+    LdapRequestContext withLdapTemplate(LdapTemplate ldapTemplate) {
+        LdapRequestContext copy = new LdapRequestContext(ldapTemplate, eventId, objectDef, context)
+        copy.deadline = deadline
+        return copy
+    }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.bidms.connector.ldap
+
+import javax.naming.CommunicationException
+import javax.naming.NamingException
+import javax.naming.ServiceUnavailableException
+import java.util.concurrent.ThreadLocalRandom
+
+/**
+ * Decides which failures of a directory operation are transient and how
+ * long to wait before retrying them.
+ * <p>
+ * A failure is transient if its LDAP result code, as parsed by
+ * {@link LdapConnectorException#getLdapErrorCode()}, is one of
+ * retryableResultCodes (by default 51, busy, and 52, unavailable) or if
+ * the connection to the directory failed.  Retries wait a random time
+ * between 0 and an exponentially growing backoff ("full jitter"), so
+ * that many clients retrying at once spread out.
+ */
+class LdapRetryPolicy {
+    /**
+     * LDAP result code: the server is too busy to process the request.
+     */
+    static final int BUSY = 51
+
+    /**
+     * LDAP result code: the server is shutting down or a server needed to
+     * process the request is unavailable.
+     */
+    static final int UNAVAILABLE = 52
+
+    /**
+     * The LDAP result codes of transient failures.
+     */
+    Set<Integer> retryableResultCodes = [BUSY, UNAVAILABLE] as Set<Integer>
+
+    /**
+     * If true, failures to communicate with the directory are transient.
+     */
+    boolean isRetryCommunicationFailures = true
+
+    /**
+     * The most times an operation is attempted, including the first.
+     */
+    int maxAttempts = 3
+
+    long initialBackoffMillis = 100
+
+    long maxBackoffMillis = 5000
+
+    double backoffMultiplier = 2.0
+
+    /**
+     * @param t The failure of an operation
+     * @return true if the failure is transient
+     */
+    boolean isRetryable(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.cause) {
+            if (cause instanceof LdapConnectorException) {
+                Integer resultCode = ((LdapConnectorException) cause).ldapErrorCode
+                if (resultCode != null && retryableResultCodes.contains(resultCode)) {
+                    return true
+                }
+            } else if (cause instanceof NamingException || cause instanceof org.springframework.ldap.NamingException) {
+                Integer resultCode = LdapConnectorException.parseLdapErrorCode(cause.message)
+                if (resultCode != null && retryableResultCodes.contains(resultCode)) {
+                    return true
+                }
+            }
+            if (cause instanceof ServiceUnavailableException && retryableResultCodes.contains(UNAVAILABLE)) {
+                return true
+            }
+            if (isRetryCommunicationFailures && (cause instanceof CommunicationException || cause instanceof org.springframework.ldap.CommunicationException)) {
+                return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * @param attempt The attempt that failed, starting at 1
+     * @return How long to wait before the next attempt
+     */
+    long getBackoffMillis(int attempt) {
+        double backoff = Math.min((double) maxBackoffMillis, initialBackoffMillis * Math.pow(backoffMultiplier, attempt - 1))
+        return (long) (ThreadLocalRandom.current().nextDouble() * backoff)
+    }
+}
@@ -30,13 +30,26 @@ package edu.berkeley.bidms.connector.ldap
 import org.springframework.ldap.core.ContextMapper
 import org.springframework.ldap.core.DirContextAdapter
 
+import javax.naming.NamingEnumeration
 import javax.naming.NamingException
 import javax.naming.directory.Attribute
 
 /**
- * Converts the attributes of a search result to a Map
+ * Converts the attributes of a search result to a Map.  The returned map
+ * is a read-only {@link AttributesMapView} backed by the attributes of the
+ * search result, so attribute values are only materialized when accessed. 
+ * The DN of the search result is included as the <code>dn</code>
+ * pseudo-attribute.
+ * <p>
+ * If there is a value interner, the string values of the search result are
+ * replaced with their pooled instances before the view is returned.
  */
 class ToMapContextMapper implements ContextMapper<Map<String, Object>> {
+    /**
+     * Optional pool for repeated attribute values.
+     */
+    LdapValueInterner valueInterner
+
     @Override
     Map<String, Object> mapFromContext(Object ctx) throws NamingException {
         DirContextAdapter searchResult
@@ -46,31 +59,18 @@ class ToMapContextMapper implements ContextMapper<Map<String, Object>> {
             throw new RuntimeException("Not supported for ctx type ${ctx?.getClass()?.name}.  Only DirContextAdapter objects are supported.")
         }
 
-        Map<String, Object> result = [:]
-        searchResult.attributes.all.each { Attribute attr ->
-            if(attr.size() > 0) {
-                result.put(attr.ID, convertAttribute(attr))
+        if (valueInterner) {
+            NamingEnumeration<? extends Attribute> all = searchResult.attributes.all
+            while (all.hasMore()) {
+                valueInterner.internValues(all.next())
             }
         }
 
         // dn is added as an extra pseudo-attribute
-        result.put("dn", searchResult.dn.toString())
-
-        return result
+        return new AttributesMapView(searchResult.attributes, searchResult.dn.toString())
     }
 
     static Object convertAttribute(Attribute attr) {
-        if (attr.size() == 1) {
-            return attr.get()
-        } else if (attr.size() > 1) {
-            def list = []
-            attr.all.each {
-                list.add(it)
-            }
-            return list
-        }
-        else {
-            throw new RuntimeException("attr size is 0")
-        }
+        return AttributesMapView.convertAttribute(attr)
     }
 }
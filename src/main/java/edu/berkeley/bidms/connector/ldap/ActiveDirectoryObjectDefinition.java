@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.bidms.connector.ldap;
+
+import org.springframework.ldap.filter.AndFilter;
+import org.springframework.ldap.filter.EqualsFilter;
+import org.springframework.ldap.filter.HardcodedFilter;
+import org.springframework.ldap.query.LdapQuery;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+
+import static org.springframework.ldap.query.LdapQueryBuilder.query;
+
+/**
+ * An object definition for Active Directory objects where the globally
+ * unique identifier is the binary objectGUID attribute.
+ * <p>
+ * objectGUID is 16 bytes in which the first three fields of the GUID
+ * string form are little-endian.  JNDI returns it as a garbled String
+ * unless it is listed in the {@link #BINARY_ATTRIBUTES_ENVIRONMENT_PROPERTY}
+ * environment property of the context source, e.g.
+ * <code>contextSource.setBaseEnvironmentProperties([(BINARY_ATTRIBUTES_ENVIRONMENT_PROPERTY): "objectGUID"])</code>.
+ * <p>
+ * A globally unique identifier may be given as the 16 bytes, a
+ * {@link UUID} or the GUID string form.  Entries are looked up by it with
+ * the <code>&lt;GUID=...&gt;</code> DN syntax rather than searched for.
+ */
+public class ActiveDirectoryObjectDefinition extends UidObjectDefinition {
+    /**
+     * The JNDI environment property listing attributes to return as byte
+     * arrays.
+     */
+    public static final String BINARY_ATTRIBUTES_ENVIRONMENT_PROPERTY = "java.naming.ldap.attributes.binary";
+
+    /**
+     * The primary key attribute in the directory.
+     */
+    private String primaryKeyAttributeName = "sAMAccountName";
+
+    /**
+     * If true, the globally unique identifier is looked up with the
+     * <code>&lt;GUID=...&gt;</code> DN syntax.  Otherwise it is searched
+     * for.
+     */
+    private boolean guidBoundLookupEnabled = true;
+
+    public ActiveDirectoryObjectDefinition() {
+        setObjectClass("user");
+    }
+
+    @Override
+    public String getGloballyUniqueIdentifierAttributeName() {
+        return "objectGUID";
+    }
+
+    /**
+     * @return The primary key attribute name.  Defaults to sAMAccountName.
+     */
+    @Override
+    public String getPrimaryKeyAttributeName() {
+        return primaryKeyAttributeName;
+    }
+
+    /**
+     * @param primaryKeyAttributeName The primary key attribute name.
+     */
+    public void setPrimaryKeyAttributeName(String primaryKeyAttributeName) {
+        this.primaryKeyAttributeName = primaryKeyAttributeName;
+    }
+
+    /**
+     * @return The attribute of an Active Directory <code>group</code> that
+     * contains group member DNs, which is <code>member</code>.
+     */
+    @Override
+    public String getGroupMemberAttributeName() {
+        return "member";
+    }
+
+    public boolean isGuidBoundLookupEnabled() {
+        return guidBoundLookupEnabled;
+    }
+
+    /**
+     * @param guidBoundLookupEnabled true to look up globally unique
+     *                               identifiers with the
+     *                               <code>&lt;GUID=...&gt;</code> DN syntax,
+     *                               false to search for them.
+     */
+    public void setGuidBoundLookupEnabled(boolean guidBoundLookupEnabled) {
+        this.guidBoundLookupEnabled = guidBoundLookupEnabled;
+    }
+
+    /**
+     * The filter matches the objectGUID bytes, each escaped as \hh.
+     */
+    @Override
+    public LdapQuery getLdapQueryForGloballyUniqueIdentifier(String pkey, Object uniqueIdentifier) {
+        return query().filter(new AndFilter()
+                .and(new EqualsFilter("objectClass", getObjectClass()))
+                .and(new EqualsFilter(getPrimaryKeyAttributeName(), pkey))
+                .and(new HardcodedFilter("(" + getGloballyUniqueIdentifierAttributeName() + "=" + escapeGuidBytes(toGuidBytes(uniqueIdentifier)) + ")")));
+    }
+
+    @Override
+    public String getGloballyUniqueIdentifierBoundDn(Object uniqueIdentifier) {
+        return guidBoundLookupEnabled ? "<GUID=" + toGuidString(toGuidBytes(uniqueIdentifier)) + ">" : null;
+    }
+
+    /**
+     * Convert a globally unique identifier to the 16 objectGUID bytes.
+     *
+     * @param uniqueIdentifier The 16 bytes, a {@link UUID} or the GUID
+     *                         string form.
+     * @return The objectGUID bytes.
+     * @throws IllegalArgumentException If the identifier isn't a GUID.
+     */
+    public static byte[] toGuidBytes(Object uniqueIdentifier) {
+        if (uniqueIdentifier instanceof byte[]) {
+            byte[] bytes = (byte[]) uniqueIdentifier;
+            if (bytes.length != 16) {
+                throw new IllegalArgumentException("An objectGUID is 16 bytes, not " + bytes.length);
+            }
+            return bytes;
+        }
+        UUID uuid = uniqueIdentifier instanceof UUID ? (UUID) uniqueIdentifier : UUID.fromString(String.valueOf(uniqueIdentifier));
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        long msb = uuid.getMostSignificantBits();
+        buf.putInt((int) (msb >>> 32));
+        buf.putShort((short) (msb >>> 16));
+        buf.putShort((short) msb);
+        buf.order(ByteOrder.BIG_ENDIAN);
+        buf.putLong(uuid.getLeastSignificantBits());
+        return buf.array();
+    }
+
+    /**
+     * Convert objectGUID bytes to the GUID string form.
+     *
+     * @param guidBytes The 16 objectGUID bytes.
+     * @return The GUID string form, e.g.
+     * <code>dcf86eb8-d15b-45a8-8b7d-4f3d8a18d4e0</code>.
+     */
+    public static String toGuidString(byte[] guidBytes) {
+        return toUuid(guidBytes).toString();
+    }
+
+    /**
+     * Convert objectGUID bytes to a UUID.
+     *
+     * @param guidBytes The 16 objectGUID bytes.
+     * @return The UUID with the GUID string form.
+     */
+    public static UUID toUuid(byte[] guidBytes) {
+        ByteBuffer buf = ByteBuffer.wrap(toGuidBytes(guidBytes));
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        long data1 = buf.getInt() & 0xffffffffL;
+        long data2 = buf.getShort() & 0xffffL;
+        long data3 = buf.getShort() & 0xffffL;
+        buf.order(ByteOrder.BIG_ENDIAN);
+        return new UUID((data1 << 32) | (data2 << 16) | data3, buf.getLong());
+    }
+
+    /**
+     * Escape bytes for an LDAP filter value.
+     *
+     * @param bytes The bytes.
+     * @return Each byte as \hh.
+     */
+    public static String escapeGuidBytes(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 3);
+        for (byte b : bytes) {
+            sb.append('\\').append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.bidms.connector.ldap;
+
+import org.springframework.ldap.support.LdapUtils;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-only {@link Map} view of directory {@link Attributes}.  Nothing is
+ * copied when the view is created.  An attribute's value is only
+ * materialized when it is accessed: a single-valued attribute is returned
+ * as its value and a multi-valued attribute as a list of its values.
+ * Attributes with no values are not part of the view.
+ * <p>
+ * Key lookups with {@link #get(Object)} and {@link #containsKey(Object)}
+ * are case insensitive.  Iteration returns the attribute IDs as they were
+ * returned by the directory.
+ * <p>
+ * Optionally, the view includes the DN of the entry as the
+ * <code>dn</code> pseudo-attribute, which takes precedence over a real
+ * attribute with the same name.
+ * <p>
+ * The view is backed by the attributes, so changes to the attributes are
+ * visible through the view.  The view itself can't be modified, and
+ * neither can the value lists it returns.  Use {@link #snapshot()} for a
+ * copy that doesn't change with the attributes.
+ */
+public class AttributesMapView extends AbstractMap<String, Object> {
+    /**
+     * The name of the DN pseudo-attribute.
+     */
+    public static final String DN_KEY = "dn";
+
+    private final Attributes attributes;
+    private final String dn;
+    private Set<Map.Entry<String, Object>> entrySet;
+
+    /**
+     * Multi-valued attribute lists materialized so far, keyed by lower
+     * case attribute ID.
+     */
+    private Map<String, MaterializedValue> materializedLists;
+
+    /**
+     * @param attributes The attributes to view.
+     * @param dn         The DN to include as the <code>dn</code>
+     *                   pseudo-attribute, or null to not include it.
+     */
+    public AttributesMapView(Attributes attributes, String dn) {
+        this.attributes = attributes;
+        this.dn = dn;
+    }
+
+    /**
+     * @return A view of the same attributes that does not include the
+     * <code>dn</code> pseudo-attribute.
+     */
+    public AttributesMapView withoutDn() {
+        return dn == null ? this : new AttributesMapView(attributes, null);
+    }
+
+    /**
+     * @return A copy of the view as it is now, which doesn't change when
+     * the attributes do.
+     */
+    public Map<String, Object> snapshot() {
+        // materialized lists are never modified, so they can be shared
+        return Collections.unmodifiableMap(new LinkedHashMap<>(this));
+    }
+
+    /**
+     * Convert an attribute to its map value.
+     *
+     * @param attr The attribute, which must have at least one value.
+     * @return The value of a single-valued attribute or a list of values
+     * for a multi-valued attribute.
+     */
+    public static Object convertAttribute(Attribute attr) {
+        try {
+            if (attr.size() == 1) {
+                return attr.get();
+            } else if (attr.size() > 1) {
+                List<Object> list = new ArrayList<>(attr.size());
+                NamingEnumeration<?> values = attr.getAll();
+                while (values.hasMore()) {
+                    list.add(values.next());
+                }
+                return list;
+            } else {
+                throw new RuntimeException("attr size is 0");
+            }
+        } catch (NamingException e) {
+            throw LdapUtils.convertLdapException(e);
+        }
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        if (dn != null && DN_KEY.equalsIgnoreCase((String) key)) {
+            return dn;
+        }
+        Attribute attr = findAttribute((String) key);
+        return attr != null ? materialize(attr) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (!(key instanceof String)) {
+            return false;
+        }
+        if (dn != null && DN_KEY.equalsIgnoreCase((String) key)) {
+            return true;
+        }
+        return findAttribute((String) key) != null;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        boolean hasDnAttribute = false;
+        NamingEnumeration<? extends Attribute> all = attributes.getAll();
+        try {
+            while (all.hasMore()) {
+                Attribute attr = all.next();
+                if (attr.size() > 0) {
+                    size++;
+                    hasDnAttribute |= DN_KEY.equalsIgnoreCase(attr.getID());
+                }
+            }
+        } catch (NamingException e) {
+            throw LdapUtils.convertLdapException(e);
+        }
+        return dn != null && !hasDnAttribute ? size + 1 : size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<String, Object>>() {
+                @Override
+                public Iterator<Map.Entry<String, Object>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return AttributesMapView.this.size();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    private Attribute findAttribute(String id) {
+        Attribute attr = attributes.get(id);
+        if (attr == null && !attributes.isCaseIgnored()) {
+            NamingEnumeration<? extends Attribute> all = attributes.getAll();
+            try {
+                while (all.hasMore()) {
+                    Attribute candidate = all.next();
+                    if (candidate.getID().equalsIgnoreCase(id)) {
+                        attr = candidate;
+                        break;
+                    }
+                }
+            } catch (NamingException e) {
+                throw LdapUtils.convertLdapException(e);
+            }
+        }
+        return attr != null && attr.size() > 0 ? attr : null;
+    }
+
+    private Object materialize(Attribute attr) {
+        if (attr.size() == 1) {
+            return convertAttribute(attr);
+        }
+        // Multi-valued attributes are materialized once per Attribute
+        // instance since building the list allocates.
+        String key = attr.getID().toLowerCase(Locale.ROOT);
+        synchronized (this) {
+            if (materializedLists == null) {
+                materializedLists = new HashMap<>();
+            }
+            MaterializedValue materialized = materializedLists.get(key);
+            if (materialized == null || materialized.attr != attr || materialized.size != attr.size()) {
+                materialized = new MaterializedValue(attr, Collections.unmodifiableList((List<?>) convertAttribute(attr)));
+                materializedLists.put(key, materialized);
+            }
+            return materialized.value;
+        }
+    }
+
+    private static class MaterializedValue {
+        private final Attribute attr;
+        private final int size;
+        private final Object value;
+
+        private MaterializedValue(Attribute attr, Object value) {
+            this.attr = attr;
+            this.size = attr.size();
+            this.value = value;
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+        private final NamingEnumeration<? extends Attribute> all = attributes.getAll();
+        private boolean dnReturned = dn == null;
+        private Map.Entry<String, Object> next;
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                next = advance();
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, Object> result = next;
+            this.next = null;
+            return result;
+        }
+
+        private Map.Entry<String, Object> advance() {
+            try {
+                while (all.hasMore()) {
+                    Attribute attr = all.next();
+                    if (attr.size() > 0 && (dn == null || !DN_KEY.equalsIgnoreCase(attr.getID()))) {
+                        return new AbstractMap.SimpleImmutableEntry<>(attr.getID(), materialize(attr));
+                    }
+                }
+            } catch (NamingException e) {
+                throw LdapUtils.convertLdapException(e);
+            }
+            if (!dnReturned) {
+                dnReturned = true;
+                return new AbstractMap.SimpleImmutableEntry<String, Object>(DN_KEY, dn);
+            }
+            return null;
+        }
+    }
+}
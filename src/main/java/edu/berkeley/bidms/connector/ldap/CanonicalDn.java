@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.bidms.connector.ldap;
+
+import org.springframework.ldap.support.LdapUtils;
+
+import javax.naming.Name;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An immutable distinguished name that is parsed once and carries
+ * precomputed normalized forms, so that comparing two DNs is a string
+ * comparison rather than a re-normalization of every {@link Rdn}.
+ * <p>
+ * There are two normalized forms:
+ * <ul>
+ *     <li>The case insensitive form, where both the {@link Rdn} attribute
+ *     names and values are lower cased.  This is equivalent to {@link
+ *     LdapName#equals(Object)}, and is what {@link #equals(Object)} and
+ *     {@link #hashCode()} use.</li>
+ *     <li>The case sensitive form, where {@link Rdn} attribute names are
+ *     lower cased but values are left as-is.  This is what {@link
+ *     LdapObjectDefinition#isCaseSensitiveDnCheckingEnabled()} calls
+ *     for.</li>
+ * </ul>
+ * Instances are typically obtained from a {@link CanonicalDnCache}.
+ */
+public final class CanonicalDn {
+    private final LdapName name;
+    private final String normalized;
+    private final String caseSensitiveNormalized;
+    private final int hash;
+    private final int caseSensitiveHash;
+
+    private CanonicalDn(LdapName name) {
+        this.name = name;
+        this.normalized = normalize(name, false);
+        this.caseSensitiveNormalized = normalize(name, true);
+        this.hash = normalized.hashCode();
+        this.caseSensitiveHash = caseSensitiveNormalized.hashCode();
+    }
+
+    /**
+     * Parse a distinguished name string.
+     *
+     * @param dn The distinguished name string.
+     * @return The canonical DN.
+     * @throws org.springframework.ldap.InvalidNameException if the string
+     *                                                       is not a valid
+     *                                                       DN.
+     */
+    public static CanonicalDn valueOf(String dn) {
+        return new CanonicalDn(LdapUtils.newLdapName(dn));
+    }
+
+    /**
+     * Build a canonical DN from an existing name.  The name is copied.
+     *
+     * @param dn The distinguished name.
+     * @return The canonical DN.
+     */
+    public static CanonicalDn valueOf(Name dn) {
+        return new CanonicalDn(LdapUtils.newLdapName(dn));
+    }
+
+    /**
+     * @return A copy of the parsed name, which the caller is free to
+     * modify.
+     */
+    public LdapName getName() {
+        return (LdapName) name.clone();
+    }
+
+    /**
+     * @return The case insensitive normalized form of the DN.
+     */
+    public String getNormalizedString() {
+        return normalized;
+    }
+
+    /**
+     * @return The normalized form of the DN where attribute values retain
+     * their case.
+     */
+    public String getCaseSensitiveNormalizedString() {
+        return caseSensitiveNormalized;
+    }
+
+    /**
+     * @return The hash of the case sensitive normalized form.
+     */
+    public int caseSensitiveHashCode() {
+        return caseSensitiveHash;
+    }
+
+    /**
+     * @param other         The DN to compare to.
+     * @param caseSensitive If true, attribute values are compared with
+     *                      case sensitivity.  Attribute names are always
+     *                      compared without case sensitivity.
+     * @return true if the two DNs are equivalent.
+     */
+    public boolean equals(CanonicalDn other, boolean caseSensitive) {
+        if (other == null) {
+            return false;
+        }
+        if (caseSensitive) {
+            return caseSensitiveHash == other.caseSensitiveHash && caseSensitiveNormalized.equals(other.caseSensitiveNormalized);
+        } else {
+            return hash == other.hash && normalized.equals(other.normalized);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CanonicalDn)) return false;
+        return equals((CanonicalDn) o, false);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * @return The DN string as it was originally provided.
+     */
+    @Override
+    public String toString() {
+        return name.toString();
+    }
+
+    private static String normalize(LdapName name, boolean caseSensitive) {
+        List<Rdn> rdns = name.getRdns();
+        StringBuilder sb = new StringBuilder(name.toString().length());
+        // LdapName stores RDNs right-to-left
+        for (int i = rdns.size() - 1; i >= 0; i--) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            Rdn rdn = rdns.get(i);
+            if (rdn.size() == 1) {
+                appendTypeAndValue(sb, rdn.getType(), rdn.getValue(), caseSensitive);
+            } else {
+                appendMultiValuedRdn(sb, rdn, caseSensitive);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendMultiValuedRdn(StringBuilder sb, Rdn rdn, boolean caseSensitive) {
+        List<String> parts = new ArrayList<>(rdn.size());
+        try {
+            NamingEnumeration<? extends Attribute> attrs = rdn.toAttributes().getAll();
+            while (attrs.hasMore()) {
+                Attribute attr = attrs.next();
+                NamingEnumeration<?> values = attr.getAll();
+                while (values.hasMore()) {
+                    StringBuilder part = new StringBuilder();
+                    appendTypeAndValue(part, attr.getID(), values.next(), caseSensitive);
+                    parts.add(part.toString());
+                }
+            }
+        } catch (NamingException e) {
+            throw LdapUtils.convertLdapException(e);
+        }
+        // order of the type/value pairs within a RDN is insignificant
+        Collections.sort(parts);
+        for (int i = 0; i < parts.size(); i++) {
+            if (i > 0) {
+                sb.append('+');
+            }
+            sb.append(parts.get(i));
+        }
+    }
+
+    private static void appendTypeAndValue(StringBuilder sb, String type, Object value, boolean caseSensitive) {
+        sb.append(type.toLowerCase(Locale.ROOT)).append('=');
+        String escapedValue = Rdn.escapeValue(value);
+        sb.append(caseSensitive ? escapedValue : escapedValue.toLowerCase(Locale.ROOT));
+    }
+}
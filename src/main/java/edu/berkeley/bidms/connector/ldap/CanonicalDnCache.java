@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.bidms.connector.ldap;
+
+import javax.naming.Name;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used intern cache of {@link CanonicalDn}
+ * instances keyed by DN string.  A DN string is only parsed and normalized
+ * the first time it is seen, as long as it stays in the cache.
+ * <p>
+ * This class is thread safe.
+ */
+public class CanonicalDnCache {
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+
+    private final int maximumSize;
+    private final LinkedHashMap<String, CanonicalDn> cache;
+
+    public CanonicalDnCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * @param maximumSize The maximum number of DNs to keep in the cache.  The
+     *                    least recently used DN is evicted when the cache
+     *                    is full.
+     */
+    public CanonicalDnCache(final int maximumSize) {
+        this.maximumSize = maximumSize;
+        this.cache = new LinkedHashMap<String, CanonicalDn>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CanonicalDn> eldest) {
+                return size() > maximumSize;
+            }
+        };
+    }
+
+    /**
+     * @param dn A distinguished name string.
+     * @return The cached canonical DN for the string, parsing it if it's not
+     * already cached.
+     */
+    public CanonicalDn intern(String dn) {
+        CanonicalDn canonicalDn = get(dn);
+        if (canonicalDn == null) {
+            // parse outside of the lock
+            canonicalDn = CanonicalDn.valueOf(dn);
+            put(dn, canonicalDn);
+        }
+        return canonicalDn;
+    }
+
+    /**
+     * @param dn A distinguished name.
+     * @return The cached canonical DN for the name, keyed by the name's
+     * string form.
+     */
+    public CanonicalDn intern(Name dn) {
+        String key = dn.toString();
+        CanonicalDn canonicalDn = get(key);
+        if (canonicalDn == null) {
+            canonicalDn = CanonicalDn.valueOf(dn);
+            put(key, canonicalDn);
+        }
+        return canonicalDn;
+    }
+
+    /**
+     * @return The maximum number of DNs kept in the cache.
+     */
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * @return The number of DNs currently in the cache.
+     */
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    /**
+     * Remove all DNs from the cache.
+     */
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    private synchronized CanonicalDn get(String key) {
+        return cache.get(key);
+    }
+
+    private synchronized void put(String key, CanonicalDn canonicalDn) {
+        cache.put(key, canonicalDn);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.bidms.connector.ldap;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * A set of non-negative int values backed by an open-addressing int array,
+ * which uses a small fraction of the heap of a <code>HashSet&lt;Integer&gt;</code>.
+ */
+public class IntHashSet {
+    private static final int FREE = -1;
+    private static final int REMOVED = -2;
+
+    private int[] slots;
+    private int size;
+    private int used;
+
+    public IntHashSet() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize The expected number of values.
+     */
+    public IntHashSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        this.slots = newSlots(capacity);
+    }
+
+    private static int[] newSlots(int capacity) {
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, FREE);
+        return slots;
+    }
+
+    private static int hash(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @param value A non-negative value.
+     * @return true if the value was not already in the set.
+     */
+    public boolean add(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Only non-negative values are supported");
+        }
+        if ((used + 1) * 4 > slots.length * 3) {
+            rehash(size * 2 >= slots.length / 2 ? slots.length * 2 : slots.length);
+        }
+        int mask = slots.length - 1;
+        int i = hash(value) & mask;
+        int firstRemoved = -1;
+        while (slots[i] != FREE) {
+            if (slots[i] == value) {
+                return false;
+            }
+            if (slots[i] == REMOVED && firstRemoved < 0) {
+                firstRemoved = i;
+            }
+            i = (i + 1) & mask;
+        }
+        if (firstRemoved >= 0) {
+            slots[firstRemoved] = value;
+        } else {
+            slots[i] = value;
+            used++;
+        }
+        size++;
+        return true;
+    }
+
+    public boolean contains(int value) {
+        return value >= 0 && indexOf(value) >= 0;
+    }
+
+    /**
+     * @return true if the value was in the set.
+     */
+    public boolean remove(int value) {
+        int i = value >= 0 ? indexOf(value) : -1;
+        if (i < 0) {
+            return false;
+        }
+        slots[i] = REMOVED;
+        size--;
+        return true;
+    }
+
+    private int indexOf(int value) {
+        int mask = slots.length - 1;
+        int i = hash(value) & mask;
+        while (slots[i] != FREE) {
+            if (slots[i] == value) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void rehash(int capacity) {
+        int[] old = slots;
+        this.slots = newSlots(capacity);
+        this.size = 0;
+        this.used = 0;
+        for (int value : old) {
+            if (value >= 0) {
+                add(value);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return An iterator over the values in no particular order.  The set
+     * must not be modified while iterating.
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int index = advance(0);
+
+            private int advance(int from) {
+                int i = from;
+                while (i < slots.length && slots[i] < 0) {
+                    i++;
+                }
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return index < slots.length;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int value = slots[index];
+                index = advance(index + 1);
+                return value;
+            }
+        };
+    }
+}
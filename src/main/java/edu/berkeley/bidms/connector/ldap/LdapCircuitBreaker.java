@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.bidms.connector.ldap;
+
+/**
+ * Stops sending operations to a directory that keeps failing, so that a
+ * struggling server isn't hammered by requests that would fail anyway.
+ * <p>
+ * The breaker is closed while the directory works.  After
+ * failureThreshold consecutive transient failures it opens, and
+ * operations are rejected without contacting the directory.  After
+ * openMillis, it is half open: one operation at a time is let through as
+ * a probe.  A successful probe closes the breaker and a failed one opens
+ * it again.
+ */
+public class LdapCircuitBreaker {
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String target;
+    private int failureThreshold = 5;
+    private long openMillis = 30000;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probeInFlight;
+
+    /**
+     * @param target A name for the directory, such as its URL, used in
+     *               messages.
+     */
+    public LdapCircuitBreaker(String target) {
+        this.target = target;
+    }
+
+    /**
+     * Ask to send an operation.  Every permitted operation must be followed
+     * by {@link #recordSuccess()}, {@link #recordFailure()} or
+     * {@link #recordAbandoned()}.
+     *
+     * @return true if the operation may be sent, false if it must be
+     * rejected.
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openMillis) {
+                    return false;
+                }
+                this.state = State.HALF_OPEN;
+                this.probeInFlight = true;
+                return true;
+            default:
+                if (probeInFlight) {
+                    return false;
+                }
+                this.probeInFlight = true;
+                return true;
+        }
+    }
+
+    /**
+     * Record that a permitted operation reached the directory, including
+     * operations that failed for a reason that isn't transient.
+     */
+    public synchronized void recordSuccess() {
+        this.state = State.CLOSED;
+        this.consecutiveFailures = 0;
+        this.probeInFlight = false;
+    }
+
+    /**
+     * Record that a permitted operation failed transiently.
+     */
+    public synchronized void recordFailure() {
+        this.probeInFlight = false;
+        if (state == State.HALF_OPEN || ++consecutiveFailures >= failureThreshold) {
+            this.state = State.OPEN;
+            this.openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Record that a permitted operation was given up on by its caller,
+     * such as at its deadline, without telling whether the directory
+     * works.  The state of the breaker is unchanged, but a probe that was
+     * given up on lets another operation probe.
+     */
+    public synchronized void recordAbandoned() {
+        this.probeInFlight = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * @param failureThreshold The number of consecutive transient failures
+     *                         that open the breaker.
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    /**
+     * @param openMillis How long the breaker stays open before probing the
+     *                   directory.
+     */
+    public void setOpenMillis(long openMillis) {
+        this.openMillis = openMillis;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.bidms.connector.ldap;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the number of operations in flight against a directory with a
+ * limit that adapts to how the directory is doing (additive increase,
+ * multiplicative decrease).
+ * <p>
+ * Each operation that completes without a sign of overload raises the
+ * limit by 1/limit, so the limit grows by about one per limit operations.
+ * An operation that fails transiently, or takes longer than
+ * latencyTolerance times the smoothed latency of recent operations,
+ * multiplies the limit by backoffRatio.  The limit stays between minLimit
+ * and maxLimit.
+ * <p>
+ * An operation that would exceed the limit waits up to maxWaitMillis for
+ * another to complete and is rejected after that.
+ */
+public class LdapConcurrencyLimiter {
+    private double limit;
+    private int minLimit = 1;
+    private int maxLimit = 200;
+    private double backoffRatio = 0.9;
+    private double latencyTolerance = 2.0;
+    private double latencySmoothing = 0.05;
+    private int warmupSamples = 10;
+    private long maxWaitMillis = 60000;
+
+    private int inFlight;
+    private double smoothedLatencyNanos;
+    private long samples;
+
+    private final LongAdder rejectedCount = new LongAdder();
+
+    public LdapConcurrencyLimiter() {
+        this(10);
+    }
+
+    /**
+     * @param initialLimit The limit to start with.
+     */
+    public LdapConcurrencyLimiter(int initialLimit) {
+        this.limit = initialLimit;
+    }
+
+    /**
+     * Wait until an operation may start.  Every successful acquire must be
+     * followed by {@link #release}.
+     *
+     * @return true if the operation may start, false if it waited
+     * maxWaitMillis and must be rejected.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized boolean acquire() throws InterruptedException {
+        return acquire(maxWaitMillis);
+    }
+
+    /**
+     * Wait until an operation may start, for no longer than maxWaitMillis.
+     * Every successful acquire must be followed by {@link #release}.
+     *
+     * @param maxWaitMillis How long to wait, in place of the limiter's
+     *                      maxWaitMillis.
+     * @return true if the operation may start, false if it waited
+     * maxWaitMillis and must be rejected.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized boolean acquire(long maxWaitMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        while (inFlight >= getLimit()) {
+            long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                rejectedCount.increment();
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Start an operation if it is within the limit, without waiting.  A
+     * successful tryAcquire must be followed by {@link #release}.
+     *
+     * @return true if the operation may start.
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= getLimit()) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Record that an operation completed and adapt the limit.
+     *
+     * @param latencyNanos How long the operation took.
+     * @param isOverloaded true if the operation failed in a way that
+     *                     indicates the directory is overloaded.
+     */
+    public synchronized void release(long latencyNanos, boolean isOverloaded) {
+        inFlight--;
+        boolean isSlow = samples >= warmupSamples && latencyNanos > latencyTolerance * smoothedLatencyNanos;
+        smoothedLatencyNanos = samples == 0 ? latencyNanos : smoothedLatencyNanos + latencySmoothing * (latencyNanos - smoothedLatencyNanos);
+        samples++;
+        if (isOverloaded || isSlow) {
+            limit = Math.max(minLimit, limit * backoffRatio);
+        } else {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Release a slot acquired for an operation that wasn't sent, without
+     * adapting the limit.
+     */
+    public synchronized void abandon() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * @return The current limit of operations in flight.
+     */
+    public synchronized int getLimit() {
+        return Math.max(minLimit, (int) limit);
+    }
+
+    /**
+     * @return The number of operations in flight.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return The number of operations rejected after waiting maxWaitMillis.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public synchronized void setMinLimit(int minLimit) {
+        this.minLimit = minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public synchronized void setMaxLimit(int maxLimit) {
+        this.maxLimit = maxLimit;
+    }
+
+    public double getBackoffRatio() {
+        return backoffRatio;
+    }
+
+    /**
+     * @param backoffRatio What the limit is multiplied by when the directory
+     *                     is overloaded, between 0 and 1.
+     */
+    public synchronized void setBackoffRatio(double backoffRatio) {
+        this.backoffRatio = backoffRatio;
+    }
+
+    public double getLatencyTolerance() {
+        return latencyTolerance;
+    }
+
+    /**
+     * @param latencyTolerance An operation slower than this many times the
+     *                         smoothed latency indicates overload.
+     */
+    public synchronized void setLatencyTolerance(double latencyTolerance) {
+        this.latencyTolerance = latencyTolerance;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * @param maxWaitMillis How long an operation waits to start before it
+     *                      is rejected.  0 rejects operations over the limit
+     *                      immediately.
+     */
+    public synchronized void setMaxWaitMillis(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+}
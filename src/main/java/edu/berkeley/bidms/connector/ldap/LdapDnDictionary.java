@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.bidms.connector.ldap;
+
+import java.util.Arrays;
+
+/**
+ * Assigns a dense int id to each distinct DN, so that large sets of DNs,
+ * such as the members of a large group, can be compared as {@link
+ * IntHashSet}s.  DNs are considered the same if their case-insensitive
+ * {@link CanonicalDn} normalized forms are equal.  The DN string of an id
+ * is the first string added for it.
+ * <p>
+ * The dictionary keeps only the normalized string per DN, plus the
+ * original string when it differs from the normalized one.  It is not
+ * thread safe.
+ */
+public class LdapDnDictionary {
+    private String[] normalizedById;
+    private String[] originalById;
+    private int[] table;
+    private int size;
+
+    public LdapDnDictionary() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize The expected number of distinct DNs.
+     */
+    public LdapDnDictionary(int expectedSize) {
+        int capacity = 16;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        this.table = new int[capacity];
+        Arrays.fill(table, -1);
+        this.normalizedById = new String[Math.max(16, expectedSize)];
+        this.originalById = new String[normalizedById.length];
+    }
+
+    /**
+     * Add a DN if it's not already in the dictionary.
+     *
+     * @param dn A DN string.
+     * @return The id of the DN.
+     * @throws org.springframework.ldap.InvalidNameException If the DN is
+     *                                                       invalid.
+     */
+    public int add(String dn) {
+        String normalized = CanonicalDn.valueOf(dn).getNormalizedString();
+        int index = find(normalized);
+        if (table[index] >= 0) {
+            return table[index];
+        }
+        int id = size++;
+        if (id == normalizedById.length) {
+            normalizedById = Arrays.copyOf(normalizedById, id * 2);
+            originalById = Arrays.copyOf(originalById, id * 2);
+        }
+        normalizedById[id] = normalized;
+        originalById[id] = normalized.equals(dn) ? null : dn;
+        table[index] = id;
+        if (size * 4 > table.length * 3) {
+            rehash();
+        }
+        return id;
+    }
+
+    /**
+     * @param dn A DN string.
+     * @return The id of the DN, or -1 if the DN is not in the dictionary.
+     */
+    public int idOf(String dn) {
+        return table[find(CanonicalDn.valueOf(dn).getNormalizedString())];
+    }
+
+    /**
+     * @param id An id returned by {@link #add(String)}.
+     * @return The DN string first added for the id.
+     */
+    public String getDn(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("id " + id + " is not in the dictionary");
+        }
+        return originalById[id] != null ? originalById[id] : normalizedById[id];
+    }
+
+    /**
+     * @return The number of distinct DNs.
+     */
+    public int size() {
+        return size;
+    }
+
+    private int find(String normalized) {
+        int mask = table.length - 1;
+        int h = normalized.hashCode();
+        int i = (h ^ (h >>> 16)) & mask;
+        while (table[i] >= 0 && !normalizedById[table[i]].equals(normalized)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void rehash() {
+        this.table = new int[table.length * 2];
+        Arrays.fill(table, -1);
+        for (int id = 0; id < size; id++) {
+            table[find(normalizedById[id])] = id;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.bidms.connector.ldap;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts, for one object definition, how often each way of finding an
+ * existing entry was tried and how often it found the entry, and how the
+ * found entries were classified.
+ */
+public class LdapEntryMatchingStatistics {
+    /**
+     * The ways an existing entry can be looked for.
+     */
+    public enum Step {
+        /**
+         * A base object search of the requested DN.
+         */
+        DN,
+
+        /**
+         * A search by globally unique identifier.
+         */
+        GLOBALLY_UNIQUE_IDENTIFIER,
+
+        /**
+         * A search by primary key.
+         */
+        PRIMARY_KEY
+    }
+
+    private final Map<Step, LongAdder> attempts = new EnumMap<>(Step.class);
+    private final Map<Step, LongAdder> hits = new EnumMap<>(Step.class);
+    private final Map<FoundObjectMethod, LongAdder> foundObjectMethods = new EnumMap<>(FoundObjectMethod.class);
+    private final LongAdder notFound = new LongAdder();
+
+    public LdapEntryMatchingStatistics() {
+        for (Step step : Step.values()) {
+            attempts.put(step, new LongAdder());
+            hits.put(step, new LongAdder());
+        }
+        for (FoundObjectMethod method : FoundObjectMethod.values()) {
+            foundObjectMethods.put(method, new LongAdder());
+        }
+    }
+
+    public void recordAttempt(Step step, boolean hit) {
+        attempts.get(step).increment();
+        if (hit) {
+            hits.get(step).increment();
+        }
+    }
+
+    /**
+     * @param method How the entry was found, or null if no entry was found.
+     */
+    public void recordResult(FoundObjectMethod method) {
+        if (method != null) {
+            foundObjectMethods.get(method).increment();
+        } else {
+            notFound.increment();
+        }
+    }
+
+    public long getAttempts(Step step) {
+        return attempts.get(step).sum();
+    }
+
+    public long getHits(Step step) {
+        return hits.get(step).sum();
+    }
+
+    /**
+     * @return The fraction of attempts of the step that found the entry, or
+     * 1 if the step hasn't been tried.
+     */
+    public double getHitRate(Step step) {
+        long stepAttempts = getAttempts(step);
+        return stepAttempts > 0 ? (double) getHits(step) / stepAttempts : 1.0;
+    }
+
+    public long getFoundObjectMethodCount(FoundObjectMethod method) {
+        return foundObjectMethods.get(method).sum();
+    }
+
+    public long getNotFoundCount() {
+        return notFound.sum();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.bidms.connector.ldap;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of reconciling the members of a group with a desired member
+ * list.
+ */
+public class LdapGroupReconciliationResult {
+    private final String groupDn;
+    private final List<String> addedMemberDns = new ArrayList<>();
+    private final List<String> removedMemberDns = new ArrayList<>();
+    private final Map<String, Throwable> failedMemberDns = new LinkedHashMap<>();
+    private int unchangedCount;
+
+    public LdapGroupReconciliationResult(String groupDn) {
+        this.groupDn = groupDn;
+    }
+
+    public String getGroupDn() {
+        return groupDn;
+    }
+
+    /**
+     * @return The members that were added to the group.
+     */
+    public List<String> getAddedMemberDns() {
+        return addedMemberDns;
+    }
+
+    /**
+     * @return The members that were removed from the group.
+     */
+    public List<String> getRemovedMemberDns() {
+        return removedMemberDns;
+    }
+
+    /**
+     * @return The members that could not be added or removed, with the
+     * exception for each.
+     */
+    public Map<String, Throwable> getFailedMemberDns() {
+        return failedMemberDns;
+    }
+
+    /**
+     * @return The number of desired members that were already in the group.
+     */
+    public int getUnchangedCount() {
+        return unchangedCount;
+    }
+
+    public void setUnchangedCount(int unchangedCount) {
+        this.unchangedCount = unchangedCount;
+    }
+
+    /**
+     * @return true if the group was modified.
+     */
+    public boolean isModified() {
+        return !addedMemberDns.isEmpty() || !removedMemberDns.isEmpty();
+    }
+
+    /**
+     * @return true if all required changes were made.
+     */
+    public boolean isSuccess() {
+        return failedMemberDns.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "LdapGroupReconciliationResult{" +
+                "groupDn='" + groupDn + '\'' +
+                ", added=" + addedMemberDns.size() +
+                ", removed=" + removedMemberDns.size() +
+                ", failed=" + failedMemberDns.size() +
+                ", unchanged=" + unchangedCount +
+                '}';
+    }
+}
@@ -28,6 +28,9 @@ package edu.berkeley.bidms.connector.ldap;
 
 import edu.berkeley.bidms.connector.ObjectDefinition;
 import org.springframework.ldap.query.LdapQuery;
+import org.springframework.ldap.query.SearchScope;
+
+import java.util.List;
 
 public interface LdapObjectDefinition extends ObjectDefinition {
     /**
@@ -62,6 +65,25 @@ public interface LdapObjectDefinition extends ObjectDefinition {
      */
     LdapQuery getLdapQueryForGloballyUniqueIdentifier(String pkey, Object uniqueIdentifier);
 
+    /**
+     * Some directories can address an entry directly by its globally unique
+     * identifier, such as the <code>&lt;GUID=...&gt;</code> DN syntax of
+     * Active Directory.  Reading that DN is cheaper than a search, so when
+     * this returns a DN, the connector reads it instead of searching with
+     * {@link #getLdapQueryForGloballyUniqueIdentifier}.  The entry found
+     * must still have the expected primary key.
+     * <p>
+     * The server must return the <code>distinguishedName</code> attribute
+     * of the entry, since the read DN isn't the entry's DN.
+     *
+     * @param uniqueIdentifier The globally unique identifier value.
+     * @return The DN that addresses the entry with the globally unique
+     * identifier, or null to search for it instead.  Defaults to null.
+     */
+    default String getGloballyUniqueIdentifierBoundDn(Object uniqueIdentifier) {
+        return null;
+    }
+
     /**
      * Get a Spring LdapQuery object to query the directory for objects by a
      * primary key value.
@@ -190,9 +212,10 @@ public interface LdapObjectDefinition extends ObjectDefinition {
      * list to calculate which groups needed to be added and which groups
      * need to be removed.
      * <p>
-     * The default LdapConnector implementation will not check if the member
-     * already exists in the group for an ADD and will not check if a member
-     * is missing from the group for a DELETE.
+     * Unless {@link #getMemberOfAttributeName} is implemented, the
+     * LdapConnector will not check if the member already exists in the
+     * group for an ADD and will not check if a member is missing from the
+     * group for a DELETE.
      *
      * @return The string prefix for the "group directive meta attribute", or
      * null if no group directives should be handled.
@@ -211,4 +234,70 @@ public interface LdapObjectDefinition extends ObjectDefinition {
      * group member DNs.
      */
     String getGroupMemberAttributeName();
+
+    /**
+     * If the directory maintains an attribute on member entries that lists
+     * the DNs of the groups the entry is a member of, such as
+     * <code>memberOf</code> (Active Directory, OpenLDAP memberof overlay)
+     * or <code>isMemberOf</code>, then this returns the name of that
+     * attribute.  The connector then uses it to skip group directives that
+     * wouldn't change the group: an ADD for a group the entry is already a
+     * member of or a REMOVE for a group the entry is not a member of.
+     * <p>
+     * If the attribute isn't part of the entry already retrieved by the
+     * connector, which is typical for operational attributes, it is looked
+     * up.
+     *
+     * @return The name of the attribute that lists the groups of an entry,
+     * or null to always send group directives to the groups.  Defaults to
+     * null.
+     */
+    default String getMemberOfAttributeName() {
+        return null;
+    }
+
+    /**
+     * Servers such as Active Directory cap the number of values of a
+     * multi-valued attribute returned in one read and return the first
+     * values as a ranged attribute, e.g. <code>member;range=0-1499</code>.
+     * The connector always follows such ranges to read all the values of
+     * group member attributes and of attributes of existing entries that
+     * are being updated.
+     * <p>
+     * If this returns a positive number, the connector explicitly requests
+     * ranges of this many values when reading the group member attribute
+     * and the {@link #getMemberOfAttributeName} attribute.
+     *
+     * @return The number of values to request per range, or 0 to let the
+     * server decide.  Defaults to 0.
+     */
+    default int getAttributeValueRangeSize() {
+        return 0;
+    }
+
+    /**
+     * The bases the connector searches for objects of this definition, such
+     * as <code>ou=people,dc=berkeley,dc=edu</code>, relative to the base of
+     * the connector's context source.  When there are several bases, they
+     * are searched in parallel and the results combined.  The bases apply
+     * to the primary key and globally unique identifier queries that don't
+     * set a base of their own.
+     *
+     * @return The search bases, or null or empty to search from the base of
+     * the context source.  Defaults to null.
+     */
+    default List<String> getSearchBases() {
+        return null;
+    }
+
+    /**
+     * The scope of the searches for objects of this definition, for
+     * primary key and globally unique identifier queries that don't set a
+     * scope of their own.
+     *
+     * @return The search scope.  Defaults to {@link SearchScope#SUBTREE}.
+     */
+    default SearchScope getSearchScope() {
+        return SearchScope.SUBTREE;
+    }
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.bidms.connector.ldap;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A typed persist request for {@link LdapConnector}.
+ * <p>
+ * The map-based {@link LdapConnector#persist(String,
+ * edu.berkeley.bidms.connector.ObjectDefinition,
+ * edu.berkeley.bidms.connector.CallbackContext, Map, boolean)} encodes the
+ * DN, the dynamic DN directives, the globally unique identifier, the
+ * dynamic attribute templates and the group directives as specially-named
+ * keys in the attribute map.  This class carries each of those as a
+ * separate field so that a caller can build the request once and the
+ * connector can process it without copying the attribute map and scanning
+ * it for meta-attribute keys.
+ * <p>
+ * The connector does not modify a request, so a request may be persisted
+ * more than once.
+ */
+public class LdapPersistRequest {
+    /**
+     * Indicates how the {@link #getDn() dn} of the request is to be
+     * applied.  These correspond to the <code>dn</code>,
+     * <code>dn.DYNAMIC</code>, <code>dn.ONCREATE</code> and
+     * <code>dn.ONUPDATE</code> keys of the map-based persist.
+     */
+    public enum DnDirective {
+        /**
+         * The dn is used when creating and the object is renamed to the dn
+         * when updating.
+         */
+        NOT_CONDITIONAL,
+
+        /**
+         * The dn is a template passed to the <code>dn.DYNAMIC</code>
+         * dynamic attribute callback, which determines the real dn.
+         */
+        DYNAMIC,
+
+        /**
+         * The dn is only used when creating.  Renaming is disabled.
+         */
+        ONCREATE,
+
+        /**
+         * The dn is used when creating and the object is renamed to the dn
+         * when updating.
+         */
+        ONUPDATE
+    }
+
+    private String dn;
+    private DnDirective dnDirective = DnDirective.NOT_CONDITIONAL;
+    private String pkey;
+    private Object globallyUniqueIdentifier;
+    private Map<String, Object> attributes = Collections.emptyMap();
+    private Map<String, Object> dynamicAttributes = Collections.emptyMap();
+    private List<String> groupAdditions = Collections.emptyList();
+    private List<String> groupRemovals = Collections.emptyList();
+    private Map<String, Object> sourceAttributeMap;
+
+    public LdapPersistRequest() {
+    }
+
+    /**
+     * Shallow copy constructor.
+     *
+     * @param other The request to copy.
+     */
+    public LdapPersistRequest(LdapPersistRequest other) {
+        this.dn = other.dn;
+        this.dnDirective = other.dnDirective;
+        this.pkey = other.pkey;
+        this.globallyUniqueIdentifier = other.globallyUniqueIdentifier;
+        this.attributes = other.attributes;
+        this.dynamicAttributes = other.dynamicAttributes;
+        this.groupAdditions = other.groupAdditions;
+        this.groupRemovals = other.groupRemovals;
+        this.sourceAttributeMap = other.sourceAttributeMap;
+    }
+
+    /**
+     * @return The requested distinguished name of the object, or null if
+     * not provided.
+     */
+    public String getDn() {
+        return dn;
+    }
+
+    public void setDn(String dn) {
+        this.dn = dn;
+    }
+
+    /**
+     * @return How the dn is to be applied.  Never null.
+     */
+    public DnDirective getDnDirective() {
+        return dnDirective;
+    }
+
+    public void setDnDirective(DnDirective dnDirective) {
+        this.dnDirective = dnDirective != null ? dnDirective : DnDirective.NOT_CONDITIONAL;
+    }
+
+    /**
+     * @return The primary key value of the object.
+     */
+    public String getPkey() {
+        return pkey;
+    }
+
+    public void setPkey(String pkey) {
+        this.pkey = pkey;
+    }
+
+    /**
+     * @return The optional globally unique identifier of the object.
+     */
+    public Object getGloballyUniqueIdentifier() {
+        return globallyUniqueIdentifier;
+    }
+
+    public void setGloballyUniqueIdentifier(Object globallyUniqueIdentifier) {
+        this.globallyUniqueIdentifier = globallyUniqueIdentifier;
+    }
+
+    /**
+     * @return The plain directory attributes of the object where the keys
+     * are attribute names.  If the primary key attribute is missing, the
+     * connector adds it from {@link #getPkey()}.
+     */
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    public void setAttributes(Map<String, Object> attributes) {
+        this.attributes = attributes != null ? attributes : Collections.<String, Object>emptyMap();
+    }
+
+    /**
+     * @return The dynamic attribute value templates where the keys are
+     * <code>attributeName.indicator</code> strings as listed in {@link
+     * LdapObjectDefinition#getDynamicAttributeNames()}.  The dn directives
+     * are not included here.
+     */
+    public Map<String, Object> getDynamicAttributes() {
+        return dynamicAttributes;
+    }
+
+    public void setDynamicAttributes(Map<String, Object> dynamicAttributes) {
+        this.dynamicAttributes = dynamicAttributes != null ? dynamicAttributes : Collections.<String, Object>emptyMap();
+    }
+
+    /**
+     * @return The DNs of the groups the object is to be added to.
+     */
+    public List<String> getGroupAdditions() {
+        return groupAdditions;
+    }
+
+    public void setGroupAdditions(List<String> groupAdditions) {
+        this.groupAdditions = groupAdditions != null ? groupAdditions : Collections.<String>emptyList();
+    }
+
+    /**
+     * @return The DNs of the groups the object is to be removed from.
+     */
+    public List<String> getGroupRemovals() {
+        return groupRemovals;
+    }
+
+    public void setGroupRemovals(List<String> groupRemovals) {
+        this.groupRemovals = groupRemovals != null ? groupRemovals : Collections.<String>emptyList();
+    }
+
+    /**
+     * @return When the request was built from a map-based persist, the
+     * caller's original map, which is what dynamic attribute callbacks
+     * receive as their <code>newAttributeMap</code>.  Otherwise null.
+     */
+    public Map<String, Object> getSourceAttributeMap() {
+        return sourceAttributeMap;
+    }
+
+    public void setSourceAttributeMap(Map<String, Object> sourceAttributeMap) {
+        this.sourceAttributeMap = sourceAttributeMap;
+    }
+
+    /**
+     * Build the map-based form of this request, as it would have been
+     * passed to the map-based persist.  If {@link #getSourceAttributeMap()}
+     * is set, that is returned instead.
+     *
+     * @param objectDef The object definition, which provides the primary
+     *                  key, globally unique identifier and group directive
+     *                  attribute names.
+     * @return The map-based form of this request.
+     */
+    public Map<String, Object> toAttributeMap(LdapObjectDefinition objectDef) {
+        if (sourceAttributeMap != null) {
+            return sourceAttributeMap;
+        }
+        Map<String, Object> map = new LinkedHashMap<>(attributes);
+        if (pkey != null && !map.containsKey(objectDef.getPrimaryKeyAttributeName())) {
+            map.put(objectDef.getPrimaryKeyAttributeName(), pkey);
+        }
+        if (globallyUniqueIdentifier != null && objectDef.getGloballyUniqueIdentifierAttributeName() != null) {
+            map.put(objectDef.getGloballyUniqueIdentifierAttributeName(), globallyUniqueIdentifier);
+        }
+        if (dn != null) {
+            map.put(dnDirective == DnDirective.NOT_CONDITIONAL ? "dn" : "dn." + dnDirective.name(), dn);
+        }
+        map.putAll(dynamicAttributes);
+        if (objectDef.getGroupDirectiveMetaAttributePrefix() != null) {
+            if (!groupAdditions.isEmpty()) {
+                map.put(objectDef.getGroupDirectiveMetaAttributePrefix() + ".ADD", groupAdditions);
+            }
+            if (!groupRemovals.isEmpty()) {
+                map.put(objectDef.getGroupDirectiveMetaAttributePrefix() + ".REMOVE", groupRemovals);
+            }
+        }
+        return map;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.bidms.connector.ldap;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admits requests to the directory in lanes by {@link LdapPriority}.
+ * <p>
+ * At most maxConcurrent requests run at a time.  Of those,
+ * reservedInteractive are reserved for interactive requests, so bulk
+ * requests never hold more than maxConcurrent - reservedInteractive.  A
+ * waiting interactive request is always admitted ahead of a waiting bulk
+ * request, so interactive requests only queue when every slot is taken by
+ * interactive requests or by bulk requests that were admitted before the
+ * interactive request arrived.
+ * <p>
+ * Queue depth, wait time and timeouts are kept for each lane.
+ */
+public class LdapPriorityScheduler {
+    private int maxConcurrent;
+    private int reservedInteractive;
+
+    private final Map<LdapPriority, Lane> lanes = new EnumMap<>(LdapPriority.class);
+    private int inFlight;
+
+    public LdapPriorityScheduler() {
+        this(20, 4);
+    }
+
+    /**
+     * @param maxConcurrent       The number of requests that may run at a
+     *                            time.
+     * @param reservedInteractive How many of those are reserved for
+     *                            interactive requests.
+     */
+    public LdapPriorityScheduler(int maxConcurrent, int reservedInteractive) {
+        if (reservedInteractive < 0 || reservedInteractive >= maxConcurrent) {
+            throw new IllegalArgumentException("reservedInteractive must be at least 0 and less than maxConcurrent");
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.reservedInteractive = reservedInteractive;
+        for (LdapPriority priority : LdapPriority.values()) {
+            lanes.put(priority, new Lane());
+        }
+    }
+
+    /**
+     * Wait until a request of the priority may run.  Every successful
+     * acquire must be followed by {@link #release}.
+     *
+     * @param priority      The priority of the request.
+     * @param timeoutMillis How long to wait.
+     * @return true if the request may run, false if it waited timeoutMillis
+     * and was not admitted.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized boolean acquire(LdapPriority priority, long timeoutMillis) throws InterruptedException {
+        Lane lane = lanes.get(priority);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lane.waiting++;
+        try {
+            while (!canAdmit(priority)) {
+                long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    lane.timeoutCount++;
+                    // a bulk request may have been held back by this one
+                    notifyAll();
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+            }
+        } finally {
+            lane.waiting--;
+        }
+        long waitNanos = System.nanoTime() - start;
+        lane.inFlight++;
+        lane.admittedCount++;
+        lane.totalWaitNanos += waitNanos;
+        lane.maxWaitNanos = Math.max(lane.maxWaitNanos, waitNanos);
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Wait, without a timeout, until a request of the priority may run.
+     *
+     * @param priority The priority of the request.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void acquire(LdapPriority priority) throws InterruptedException {
+        acquire(priority, Long.MAX_VALUE / 1000000);
+    }
+
+    /**
+     * Record that an admitted request completed.
+     *
+     * @param priority The priority the request was admitted with.
+     */
+    public synchronized void release(LdapPriority priority) {
+        lanes.get(priority).inFlight--;
+        inFlight--;
+        notifyAll();
+    }
+
+    private boolean canAdmit(LdapPriority priority) {
+        if (inFlight >= maxConcurrent) {
+            return false;
+        }
+        if (priority == LdapPriority.BULK) {
+            return lanes.get(LdapPriority.INTERACTIVE).waiting == 0
+                    && lanes.get(LdapPriority.BULK).inFlight < maxConcurrent - reservedInteractive;
+        }
+        return true;
+    }
+
+    /**
+     * @param priority The lane.
+     * @return The number of requests waiting in the lane.
+     */
+    public synchronized int getQueueDepth(LdapPriority priority) {
+        return lanes.get(priority).waiting;
+    }
+
+    /**
+     * @param priority The lane.
+     * @return The number of requests of the lane that are running.
+     */
+    public synchronized int getInFlight(LdapPriority priority) {
+        return lanes.get(priority).inFlight;
+    }
+
+    /**
+     * @param priority The lane.
+     * @return The number of requests admitted from the lane.
+     */
+    public synchronized long getAdmittedCount(LdapPriority priority) {
+        return lanes.get(priority).admittedCount;
+    }
+
+    /**
+     * @param priority The lane.
+     * @return The number of requests of the lane that timed out waiting.
+     */
+    public synchronized long getTimeoutCount(LdapPriority priority) {
+        return lanes.get(priority).timeoutCount;
+    }
+
+    /**
+     * @param priority The lane.
+     * @return The average time admitted requests of the lane waited.
+     */
+    public synchronized double getAverageWaitMillis(LdapPriority priority) {
+        Lane lane = lanes.get(priority);
+        return lane.admittedCount > 0 ? lane.totalWaitNanos / (double) lane.admittedCount / 1000000.0 : 0;
+    }
+
+    /**
+     * @param priority The lane.
+     * @return The longest time an admitted request of the lane waited.
+     */
+    public synchronized long getMaxWaitMillis(LdapPriority priority) {
+        return TimeUnit.NANOSECONDS.toMillis(lanes.get(priority).maxWaitNanos);
+    }
+
+    public synchronized int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public synchronized int getReservedInteractive() {
+        return reservedInteractive;
+    }
+
+    /**
+     * @param maxConcurrent       The number of requests that may run at a
+     *                            time.
+     * @param reservedInteractive How many of those are reserved for
+     *                            interactive requests.
+     */
+    public synchronized void setCapacity(int maxConcurrent, int reservedInteractive) {
+        if (reservedInteractive < 0 || reservedInteractive >= maxConcurrent) {
+            throw new IllegalArgumentException("reservedInteractive must be at least 0 and less than maxConcurrent");
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.reservedInteractive = reservedInteractive;
+        notifyAll();
+    }
+
+    private static class Lane {
+        private int waiting;
+        private int inFlight;
+        private long admittedCount;
+        private long timeoutCount;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+    }
+}
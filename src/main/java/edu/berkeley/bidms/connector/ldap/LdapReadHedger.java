@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.bidms.connector.ldap;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends a second, hedged copy of a read when the first hasn't completed
+ * within a delay, and takes whichever completes first.
+ * <p>
+ * The delay is the {@link #getPercentile() percentile} of the latencies of
+ * recent reads, so that only the slowest reads are hedged.  Until
+ * {@link #getMinSamples() minSamples} latencies are known,
+ * {@link #getInitialDelayMillis() initialDelayMillis} is used.  Hedges are
+ * limited by a budget: every read earns {@link #getBudgetRatio()
+ * budgetRatio} of a hedge, up to {@link #getMaxBudget() maxBudget} hedges,
+ * and every hedge spends one, so that hedging adds at most about
+ * budgetRatio extra reads per read.
+ * <p>
+ * The first read to complete, successfully or not, is the outcome.  The
+ * other read is abandoned by interrupting its thread, which makes a JNDI
+ * read that is waiting for its reply fail with an
+ * InterruptedNamingException, so that its thread and connection are
+ * released rather than held until the reply arrives.  A late reply to the
+ * abandoned request is discarded by JNDI.
+ */
+public class LdapReadHedger {
+    private double percentile = 0.95;
+    private int minSamples = 20;
+    private long initialDelayMillis = 50;
+    private long minDelayMillis = 1;
+    private double budgetRatio = 0.05;
+    private double maxBudget = 10;
+
+    private final long[] latencies;
+    private int latencyCount;
+    private int nextLatency;
+    private int samplesSinceDelayComputed;
+    private volatile long delayMillis = -1;
+    private double budget;
+
+    private final LongAdder readCount = new LongAdder();
+    private final LongAdder hedgeCount = new LongAdder();
+    private final LongAdder hedgeWinCount = new LongAdder();
+    private final LongAdder budgetExhaustedCount = new LongAdder();
+
+    private ExecutorService executor;
+
+    public LdapReadHedger() {
+        this(1000);
+    }
+
+    /**
+     * @param latencyWindowSize The number of recent read latencies the
+     *                          delay is computed from.
+     */
+    public LdapReadHedger(int latencyWindowSize) {
+        this.latencies = new long[Math.max(1, latencyWindowSize)];
+    }
+
+    /**
+     * Run a read, hedging it if it is slow.
+     *
+     * @param read  The read.
+     * @param hedge The same read against another server or connection.
+     * @param <T>   The type of the read result.
+     * @return The result of the read that completed first.
+     * @throws Exception The exception of the read that completed first.
+     */
+    public <T> T read(Callable<T> read, Callable<T> hedge) throws Exception {
+        readCount.increment();
+        earnBudget();
+        long start = System.nanoTime();
+        Attempt<T> original = submit(read);
+        try {
+            try {
+                T result = original.result.get(getHedgeDelayMillis(), TimeUnit.MILLISECONDS);
+                recordLatency(start);
+                return result;
+            } catch (TimeoutException e) {
+                // slow: hedge below
+            } catch (ExecutionException e) {
+                recordLatency(start);
+                throw unwrap(e.getCause());
+            }
+
+            if (!spendBudget()) {
+                budgetExhaustedCount.increment();
+                try {
+                    T result = original.result.get();
+                    recordLatency(start);
+                    return result;
+                } catch (ExecutionException e) {
+                    recordLatency(start);
+                    throw unwrap(e.getCause());
+                }
+            }
+
+            hedgeCount.increment();
+            Attempt<T> hedged = submit(hedge);
+            CompletableFuture<Object> first = CompletableFuture.anyOf(original.result, hedged.result);
+            try {
+                @SuppressWarnings("unchecked")
+                T result = (T) first.get();
+                return result;
+            } catch (ExecutionException e) {
+                throw unwrap(e.getCause());
+            } finally {
+                recordLatency(start);
+                // the original is preferred when both completed
+                if (hedged.result.isDone() && !original.result.isDone()) {
+                    hedgeWinCount.increment();
+                }
+                hedged.abandon();
+            }
+        } finally {
+            // also abandons the original when the caller is interrupted
+            original.abandon();
+        }
+    }
+
+    /**
+     * A read running on the executor.
+     */
+    private static class Attempt<T> {
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private Future<?> task;
+
+        /**
+         * Interrupt the read if it is still running.
+         */
+        private void abandon() {
+            if (!result.isDone()) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    private <T> Attempt<T> submit(Callable<T> callable) {
+        Attempt<T> attempt = new Attempt<>();
+        // a FutureTask, unlike a CompletableFuture, interrupts its thread
+        // when cancelled
+        attempt.task = getExecutor().submit(() -> {
+            try {
+                attempt.result.complete(callable.call());
+            } catch (Throwable t) {
+                attempt.result.completeExceptionally(t);
+            }
+        });
+        return attempt;
+    }
+
+    private static Exception unwrap(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return (Exception) t;
+    }
+
+    private synchronized void earnBudget() {
+        budget = Math.min(maxBudget, budget + budgetRatio);
+    }
+
+    private synchronized boolean spendBudget() {
+        if (budget >= 1) {
+            budget -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    private void recordLatency(long startNanos) {
+        long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        long[] snapshot = null;
+        synchronized (latencies) {
+            latencies[nextLatency] = latencyMillis;
+            nextLatency = (nextLatency + 1) % latencies.length;
+            latencyCount = Math.min(latencyCount + 1, latencies.length);
+            // recompute the delay every tenth of the window
+            if (latencyCount >= minSamples && ++samplesSinceDelayComputed >= Math.max(1, latencies.length / 10)) {
+                samplesSinceDelayComputed = 0;
+                snapshot = Arrays.copyOf(latencies, latencyCount);
+            }
+        }
+        if (snapshot != null) {
+            Arrays.sort(snapshot);
+            int index = (int) Math.min(snapshot.length - 1, Math.ceil(percentile * snapshot.length) - 1);
+            this.delayMillis = snapshot[Math.max(0, index)];
+        }
+    }
+
+    /**
+     * @return The delay after which a read is hedged.
+     */
+    public long getHedgeDelayMillis() {
+        long delay = delayMillis;
+        return Math.max(minDelayMillis, delay >= 0 ? delay : initialDelayMillis);
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            this.executor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "LDAP Connector Hedged Read");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Stop the threads the reads run on.  They are started again on the
+     * next read.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            this.executor = null;
+        }
+    }
+
+    /**
+     * @return The number of reads.
+     */
+    public long getReadCount() {
+        return readCount.sum();
+    }
+
+    /**
+     * @return The number of hedged reads sent.
+     */
+    public long getHedgeCount() {
+        return hedgeCount.sum();
+    }
+
+    /**
+     * @return The number of hedged reads that completed before the read
+     * they hedged.
+     */
+    public long getHedgeWinCount() {
+        return hedgeWinCount.sum();
+    }
+
+    /**
+     * @return The number of slow reads that weren't hedged because the
+     * budget was spent.
+     */
+    public long getBudgetExhaustedCount() {
+        return budgetExhaustedCount.sum();
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * @param percentile The percentile of recent read latencies after which
+     *                   a read is hedged, between 0 and 1.
+     */
+    public void setPercentile(double percentile) {
+        this.percentile = percentile;
+    }
+
+    public int getMinSamples() {
+        return minSamples;
+    }
+
+    /**
+     * @param minSamples The number of read latencies needed before the
+     *                   percentile is used.
+     */
+    public void setMinSamples(int minSamples) {
+        this.minSamples = minSamples;
+    }
+
+    public long getInitialDelayMillis() {
+        return initialDelayMillis;
+    }
+
+    /**
+     * @param initialDelayMillis The delay used until minSamples read
+     *                           latencies are known.
+     */
+    public void setInitialDelayMillis(long initialDelayMillis) {
+        this.initialDelayMillis = initialDelayMillis;
+    }
+
+    public long getMinDelayMillis() {
+        return minDelayMillis;
+    }
+
+    /**
+     * @param minDelayMillis The shortest delay after which a read is
+     *                       hedged.
+     */
+    public void setMinDelayMillis(long minDelayMillis) {
+        this.minDelayMillis = minDelayMillis;
+    }
+
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    /**
+     * @param budgetRatio The fraction of a hedge each read earns.
+     */
+    public void setBudgetRatio(double budgetRatio) {
+        this.budgetRatio = budgetRatio;
+    }
+
+    public double getMaxBudget() {
+        return maxBudget;
+    }
+
+    /**
+     * @param maxBudget The most hedges that can be saved up.
+     */
+    public void setMaxBudget(double maxBudget) {
+        this.maxBudget = maxBudget;
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.bidms.connector.ldap;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encodes and compares attribute values according to the syntax and
+ * equality matching rule of each attribute type, as described by the
+ * directory's subschema.
+ * <p>
+ * The connector otherwise treats every value as a string.  With a codec,
+ * two values are considered equal when the directory would consider them
+ * equal, so that no-op changes such as <code>"007"</code> to
+ * <code>"7"</code> for an integer attribute, or a different spacing of a DN
+ * or a telephone number, don't result in modifications.
+ * <p>
+ * By default, a change that only differs by case is still considered a
+ * modification, even for case-ignoring matching rules, so that callers can
+ * correct the case of a value.  See {@link #setIgnoreCaseOnlyChanges}.
+ * <p>
+ * Attribute types unknown to the codec are compared as exact strings.
+ */
+public class LdapSchemaCodec {
+    // Matching rules, by lower case name and OID
+    private enum Rule {
+        CASE_IGNORE, CASE_EXACT, NUMERIC_STRING, TELEPHONE_NUMBER, INTEGER, BOOLEAN, DISTINGUISHED_NAME, OBJECT_IDENTIFIER, OCTET_STRING, EXACT
+    }
+
+    private static final Map<String, Rule> MATCHING_RULES = new HashMap<>();
+
+    static {
+        registerRule(Rule.CASE_IGNORE, "caseIgnoreMatch", "2.5.13.2", "caseIgnoreIA5Match", "1.3.6.1.4.1.1466.109.114.2", "caseIgnoreListMatch", "2.5.13.11");
+        registerRule(Rule.CASE_EXACT, "caseExactMatch", "2.5.13.5", "caseExactIA5Match", "1.3.6.1.4.1.1466.109.114.1");
+        registerRule(Rule.NUMERIC_STRING, "numericStringMatch", "2.5.13.8");
+        registerRule(Rule.TELEPHONE_NUMBER, "telephoneNumberMatch", "2.5.13.20");
+        registerRule(Rule.INTEGER, "integerMatch", "2.5.13.14");
+        registerRule(Rule.BOOLEAN, "booleanMatch", "2.5.13.13");
+        registerRule(Rule.DISTINGUISHED_NAME, "distinguishedNameMatch", "2.5.13.1", "uniqueMemberMatch", "2.5.13.23");
+        registerRule(Rule.OBJECT_IDENTIFIER, "objectIdentifierMatch", "2.5.13.0");
+        registerRule(Rule.OCTET_STRING, "octetStringMatch", "2.5.13.17");
+    }
+
+    private static void registerRule(Rule rule, String... namesAndOids) {
+        for (String nameOrOid : namesAndOids) {
+            MATCHING_RULES.put(nameOrOid.toLowerCase(Locale.ROOT), rule);
+        }
+    }
+
+    /**
+     * Syntax OIDs with encodings the codec provides.
+     */
+    public static final String BOOLEAN_SYNTAX = "1.3.6.1.4.1.1466.115.121.1.7";
+    public static final String GENERALIZED_TIME_SYNTAX = "1.3.6.1.4.1.1466.115.121.1.24";
+    public static final String INTEGER_SYNTAX = "1.3.6.1.4.1.1466.115.121.1.27";
+
+    /**
+     * An attribute type from the subschema.
+     */
+    public static class AttributeType {
+        private final String oid;
+        private final List<String> names;
+        private final String superType;
+        private final String equality;
+        private final String syntax;
+        private Rule rule;
+        private String resolvedEquality;
+        private String resolvedSyntax;
+
+        AttributeType(String oid, List<String> names, String superType, String equality, String syntax) {
+            this.oid = oid;
+            this.names = names;
+            this.superType = superType;
+            this.equality = equality;
+            this.syntax = syntax;
+        }
+
+        public String getOid() {
+            return oid;
+        }
+
+        public List<String> getNames() {
+            return names;
+        }
+
+        public String getSuperType() {
+            return superType;
+        }
+
+        /**
+         * @return The equality matching rule, which may be inherited from
+         * the super type.
+         */
+        public String getEquality() {
+            return resolvedEquality;
+        }
+
+        /**
+         * @return The syntax OID, which may be inherited from the super
+         * type.
+         */
+        public String getSyntax() {
+            return resolvedSyntax;
+        }
+    }
+
+    private final Map<String, AttributeType> attributeTypes = new HashMap<>();
+    private final List<AttributeType> attributeTypeList = new ArrayList<>();
+    private boolean ignoreCaseOnlyChanges;
+
+    /**
+     * Build a codec from the attributeTypes values of a subschema entry,
+     * which are RFC 4512 AttributeTypeDescription strings.
+     *
+     * @param attributeTypeDescriptions The attributeTypes values.
+     * @return The codec.
+     */
+    public static LdapSchemaCodec fromAttributeTypeDescriptions(Collection<String> attributeTypeDescriptions) {
+        LdapSchemaCodec codec = new LdapSchemaCodec();
+        for (String description : attributeTypeDescriptions) {
+            AttributeType type = parseAttributeTypeDescription(description);
+            if (type != null) {
+                codec.attributeTypeList.add(type);
+                codec.attributeTypes.put(type.oid.toLowerCase(Locale.ROOT), type);
+                for (String name : type.names) {
+                    codec.attributeTypes.put(name.toLowerCase(Locale.ROOT), type);
+                }
+            }
+        }
+        for (AttributeType type : codec.attributeTypeList) {
+            codec.resolve(type, 0);
+        }
+        return codec;
+    }
+
+    /**
+     * @return true if values that only differ by case are considered equal
+     * for attributes with a case-ignoring matching rule.  Defaults to
+     * false.
+     */
+    public boolean isIgnoreCaseOnlyChanges() {
+        return ignoreCaseOnlyChanges;
+    }
+
+    /**
+     * @param ignoreCaseOnlyChanges true to consider values that only differ
+     *                              by case equal for attributes with a
+     *                              case-ignoring matching rule.  The
+     *                              directory value then keeps its case.
+     */
+    public void setIgnoreCaseOnlyChanges(boolean ignoreCaseOnlyChanges) {
+        this.ignoreCaseOnlyChanges = ignoreCaseOnlyChanges;
+    }
+
+    /**
+     * @param attributeName An attribute name or OID.
+     * @return The attribute type, or null if the attribute type is not in
+     * the schema.
+     */
+    public AttributeType getAttributeType(String attributeName) {
+        if (attributeName == null) {
+            return null;
+        }
+        int optionsIndex = attributeName.indexOf(';');
+        String name = optionsIndex >= 0 ? attributeName.substring(0, optionsIndex) : attributeName;
+        return attributeTypes.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return The number of attribute types known to the codec.
+     */
+    public int size() {
+        return attributeTypeList.size();
+    }
+
+    /**
+     * Encode a caller-provided value for the directory according to the
+     * attribute's syntax.  Boolean values are encoded as
+     * <code>TRUE</code> or <code>FALSE</code>, dates for generalized time
+     * attributes are encoded in UTC generalized time, and integral numbers
+     * for integer attributes are encoded without leading zeros.  Other
+     * numbers, such as a Double, have no particular encoding.
+     *
+     * @param attributeName The attribute name.
+     * @param value         The caller-provided value.
+     * @return The encoded string value, or null if the codec has no
+     * particular encoding for the value.
+     */
+    public String encode(String attributeName, Object value) {
+        AttributeType type = getAttributeType(attributeName);
+        String syntax = type != null ? type.resolvedSyntax : null;
+        if (syntax == null) {
+            return null;
+        }
+        if (BOOLEAN_SYNTAX.equals(syntax) && (value instanceof Boolean || value instanceof String)) {
+            String str = value.toString().trim();
+            if (str.equalsIgnoreCase("true") || str.equalsIgnoreCase("false")) {
+                return str.toUpperCase(Locale.ROOT);
+            }
+        } else if (GENERALIZED_TIME_SYNTAX.equals(syntax) && value instanceof Date) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format.format((Date) value);
+        } else if (INTEGER_SYNTAX.equals(syntax) && value instanceof Number) {
+            BigInteger integer = toBigInteger((Number) value);
+            return integer != null ? integer.toString() : null;
+        }
+        return null;
+    }
+
+    /**
+     * @param number A number.
+     * @return The number as a BigInteger, or null if it isn't of an
+     * integral type.
+     */
+    private static BigInteger toBigInteger(Number number) {
+        if (number instanceof BigInteger) {
+            return (BigInteger) number;
+        } else if (number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte
+                || number instanceof AtomicInteger || number instanceof AtomicLong) {
+            return BigInteger.valueOf(number.longValue());
+        } else if (number instanceof BigDecimal) {
+            try {
+                return ((BigDecimal) number).toBigIntegerExact();
+            } catch (ArithmeticException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Normalize a single value according to the attribute's equality
+     * matching rule.  Two values are equal to the directory if their
+     * normalized values are equal.
+     *
+     * @param attributeName The attribute name.
+     * @param value         A single value.
+     * @return The normalized value.
+     */
+    public Object normalize(String attributeName, Object value) {
+        return normalize(attributeName, value, ignoreCaseOnlyChanges);
+    }
+
+    /**
+     * Normalize a single value according to the attribute's equality
+     * matching rule.
+     *
+     * @param attributeName The attribute name.
+     * @param value         A single value.
+     * @param foldCase      If false, case-ignoring matching rules still
+     *                      preserve case in the normalized value.
+     * @return The normalized value.
+     */
+    public Object normalize(String attributeName, Object value, boolean foldCase) {
+        if (value == null) {
+            return null;
+        }
+        AttributeType type = getAttributeType(attributeName);
+        Rule rule = type != null && type.rule != null ? type.rule : Rule.EXACT;
+        if (value instanceof byte[]) {
+            return toHex((byte[]) value);
+        }
+        String str = value.toString();
+        switch (rule) {
+            case CASE_IGNORE:
+                str = collapseSpaces(str);
+                return foldCase ? str.toLowerCase(Locale.ROOT) : str;
+            case CASE_EXACT:
+                return collapseSpaces(str);
+            case NUMERIC_STRING:
+                return removeChars(str, " ");
+            case TELEPHONE_NUMBER:
+                str = removeChars(str, " -");
+                return foldCase ? str.toLowerCase(Locale.ROOT) : str;
+            case INTEGER:
+                try {
+                    return new BigInteger(str.trim()).toString();
+                } catch (NumberFormatException e) {
+                    return str;
+                }
+            case BOOLEAN:
+                return str.trim().toUpperCase(Locale.ROOT);
+            case DISTINGUISHED_NAME:
+                try {
+                    CanonicalDn dn = CanonicalDn.valueOf(str);
+                    return foldCase ? dn.getNormalizedString() : dn.getCaseSensitiveNormalizedString();
+                } catch (RuntimeException e) {
+                    return str;
+                }
+            case OBJECT_IDENTIFIER:
+                return str.trim().toLowerCase(Locale.ROOT);
+            case OCTET_STRING:
+            case EXACT:
+            default:
+                return str;
+        }
+    }
+
+    /**
+     * Compare two attribute values, each of which may be a single value or
+     * a collection of values, according to the attribute's equality
+     * matching rule.  Multi-valued attributes are compared without regard
+     * to order.
+     *
+     * @param attributeName The attribute name.
+     * @param value1        The first value.
+     * @param value2        The second value.
+     * @return true if the directory would consider the values equal.
+     */
+    public boolean valuesEqual(String attributeName, Object value1, Object value2) {
+        List<Object> normalized1 = normalizeAll(attributeName, value1);
+        List<Object> normalized2 = normalizeAll(attributeName, value2);
+        if (normalized1.size() != normalized2.size()) {
+            return false;
+        }
+        Map<Object, Integer> counts = new HashMap<>();
+        for (Object normalized : normalized1) {
+            counts.merge(normalized, 1, Integer::sum);
+        }
+        for (Object normalized : normalized2) {
+            Integer count = counts.get(normalized);
+            if (count == null) {
+                return false;
+            }
+            if (count == 1) {
+                counts.remove(normalized);
+            } else {
+                counts.put(normalized, count - 1);
+            }
+        }
+        return counts.isEmpty();
+    }
+
+    private List<Object> normalizeAll(String attributeName, Object value) {
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        if (value instanceof Collection) {
+            List<Object> list = new ArrayList<>(((Collection<?>) value).size());
+            for (Object v : (Collection<?>) value) {
+                list.add(normalize(attributeName, v));
+            }
+            return list;
+        }
+        return Collections.singletonList(normalize(attributeName, value));
+    }
+
+    private void resolve(AttributeType type, int depth) {
+        if (type.rule != null || type.resolvedSyntax != null) {
+            return;
+        }
+        String equality = type.equality;
+        String syntax = type.syntax;
+        AttributeType superType = type.superType != null ? attributeTypes.get(type.superType.toLowerCase(Locale.ROOT)) : null;
+        // guard against cycles in a broken schema
+        if (superType != null && superType != type && depth < 32) {
+            resolve(superType, depth + 1);
+            if (equality == null) {
+                equality = superType.resolvedEquality;
+                type.rule = superType.rule;
+            }
+            if (syntax == null) {
+                syntax = superType.resolvedSyntax;
+            }
+        }
+        if (type.equality != null) {
+            type.rule = MATCHING_RULES.get(type.equality.toLowerCase(Locale.ROOT));
+        }
+        type.resolvedEquality = equality;
+        type.resolvedSyntax = syntax;
+    }
+
+    /**
+     * Parse a RFC 4512 AttributeTypeDescription.
+     *
+     * @param description The description.
+     * @return The attribute type, or null if the description couldn't be
+     * parsed.
+     */
+    static AttributeType parseAttributeTypeDescription(String description) {
+        List<String> tokens = tokenize(description);
+        if (tokens.size() < 3 || !tokens.get(0).equals("(")) {
+            return null;
+        }
+        String oid = tokens.get(1);
+        List<String> names = new ArrayList<>();
+        String superType = null;
+        String equality = null;
+        String syntax = null;
+        for (int i = 2; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            switch (token.toUpperCase(Locale.ROOT)) {
+                case "NAME":
+                    i = readValues(tokens, i + 1, names);
+                    break;
+                case "SUP":
+                    superType = i + 1 < tokens.size() ? tokens.get(++i) : null;
+                    break;
+                case "EQUALITY":
+                    equality = i + 1 < tokens.size() ? tokens.get(++i) : null;
+                    break;
+                case "SYNTAX":
+                    syntax = i + 1 < tokens.size() ? tokens.get(++i) : null;
+                    // strip the optional length bound, e.g. {64}
+                    if (syntax != null && syntax.indexOf('{') > 0) {
+                        syntax = syntax.substring(0, syntax.indexOf('{'));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return new AttributeType(oid, names, superType, equality, syntax);
+    }
+
+    /**
+     * Reads either a single value or a parenthesized list of values
+     * starting at index.
+     *
+     * @return The index of the last token consumed.
+     */
+    private static int readValues(List<String> tokens, int index, List<String> values) {
+        if (index >= tokens.size()) {
+            return index;
+        }
+        if (!tokens.get(index).equals("(")) {
+            values.add(tokens.get(index));
+            return index;
+        }
+        int i = index + 1;
+        while (i < tokens.size() && !tokens.get(i).equals(")")) {
+            if (!tokens.get(i).equals("$")) {
+                values.add(tokens.get(i));
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private static List<String> tokenize(String description) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        int len = description.length();
+        while (i < len) {
+            char c = description.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')') {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else if (c == '\'') {
+                int end = description.indexOf('\'', i + 1);
+                if (end < 0) {
+                    end = len;
+                }
+                tokens.add(description.substring(i + 1, end));
+                i = end + 1;
+            } else {
+                int start = i;
+                while (i < len && !Character.isWhitespace(description.charAt(i)) && description.charAt(i) != '(' && description.charAt(i) != ')') {
+                    i++;
+                }
+                tokens.add(description.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    private static String collapseSpaces(String str) {
+        StringBuilder sb = new StringBuilder(str.length());
+        boolean inSpace = false;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == ' ') {
+                inSpace = true;
+            } else {
+                if (inSpace && sb.length() > 0) {
+                    sb.append(' ');
+                }
+                inSpace = false;
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String removeChars(String str, String chars) {
+        StringBuilder sb = new StringBuilder(str.length());
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (chars.indexOf(c) < 0) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2 + 1);
+        sb.append('#');
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.bidms.connector.ldap;
+
+import org.springframework.ldap.support.LdapUtils;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The controls, extended operations and features a directory server
+ * advertises in its root DSE.
+ */
+public class LdapServerCapabilities {
+    /**
+     * The root DSE attributes read to determine the capabilities.
+     */
+    public static final String[] ROOT_DSE_ATTRIBUTES = {"supportedControl", "supportedExtension", "supportedFeatures", "vendorName"};
+
+    /**
+     * Capabilities of a server that advertises nothing.
+     */
+    public static final LdapServerCapabilities NONE = new LdapServerCapabilities(Collections.<String>emptySet(), Collections.<String>emptySet(), Collections.<String>emptySet(), null);
+
+    private final Set<String> supportedControls;
+    private final Set<String> supportedExtensions;
+    private final Set<String> supportedFeatures;
+    private final String vendorName;
+
+    public LdapServerCapabilities(Set<String> supportedControls, Set<String> supportedExtensions, Set<String> supportedFeatures, String vendorName) {
+        this.supportedControls = Collections.unmodifiableSet(new LinkedHashSet<>(supportedControls));
+        this.supportedExtensions = Collections.unmodifiableSet(new LinkedHashSet<>(supportedExtensions));
+        this.supportedFeatures = Collections.unmodifiableSet(new LinkedHashSet<>(supportedFeatures));
+        this.vendorName = vendorName;
+    }
+
+    /**
+     * @param rootDseAttributes The {@link #ROOT_DSE_ATTRIBUTES} of the root
+     *                          DSE.
+     * @return The capabilities.
+     */
+    public static LdapServerCapabilities fromRootDse(Attributes rootDseAttributes) {
+        Set<String> vendorNames = values(rootDseAttributes.get("vendorName"));
+        return new LdapServerCapabilities(
+                values(rootDseAttributes.get("supportedControl")),
+                values(rootDseAttributes.get("supportedExtension")),
+                values(rootDseAttributes.get("supportedFeatures")),
+                vendorNames.isEmpty() ? null : vendorNames.iterator().next()
+        );
+    }
+
+    private static Set<String> values(Attribute attr) {
+        Set<String> values = new LinkedHashSet<>();
+        if (attr != null) {
+            try {
+                NamingEnumeration<?> all = attr.getAll();
+                while (all.hasMore()) {
+                    values.add(all.next().toString());
+                }
+            } catch (NamingException e) {
+                throw LdapUtils.convertLdapException(e);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @param oid A control OID.
+     * @return true if the server advertises the control.
+     */
+    public boolean supportsControl(String oid) {
+        return supportedControls.contains(oid);
+    }
+
+    /**
+     * @param oid An extended operation OID.
+     * @return true if the server advertises the extended operation.
+     */
+    public boolean supportsExtension(String oid) {
+        return supportedExtensions.contains(oid);
+    }
+
+    public Set<String> getSupportedControls() {
+        return supportedControls;
+    }
+
+    public Set<String> getSupportedExtensions() {
+        return supportedExtensions;
+    }
+
+    public Set<String> getSupportedFeatures() {
+        return supportedFeatures;
+    }
+
+    public String getVendorName() {
+        return vendorName;
+    }
+
+    @Override
+    public String toString() {
+        return "LdapServerCapabilities{" +
+                "vendorName='" + vendorName + '\'' +
+                ", supportedControls=" + supportedControls +
+                ", supportedExtensions=" + supportedExtensions +
+                ", supportedFeatures=" + supportedFeatures +
+                '}';
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.bidms.connector.ldap;
+
+/**
+ * One entry and attribute value for a bulk set attribute request.  The
+ * entry is identified by its DN, or if the DN is null, by its primary key.
+ */
+public class LdapSetAttributeItem {
+    private String pkey;
+    private String dn;
+    private Object value;
+    private Object oldValue;
+
+    public LdapSetAttributeItem() {
+    }
+
+    public LdapSetAttributeItem(String pkey, String dn, Object value) {
+        this.pkey = pkey;
+        this.dn = dn;
+        this.value = value;
+    }
+
+    /**
+     * @return The primary key of the entry.  Used to find the entry when
+     * the DN is null.
+     */
+    public String getPkey() {
+        return pkey;
+    }
+
+    public void setPkey(String pkey) {
+        this.pkey = pkey;
+    }
+
+    /**
+     * @return The DN of the entry, or null to find the entry by its
+     * primary key.
+     */
+    public String getDn() {
+        return dn;
+    }
+
+    public void setDn(String dn) {
+        this.dn = dn;
+    }
+
+    /**
+     * @return The new attribute value.
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    public void setValue(Object value) {
+        this.value = value;
+    }
+
+    /**
+     * @return The old attribute value, which is removed when the bulk set
+     * uses the remove and add approach.
+     */
+    public Object getOldValue() {
+        return oldValue;
+    }
+
+    public void setOldValue(Object oldValue) {
+        this.oldValue = oldValue;
+    }
+
+    @Override
+    public String toString() {
+        return "LdapSetAttributeItem{" +
+                "pkey='" + pkey + '\'' +
+                ", dn='" + dn + '\'' +
+                '}';
+    }
+}
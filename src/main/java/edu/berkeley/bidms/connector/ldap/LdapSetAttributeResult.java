@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.bidms.connector.ldap;
+
+/**
+ * The outcome of setting an attribute for one item of a bulk set attribute
+ * request.
+ */
+public class LdapSetAttributeResult {
+    private final LdapSetAttributeItem item;
+    private final String dn;
+    private final FoundObjectMethod foundMethod;
+    private final Throwable exception;
+
+    public LdapSetAttributeResult(LdapSetAttributeItem item, String dn, FoundObjectMethod foundMethod, Throwable exception) {
+        this.item = item;
+        this.dn = dn;
+        this.foundMethod = foundMethod;
+        this.exception = exception;
+    }
+
+    public LdapSetAttributeItem getItem() {
+        return item;
+    }
+
+    /**
+     * @return The DN of the modified entry, or null if the entry was not
+     * found.
+     */
+    public String getDn() {
+        return dn;
+    }
+
+    public FoundObjectMethod getFoundMethod() {
+        return foundMethod;
+    }
+
+    public Throwable getException() {
+        return exception;
+    }
+
+    public boolean isSuccess() {
+        return exception == null;
+    }
+
+    @Override
+    public String toString() {
+        return "LdapSetAttributeResult{" +
+                "item=" + item +
+                ", dn='" + dn + '\'' +
+                ", foundMethod=" + foundMethod +
+                ", exception=" + exception +
+                '}';
+    }
+}
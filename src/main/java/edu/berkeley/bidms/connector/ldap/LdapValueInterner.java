@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2017, Regents of the University of California and
+ * contributors.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.bidms.connector.ldap;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of canonical string instances for attribute values that
+ * repeat across many entries, such as objectClass values, department
+ * names, affiliations and OU names.  Retaining one instance of each such
+ * value shrinks the heap held by mapped entries and queued event
+ * messages.
+ * <p>
+ * Only values no longer than the maximum value length are interned.  Once
+ * the pool holds the maximum number of values, new values are no longer
+ * added to it, but values already in the pool continue to be shared.  The
+ * pool is thread safe.
+ */
+public class LdapValueInterner {
+    public static final int DEFAULT_MAXIMUM_SIZE = 50000;
+    public static final int DEFAULT_MAXIMUM_VALUE_LENGTH = 128;
+
+    private final ConcurrentHashMap<String, String> pool = new ConcurrentHashMap<>();
+    private final int maximumSize;
+    private final int maximumValueLength;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    public LdapValueInterner() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_MAXIMUM_VALUE_LENGTH);
+    }
+
+    /**
+     * @param maximumSize        The maximum number of values in the pool.
+     * @param maximumValueLength Values longer than this are not interned.
+     */
+    public LdapValueInterner(int maximumSize, int maximumValueLength) {
+        if (maximumSize < 0 || maximumValueLength < 0) {
+            throw new IllegalArgumentException("maximumSize and maximumValueLength must not be negative");
+        }
+        this.maximumSize = maximumSize;
+        this.maximumValueLength = maximumValueLength;
+    }
+
+    /**
+     * @param value A value.
+     * @return The pooled instance equal to the value, or the value itself
+     * if it's not pooled.
+     */
+    public String intern(String value) {
+        if (value == null || value.length() > maximumValueLength) {
+            return value;
+        }
+        String pooled = pool.get(value);
+        if (pooled != null) {
+            hitCount.increment();
+            return pooled;
+        }
+        missCount.increment();
+        if (pool.size() >= maximumSize) {
+            return value;
+        }
+        pooled = pool.putIfAbsent(value, value);
+        return pooled != null ? pooled : value;
+    }
+
+    /**
+     * @param value A value of any type.
+     * @return The pooled instance if the value is a String, otherwise the
+     * value itself.
+     */
+    public Object internValue(Object value) {
+        return value instanceof String ? intern((String) value) : value;
+    }
+
+    /**
+     * Replace the string values of an attribute with their pooled
+     * instances.
+     *
+     * @param attr The attribute, which must be modifiable.
+     * @throws NamingException If the attribute values can't be read.
+     */
+    public void internValues(Attribute attr) throws NamingException {
+        for (int i = 0; i < attr.size(); i++) {
+            Object value = attr.get(i);
+            if (value instanceof String) {
+                String pooled = intern((String) value);
+                if (pooled != value) {
+                    attr.set(i, pooled);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of values in the pool.
+     */
+    public int size() {
+        return pool.size();
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public int getMaximumValueLength() {
+        return maximumValueLength;
+    }
+
+    /**
+     * @return The number of intern calls that returned a pooled instance.
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * @return The number of intern calls for values of an internable length
+     * that were not yet pooled.
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * @return The fraction of intern calls for values of an internable
+     * length that returned a pooled instance, or 0 if there have been no
+     * such calls.
+     */
+    public double getHitRate() {
+        long hits = hitCount.sum();
+        long total = hits + missCount.sum();
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    /**
+     * Remove all values from the pool and reset the statistics.
+     */
+    public void clear() {
+        pool.clear();
+        hitCount.reset();
+        missCount.reset();
+    }
+}
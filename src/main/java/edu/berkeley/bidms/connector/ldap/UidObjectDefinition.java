@@ -27,6 +27,9 @@
 package edu.berkeley.bidms.connector.ldap;
 
 import org.springframework.ldap.query.LdapQuery;
+import org.springframework.ldap.query.SearchScope;
+
+import java.util.List;
 
 import static org.springframework.ldap.query.LdapQueryBuilder.query;
 
@@ -95,6 +98,32 @@ public class UidObjectDefinition implements LdapObjectDefinition {
      */
     private String groupDirectiveMetaAttributePrefix;
 
+    /**
+     * The optional attribute that lists the DNs of the groups an entry is a
+     * member of, such as <code>memberOf</code> or <code>isMemberOf</code>.
+     * See {@link LdapObjectDefinition#getMemberOfAttributeName}.
+     */
+    private String memberOfAttributeName;
+
+    /**
+     * The number of values to request per range when reading large
+     * multi-valued attributes, or 0 to let the server decide.  See {@link
+     * LdapObjectDefinition#getAttributeValueRangeSize}.
+     */
+    private int attributeValueRangeSize;
+
+    /**
+     * The bases to search for objects, or null to search from the base of
+     * the context source.  See {@link LdapObjectDefinition#getSearchBases}.
+     */
+    private List<String> searchBases;
+
+    /**
+     * The scope of searches for objects.  See {@link
+     * LdapObjectDefinition#getSearchScope}.
+     */
+    private SearchScope searchScope = SearchScope.SUBTREE;
+
     /**
      * The globally unique identifier attribute in the directory, which is
      * typically an operational attribute.
@@ -337,4 +366,83 @@ public class UidObjectDefinition implements LdapObjectDefinition {
     public String getGroupMemberAttributeName() {
         return "uniqueMember";
     }
+
+    /**
+     * The optional attribute that lists the DNs of the groups an entry is a
+     * member of.  When set, group directives that wouldn't change the group
+     * are skipped.  See {@link LdapObjectDefinition#getMemberOfAttributeName}.
+     *
+     * @return The name of the attribute that lists the groups of an entry,
+     * or null.
+     */
+    @Override
+    public String getMemberOfAttributeName() {
+        return memberOfAttributeName;
+    }
+
+    /**
+     * @param memberOfAttributeName The name of the attribute that lists the
+     *                              DNs of the groups an entry is a member
+     *                              of, such as <code>memberOf</code>, or
+     *                              null.
+     */
+    public void setMemberOfAttributeName(String memberOfAttributeName) {
+        this.memberOfAttributeName = memberOfAttributeName;
+    }
+
+    /**
+     * The number of values to request per range when reading large
+     * multi-valued attributes such as group members.  See {@link
+     * LdapObjectDefinition#getAttributeValueRangeSize}.
+     *
+     * @return The number of values per range, or 0 to let the server
+     * decide.
+     */
+    @Override
+    public int getAttributeValueRangeSize() {
+        return attributeValueRangeSize;
+    }
+
+    /**
+     * @param attributeValueRangeSize The number of values to request per
+     *                                range, or 0 to let the server decide.
+     */
+    public void setAttributeValueRangeSize(int attributeValueRangeSize) {
+        this.attributeValueRangeSize = attributeValueRangeSize;
+    }
+
+    /**
+     * The bases to search for objects.  See {@link
+     * LdapObjectDefinition#getSearchBases}.
+     *
+     * @return The search bases, or null to search from the base of the
+     * context source.
+     */
+    @Override
+    public List<String> getSearchBases() {
+        return searchBases;
+    }
+
+    /**
+     * @param searchBases The search bases, or null to search from the base
+     *                    of the context source.
+     */
+    public void setSearchBases(List<String> searchBases) {
+        this.searchBases = searchBases;
+    }
+
+    /**
+     * @return The scope of searches for objects.
+     */
+    @Override
+    public SearchScope getSearchScope() {
+        return searchScope;
+    }
+
+    /**
+     * @param searchScope The scope of searches for objects.
+     */
+    public void setSearchScope(SearchScope searchScope) {
+        this.searchScope = searchScope;
+    }
 }
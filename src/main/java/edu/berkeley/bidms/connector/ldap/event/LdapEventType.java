@@ -37,5 +37,6 @@ public enum LdapEventType {
     UNIQUE_IDENTIFIER_EVENT,
     REMOVE_ATTRIBUTES_EVENT,
     SET_ATTRIBUTE_EVENT,
-    PERSIST_COMPLETION_EVENT
+    PERSIST_COMPLETION_EVENT,
+    GROUP_MEMBERSHIP_EVENT
 }
\ No newline at end of file
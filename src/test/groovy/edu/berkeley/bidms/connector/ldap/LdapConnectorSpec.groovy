@@ -31,6 +31,7 @@ import edu.berkeley.bidms.connector.ConnectorObjectNotFoundException
 import edu.berkeley.bidms.connector.ldap.event.LdapCallbackContext
 import edu.berkeley.bidms.connector.ldap.event.LdapDeleteEventCallback
 import edu.berkeley.bidms.connector.ldap.event.LdapEventType
+import edu.berkeley.bidms.connector.ldap.event.LdapGroupMembershipEventCallback
 import edu.berkeley.bidms.connector.ldap.event.LdapInsertEventCallback
 import edu.berkeley.bidms.connector.ldap.event.LdapPersistCompletionEventCallback
 import edu.berkeley.bidms.connector.ldap.event.LdapRemoveAttributesEventCallback
@@ -39,19 +40,27 @@ import edu.berkeley.bidms.connector.ldap.event.LdapSetAttributeEventCallback
 import edu.berkeley.bidms.connector.ldap.event.LdapUniqueIdentifierEventCallback
 import edu.berkeley.bidms.connector.ldap.event.LdapUpdateEventCallback
 import edu.berkeley.bidms.connector.ldap.event.message.LdapDeleteEventMessage
+import edu.berkeley.bidms.connector.ldap.event.message.LdapGroupMembershipEventMessage
 import edu.berkeley.bidms.connector.ldap.event.message.LdapInsertEventMessage
+import edu.berkeley.bidms.connector.ldap.event.message.LdapPersistCompletionEventMessage
 import edu.berkeley.bidms.connector.ldap.event.message.LdapRenameEventMessage
 import edu.berkeley.bidms.connector.ldap.event.message.LdapUniqueIdentifierEventMessage
 import edu.berkeley.bidms.connector.ldap.event.message.LdapUpdateEventMessage
 import org.slf4j.LoggerFactory
+import org.springframework.dao.EmptyResultDataAccessException
 import org.springframework.ldap.AuthenticationException
 import org.springframework.ldap.NameNotFoundException
+import org.springframework.ldap.TimeLimitExceededException
+import org.springframework.ldap.core.ContextExecutor
+import org.springframework.ldap.core.ContextMapper
+import org.springframework.ldap.core.ContextSource
 import org.springframework.ldap.core.DirContextAdapter
 import org.springframework.ldap.core.LdapTemplate
 import org.springframework.ldap.core.support.LdapContextSource
 import org.springframework.ldap.pool2.factory.PoolConfig
 import org.springframework.ldap.pool2.factory.PooledContextSource
 import org.springframework.ldap.query.LdapQuery
+import org.springframework.ldap.query.SearchScope
 import org.springframework.ldap.support.LdapNameBuilder
 import io.github.bkoehm.apacheds.embedded.EmbeddedLdapServer
 import spock.lang.Shared
@@ -60,8 +69,18 @@ import spock.lang.Unroll
 
 import javax.naming.Name
 import javax.naming.NamingException
+import javax.naming.directory.BasicAttribute
+import javax.naming.directory.BasicAttributes
+import javax.naming.directory.DirContext
+import javax.naming.directory.ModificationItem
+import javax.naming.ldap.Control
+import javax.naming.ldap.LdapContext
 import javax.naming.ldap.LdapName
+import javax.naming.ldap.ManageReferralControl
 import javax.naming.ldap.Rdn
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
 
 import static org.springframework.ldap.query.LdapQueryBuilder.query
 
@@ -284,6 +303,31 @@ class LdapConnectorSpec extends Specification {
         "case sensitivity enabled, mixed case attribute values: not equivalent" | true                   | "uid=abc" | "UID=ABC" || false
     }
 
+    @Unroll
+    void "test dnEquals with interned canonical DNs: #description"() {
+        given:
+        UidObjectDefinition objectDef = new UidObjectDefinition(
+                caseSensitiveDnCheckingEnabled: caseSensitivityEnabled
+        )
+
+        when:
+        boolean result = ldapConnector.dnEquals(objectDef, ldapConnector.buildDnName(name1), ldapConnector.buildDnName(name2))
+
+        then:
+        result == expectedResult
+        result == LdapConnector.nameEquals(objectDef, new LdapName(name1), new LdapName(name2))
+        ldapConnector.canonicalDn(name1).is(ldapConnector.canonicalDn(name1))
+
+        where:
+        description                                                    | caseSensitivityEnabled | name1                  | name2                  || expectedResult
+        "case sensitivity not enabled with mixed case"                 | false                  | "uid=abc,dc=edu"       | "UID=ABC,DC=EDU"       || true
+        "case sensitivity not enabled with escaped values"             | false                  | "uid=a\\,b,dc=edu"     | "uid=A\\,B,dc=edu"     || true
+        "case sensitivity enabled, mixed case attribute names"         | true                   | "uid=abc,dc=edu"       | "UID=abc,DC=edu"       || true
+        "case sensitivity enabled, mixed case attribute values"        | true                   | "uid=abc,dc=edu"       | "uid=ABC,dc=edu"       || false
+        "multi-valued rdn in a different order"                        | false                  | "cn=a+uid=b,dc=edu"    | "uid=b+cn=a,dc=edu"    || true
+        "case sensitivity enabled, repeated attribute names in the dn" | true                   | "dc=foo,dc=edu"        | "dc=foo,dc=org"        || false
+    }
+
     @Unroll("#description")
     void "test LdapConnector persistence"() {
         given:
@@ -694,6 +738,56 @@ class LdapConnectorSpec extends Specification {
         "delete by DN when there's a subordinate"                 | true            | false      | true              | "uid=1,ou=people,dc=berkeley,dc=edu" | null     || false       | 0             | 2
     }
 
+    void "test deleting a subtree from the bottom up"() {
+        given:
+        UidObjectDefinition objDef = new UidObjectDefinition(objectClass: "person")
+        LdapRequestContext reqCtx = new LdapRequestContext(ldapTemplate, "eventId", objDef, null)
+        String dn = "uid=1,ou=people,dc=berkeley,dc=edu"
+        List<String> subordinateDns = [
+                "uid=2,$dn",
+                "uid=3,$dn",
+                "uid=4,uid=2,$dn",
+                "uid=5,uid=2,$dn",
+                "uid=6,uid=3,$dn"
+        ]*.toString()
+
+        when:
+        addOu("people")
+        addTestEntry(dn, "1")
+        subordinateDns.each { addTestEntry(it, it.substring(4, 5)) }
+        ldapConnector.delete(reqCtx, "1", ldapConnector.buildDnName(dn))
+        Map<String, Object> retrieved = lookupDn(dn)
+
+        and: "cleanup"
+        deleteOu("people")
+
+        then:
+        ldapConnector.serverCapabilities.supportedControls
+        retrieved == null
+        6 * deleteEventCallback.receive({ it.success })
+    }
+
+    void "test reading the server capabilities with a context source that has a base"() {
+        given:
+        LdapContextSource basedLdapContextSource = new LdapContextSource()
+        basedLdapContextSource.with {
+            userDn = "uid=admin,ou=system"
+            password = "secret"
+            url = "ldap://localhost:10389"
+            base = "dc=berkeley,dc=edu"
+        }
+        basedLdapContextSource.afterPropertiesSet()
+        ldapConnector.contextSource = basedLdapContextSource
+
+        when:
+        LdapServerCapabilities capabilities = ldapConnector.getServerCapabilities()
+
+        then:
+        capabilities.supportedControls
+        ldapConnector.serverCapabilities.is(capabilities)
+        ldapConnector.getRootProviderUrl("ldap://a:389/dc=berkeley,dc=edu ldaps://b/") == "ldap://a:389/ ldaps://b/"
+    }
+
     void "test updates without specifying a DN"() {
         given:
         UidObjectDefinition objDef = new UidObjectDefinition(
@@ -1263,6 +1357,46 @@ class LdapConnectorSpec extends Specification {
         1 * persistCompletionEventCallback.receive(_)
     }
 
+    void "test attribute removal of missing attributes: #description"() {
+        given:
+        UidObjectDefinition objDef = new UidObjectDefinition(
+                objectClass: "person",
+                keepExistingAttributesWhenUpdating: true,
+                removeDuplicatePrimaryKeys: true
+        )
+        String dn = "uid=1,ou=people,dc=berkeley,dc=edu"
+
+        when:
+        addOu("people")
+        addTestEntry(dn, "1")
+        Boolean wasModified = null
+        LdapConnectorException exception = null
+        try {
+            wasModified = ldapConnector.removeAttributes(new LdapRequestContext(ldapTemplate, "eventId", objDef, null), null, "1", null, attributeNames as String[], ignoreMissing)
+        }
+        catch (LdapConnectorException e) {
+            exception = e
+        }
+        List<Map<String, Object>> retrieved = searchForUid("1")
+
+        and: "cleanup"
+        deleteDn(dn)
+        deleteOu("people")
+
+        then:
+        wasModified == expectedModified
+        (exception != null) == expectException
+        // a failed removal is atomic
+        (retrieved.first().description == null) == descriptionRemoved
+        1 * removeAttributesEventCallback.receive(_)
+
+        where:
+        description                          | attributeNames                 | ignoreMissing || expectedModified | expectException | descriptionRemoved
+        "missing attribute fails the batch"  | ["description", "displayName"] | false         || null             | true            | false
+        "missing attribute ignored"          | ["description", "displayName"] | true          || true             | false           | true
+        "only missing attributes ignored"    | ["displayName"]                | true          || false            | false           | false
+    }
+
     void "test attempted attribute removal on a nonexistent object"() {
         given:
         UidObjectDefinition objDef = new UidObjectDefinition(
@@ -1405,130 +1539,1457 @@ class LdapConnectorSpec extends Specification {
         exception.ldapErrorMessage.startsWith("[LDAP: error code 16 - NO_SUCH_ATTRIBUTE: failed for MessageType : MODIFY_REQUEST")
     }
 
-    @Unroll
-    void "confirm LdapName and LdapNameBuilder do not re-escape already-escaped RFC2253 strings: #description"() {
-        when: "using the already escaped RFC2253 string"
-        LdapName ldapNameFromAlreadyEscapedString = new LdapName(alreadyEscapedInput)
-        LdapName ldapNameBuilderFromAlreadyEscapedString = LdapNameBuilder.newInstance(alreadyEscapedInput).build()
+    void "test bulk setAttribute"() {
+        given:
+        UidObjectDefinition objDef = new UidObjectDefinition(objectClass: "person")
+        LdapRequestContext reqCtx = new LdapRequestContext(ldapTemplate, "eventId", objDef, null)
+        List<LdapSetAttributeItem> items = [
+                new LdapSetAttributeItem("1", null, "bulk 1"),
+                new LdapSetAttributeItem(null, "malformed", "bulk malformed"),
+                new LdapSetAttributeItem("2", null, "bulk 2"),
+                new LdapSetAttributeItem(null, "uid=3,ou=people,dc=berkeley,dc=edu", "bulk 3"),
+                new LdapSetAttributeItem("bogus", null, "bulk bogus"),
+                new LdapSetAttributeItem("4", "uid=4,ou=people,dc=berkeley,dc=edu", "bulk 4")
+        ]
+        List<LdapSetAttributeResult> results = []
 
-        and: "using LdapName and the unescaped string components of the name"
-        LdapName ldapNameFromUnescapedComponents = new LdapName("")
-        unescapedComponentInput.each { ldapNameFromUnescapedComponents.add(new Rdn(it[0], it[1])) }
+        when:
+        addOu("people")
+        (1..4).each { addTestEntry("uid=$it,ou=people,dc=berkeley,dc=edu", "$it") }
+        ldapConnector.bulkSetAttribute(reqCtx, "description", items.iterator(), { results.add(it) }, 2)
+        List<Object> descriptions = (1..4).collect { searchForUid("$it").first().description }
 
-        and: "using LdapNameBuilder and the unescaped string components of the name"
-        LdapNameBuilder ldapNameBuilderFromUnescapedComponents = LdapNameBuilder.newInstance("")
-        unescapedComponentInput.each { ldapNameBuilderFromUnescapedComponents.add(it[0], it[1]) }
+        and: "cleanup"
+        (1..4).each { deleteDn("uid=$it,ou=people,dc=berkeley,dc=edu") }
+        deleteOu("people")
 
         then:
-        ldapNameFromAlreadyEscapedString.toString() == expectedToString
-        ldapNameBuilderFromAlreadyEscapedString.toString() == expectedToString
-        ldapNameFromUnescapedComponents.toString() == expectedToString
-        ldapNameBuilderFromUnescapedComponents.build().toString() == expectedToString
+        descriptions == ["bulk 1", "bulk 2", "bulk 3", "bulk 4"]
+        results.size() == 6
+        results.findAll { it.success }*.item*.value as Set == ["bulk 1", "bulk 2", "bulk 3", "bulk 4"] as Set
+        !results.find { it.item.pkey == "bogus" }.success
+        results.find { it.item.pkey == "bogus" }.exception.cause instanceof ConnectorObjectNotFoundException
+        !results.find { it.item.dn == "malformed" }.success
+        results.find { it.item.pkey == "1" }.foundMethod == FoundObjectMethod.BY_MATCHED_KEY_DN_NOT_PROVIDED
+        results.find { it.item.pkey == "4" }.foundMethod == FoundObjectMethod.BY_DN_MATCHED_KEY
+        results.find { it.item.value == "bulk 3" }.foundMethod == null
+        4 * setAttributeEventCallback.receive({ it.success })
+        2 * setAttributeEventCallback.receive({ !it.success })
+    }
 
-        where:
-        // alreadyEscapedInput is a string that conforms to RFC2253 escaping
-        description      | alreadyEscapedInput | unescapedComponentInput          || expectedToString
-        "with equals"    | "uid=a\\=b,dc=edu"  | [["dc", "edu"], ["uid", "a=b"]]  || "uid=a\\=b,dc=edu"
-        "with comma"     | "uid=a\\,b,dc=edu"  | [["dc", "edu"], ["uid", "a,b"]]  || "uid=a\\,b,dc=edu"
-        "with backslash" | "uid=a\\\\b,dc=edu" | [["dc", "edu"], ["uid", "a\\b"]] || "uid=a\\\\b,dc=edu"
-        "with hash"      | "uid=a\\#b,dc=edu"  | [["dc", "edu"], ["uid", "a#b"]]  || "uid=a\\#b,dc=edu"
+    void "test searchByPrimaryKeys"() {
+        given:
+        UidObjectDefinition objDef = new UidObjectDefinition(objectClass: "person")
+        LdapRequestContext reqCtx = new LdapRequestContext(ldapTemplate, "eventId", objDef, null)
+        Map<String, List<DirContextAdapter>> results = [:]
+
+        when:
+        addOu("people")
+        (1..5).each { addTestEntry("uid=$it,ou=people,dc=berkeley,dc=edu", "$it") }
+        ldapConnector.searchByPrimaryKeys(reqCtx, ["1", "2", "3", "4", "5", "1", "*", "bogus"], ["description"] as String[], { String pkey, List<DirContextAdapter> entries ->
+            results[pkey] = entries
+        }, 2)
+
+        and: "cleanup"
+        (1..5).each { deleteDn("uid=$it,ou=people,dc=berkeley,dc=edu") }
+        deleteOu("people")
 
+        then:
+        results.keySet() as List == ["1", "2", "3", "4", "5", "*", "bogus"]
+        (1..5).every { results["$it"].size() == 1 && results["$it"].first().getStringAttribute("uid") == "$it" }
+        // values are escaped, so * doesn't match everything
+        results["*"].isEmpty()
+        results["bogus"].isEmpty()
     }
 
-    void "test group additions and removals"() {
+    void "test batched searches by primary key"() {
         given:
-        UidObjectDefinition objDef = new UidObjectDefinition(
-                objectClass: "person",
-                keepExistingAttributesWhenUpdating: true,
-                removeDuplicatePrimaryKeys: true,
-                dynamicAttributeNames: ["GROUPS.ADD.DYNAMIC", "GROUPS.REMOVE.DYNAMIC", "description.ONUPDATE"] as String[],
-                groupDirectiveMetaAttributePrefix: "GROUPS"
-        )
-        List<String> objectClasses = ["top", "person", "inetOrgPerson", "organizationalPerson"]
-        String eventId = "eventId"
-        String uid = "1"
-        String dn = "uid=1,ou=people,dc=berkeley,dc=edu"
+        UidObjectDefinition objDef = new UidObjectDefinition(objectClass: "person")
+        LdapPrimaryKeySearchBatcher batcher = new LdapPrimaryKeySearchBatcher(ldapConnector)
+        batcher.maxDelayMillis = 500
+        Map<String, List<DirContextAdapter>> results = new java.util.concurrent.ConcurrentHashMap<String, List<DirContextAdapter>>()
 
-        when: "initialize dynamic callback"
-        ldapConnector.dynamicAttributeCallbacks["GROUPS.ADD.DYNAMIC"] = new LdapDynamicAttributeCallback() {
-            @Override
-            LdapDynamicAttributeCallbackResult attributeValue(
-                    String _eventId,
-                    LdapObjectDefinition objectDef,
-                    LdapCallbackContext context,
-                    FoundObjectMethod foundObjectMethod,
-                    String pkey,
-                    Name _dn,
-                    String attributeName,
-                    Map<String, Object> newAttributeMap,
-                    Map<String, Object> existingAttributeMap,
-                    Object existingValue,
-                    String dynamicCallbackIndicator,
-                    Object dynamicValueTemplate
-            ) {
-                return new LdapDynamicAttributeCallbackResult(attributeValue: dynamicValueTemplate.collect { "${it},dc=berkeley,dc=edu" })
+        when:
+        addOu("people")
+        (1..5).each { addTestEntry("uid=$it,ou=people,dc=berkeley,dc=edu", "$it") }
+        List<Thread> threads = ["1", "2", "3", "4", "5", "bogus"].collect { String pkey ->
+            Thread.start {
+                results[pkey] = batcher.search(new LdapRequestContext(ldapTemplate, "eventId", objDef, null), pkey)
             }
         }
-        // GROUPS.REMOVE.DYNAMIC shares the same callback
-        ldapConnector.dynamicAttributeCallbacks["GROUPS.REMOVE.DYNAMIC"] = ldapConnector.dynamicAttributeCallbacks["GROUPS.ADD.DYNAMIC"]
+        threads*.join()
 
-        and: "add groups"
+        and: "cleanup"
+        (1..5).each { deleteDn("uid=$it,ou=people,dc=berkeley,dc=edu") }
+        deleteOu("people")
+
+        then:
+        (1..5).every { results["$it"].size() == 1 && results["$it"].first().getStringAttribute("uid") == "$it" }
+        results["bogus"].isEmpty()
+        batcher.primaryKeyCount == 6
+        batcher.searchCount < 6
+    }
+
+    void "test batched searches by primary key only batch requests that read from the same place"() {
+        given:
+        UidObjectDefinition objDef = new UidObjectDefinition(objectClass: "person")
+        ContextSource replicaContextSource = Mock(ContextSource) {
+            getReadOnlyContext() >> { throw new org.springframework.ldap.CommunicationException(new javax.naming.CommunicationException("replica down")) }
+        }
+        ldapConnector.readContextSources = [replicaContextSource]
+        ldapConnector.readYourWritesWindowMillis = 60000
+        LdapPrimaryKeySearchBatcher batcher = new LdapPrimaryKeySearchBatcher(ldapConnector)
+        batcher.maxDelayMillis = 500
+        Map<String, Object> results = new java.util.concurrent.ConcurrentHashMap<String, Object>()
+
+        when:
         addOu("people")
-        addOu("groups")
-        addGroup("somegroup1", "groups")
-        addGroup("somegroup2", "groups")
-        boolean didCreate = ldapConnector.persist(eventId, objDef, null, [
-                dn                    : dn,
-                uid                   : uid,
-                objectClass           : objectClasses,
-                sn                    : "User",
-                cn                    : "Test User",
-                "description.ONUPDATE": "initial test",
-                "GROUPS.ADD.DYNAMIC"  : ["cn=somegroup1,ou=groups", "cn=somegroup2,ou=groups"]
-        ], false)
+        (1..2).each { addTestEntry("uid=$it,ou=people,dc=berkeley,dc=edu", "$it") }
+        ldapConnector.recordWrite(objDef, "1", ldapConnector.buildDnName("uid=1,ou=people,dc=berkeley,dc=edu"))
+        List<Thread> threads = ["1", "2"].collect { String pkey ->
+            Thread.start {
+                try {
+                    results[pkey] = batcher.search(new LdapRequestContext(ldapTemplate, "eventId", objDef, null), pkey)
+                }
+                catch (Throwable t) {
+                    results[pkey] = t
+                }
+            }
+        }
+        threads*.join()
 
-        and: "remove one of the groups"
-        ldapConnector.persist(eventId, objDef, null, [
-                dn                     : dn,
-                uid                    : uid,
-                objectClass            : objectClasses,
-                sn                     : "User",
-                cn                     : "Test User",
-                "GROUPS.REMOVE.DYNAMIC": ["cn=somegroup1,ou=groups"]
-        ], false)
+        and: "cleanup"
+        (1..2).each { deleteDn("uid=$it,ou=people,dc=berkeley,dc=edu") }
+        deleteOu("people")
 
-        and: "retrieve entries"
-        List<Map<String, Object>> uidRetrieved = searchForUid(uid)
+        then: "the recently written key is read from the primary and the other from the replica"
+        results["1"].size() == 1
+        results["2"] instanceof org.springframework.ldap.CommunicationException
+        batcher.searchCount == 2
+    }
 
-        List<Map<String, Object>> group1Retrieved = ldapTemplate.search(query()
-                .where("objectClass").is("groupOfUniqueNames")
-                .and("cn").is("somegroup1"),
-                ldapConnector.toMapContextMapper)
-        List<Map<String, Object>> group2Retrieved = ldapTemplate.search(query()
-                .where("objectClass").is("groupOfUniqueNames")
-                .and("cn").is("somegroup2"),
-                ldapConnector.toMapContextMapper)
+    void "test cost-based entry matching finds the same entries as primary key first matching: #description"() {
+        given:
+        UidObjectDefinition objDef = new UidObjectDefinition(objectClass: "person")
+        LdapRequestContext reqCtx = new LdapRequestContext(ldapTemplate, "eventId", objDef, null)
+        LdapCostBasedEntryMatchingStrategy costBased = new LdapCostBasedEntryMatchingStrategy()
+        LdapPrimaryKeyFirstEntryMatchingStrategy primaryKeyFirst = new LdapPrimaryKeyFirstEntryMatchingStrategy()
+        Name requestedDn = (dn ? ldapConnector.buildDnName(dn) : null)
+
+        when:
+        addOu("people")
+        addTestEntry("uid=1,ou=people,dc=berkeley,dc=edu", "1")
+        addTestEntry("uid=2,ou=people,dc=berkeley,dc=edu", "2")
+        LdapConnector.MatchingEntryResult costBasedResult = costBased.findMatchingEntry(ldapConnector, reqCtx, requestedDn, pkey, null)
+        LdapConnector.MatchingEntryResult primaryKeyFirstResult = primaryKeyFirst.findMatchingEntry(ldapConnector, reqCtx, requestedDn, pkey, null)
 
         and: "cleanup"
-        deleteDn(dn)
-        deleteGroup("somegroup1", "groups")
-        deleteGroup("somegroup2", "groups")
-        deleteOu("groups")
+        deleteDn("uid=1,ou=people,dc=berkeley,dc=edu")
+        deleteDn("uid=2,ou=people,dc=berkeley,dc=edu")
         deleteOu("people")
 
         then:
-        didCreate
-        uidRetrieved.size() == 1
-        // description is the update-only attribute, but is still there because the object was updated after the insert
-        uidRetrieved.first().description == "initial test"
-        1 * insertEventCallback.receive(_)
-        2 * uniqueIdentifierEventCallback.receive(_)
-        // update should have been called to add the description attribute
-        2 * updateEventCallback.receive(_)
-        3 * persistCompletionEventCallback.receive(_)
-        // person was removed from group1
-        group1Retrieved.first().uniqueMember == "ou=groups,dc=berkeley,dc=edu"
-        group2Retrieved.first().uniqueMember == ["ou=groups,dc=berkeley,dc=edu", "uid=1,ou=people,dc=berkeley,dc=edu"]
+        costBasedResult.foundObjectMethod == expectedMethod
+        primaryKeyFirstResult.foundObjectMethod == expectedMethod
+        costBasedResult.entry?.dn?.toString() == primaryKeyFirstResult.entry?.dn?.toString()
+        costBased.getStatistics(objDef).getAttempts(LdapEntryMatchingStatistics.Step.DN) == (dn ? 1 : 0)
+        costBased.getStatistics(objDef).getAttempts(LdapEntryMatchingStatistics.Step.PRIMARY_KEY) == expectedPrimaryKeyAttempts
+
+        where:
+        description          | dn                                   | pkey    | expectedMethod                                   | expectedPrimaryKeyAttempts
+        "DN matches key"     | "uid=1,ou=people,dc=berkeley,dc=edu" | "1"     | FoundObjectMethod.BY_DN_MATCHED_KEY              | 0
+        "DN of another key"  | "uid=2,ou=people,dc=berkeley,dc=edu" | "1"     | FoundObjectMethod.BY_MATCHED_KEY_DN_MISMATCH     | 1
+        "DN does not exist"  | "uid=3,ou=people,dc=berkeley,dc=edu" | "1"     | FoundObjectMethod.BY_MATCHED_KEY_DN_MISMATCH     | 1
+        "DN not provided"    | null                                 | "1"     | FoundObjectMethod.BY_MATCHED_KEY_DN_NOT_PROVIDED | 1
+        "key does not exist" | "uid=2,ou=people,dc=berkeley,dc=edu" | "bogus" | FoundObjectMethod.BY_DN_MISMATCHED_KEYS          | 1
+    }
+
+    void "test cost-based entry matching by globally unique identifier is equivalent to primary key first matching: #description"() {
+        given:
+        UidObjectDefinition objDef = new UidObjectDefinition(objectClass: "person")
+        LdapRequestContext reqCtx = new LdapRequestContext(ldapTemplate, "eventId", objDef, null)
+        LdapCostBasedEntryMatchingStrategy costBased = new LdapCostBasedEntryMatchingStrategy()
+        if (skipDnStep) {
+            costBased.minSamples = 0
+            costBased.minDnHitRate = 2.0
+            costBased.probeInterval = Long.MAX_VALUE
+        }
+        LdapPrimaryKeyFirstEntryMatchingStrategy primaryKeyFirst = new LdapPrimaryKeyFirstEntryMatchingStrategy()
+        Name requestedDn = (dn ? ldapConnector.buildDnName(dn) : null)
+
+        when: "two entries have primary key 1"
+        addOu("people")
+        addOu("expired people")
+        String entryUuid = addTestEntry("uid=1,ou=people,dc=berkeley,dc=edu", "1")
+        addTestEntry("uid=1,ou=expired people,dc=berkeley,dc=edu", "1")
+        LdapConnector.MatchingEntryResult costBasedResult = costBased.findMatchingEntry(ldapConnector, reqCtx, requestedDn, "1", entryUuid)
+        LdapConnector.MatchingEntryResult primaryKeyFirstResult = primaryKeyFirst.findMatchingEntry(ldapConnector, reqCtx, requestedDn, "1", entryUuid)
+
+        and: "cleanup"
+        deleteDn("uid=1,ou=people,dc=berkeley,dc=edu")
+        deleteDn("uid=1,ou=expired people,dc=berkeley,dc=edu")
+        deleteOu("people")
+        deleteOu("expired people")
+
+        then:
+        costBasedResult.foundObjectMethod == primaryKeyFirstResult.foundObjectMethod
+        costBasedResult.entry.dn.toString() == primaryKeyFirstResult.entry.dn.toString()
+        primaryKeyFirstResult.foundObjectMethod == expectedMethod
+
+        where:
+        description                        | dn                                           | skipDnStep | expectedMethod
+        "DN of the identifier"             | "uid=1,ou=people,dc=berkeley,dc=edu"         | false      | FoundObjectMethod.BY_DN_MATCHED_KEY
+        "DN of the identifier, no DN step" | "uid=1,ou=people,dc=berkeley,dc=edu"         | true       | FoundObjectMethod.BY_DN_MATCHED_KEY
+        "DN of a duplicate"                | "uid=1,ou=expired people,dc=berkeley,dc=edu" | false      | FoundObjectMethod.BY_DN_MATCHED_KEY
+        "DN of a duplicate, no DN step"    | "uid=1,ou=expired people,dc=berkeley,dc=edu" | true       | FoundObjectMethod.BY_DN_MATCHED_KEY
+        "DN does not exist"                | "uid=3,ou=people,dc=berkeley,dc=edu"         | false      | FoundObjectMethod.BY_MATCHED_KEY_DN_MISMATCH
+        "DN does not exist, no DN step"    | "uid=3,ou=people,dc=berkeley,dc=edu"         | true       | FoundObjectMethod.BY_MATCHED_KEY_DN_MISMATCH
+        "DN not provided"                  | null                                         | false      | FoundObjectMethod.BY_MATCHED_KEY_DN_NOT_PROVIDED
+    }
+
+    void "test searching the search bases of an object definition: #description"() {
+        given:
+        UidObjectDefinition objDef = new UidObjectDefinition(objectClass: "person", searchBases: searchBases, searchScope: scope)
+        LdapRequestContext reqCtx = new LdapRequestContext(ldapTemplate, "eventId", objDef, null)
+
+        when:
+        addOu("people")
+        addOu("guests")
+        addTestEntry("uid=1,ou=people,dc=berkeley,dc=edu", "1")
+        addTestEntry("uid=2,ou=guests,dc=berkeley,dc=edu", "2")
+        List<String> found = ["1", "2"].collectMany { String pkey -> ldapConnector.searchByPrimaryKey(reqCtx, pkey)*.dn*.toString() }
+
+        and: "cleanup"
+        deleteDn("uid=1,ou=people,dc=berkeley,dc=edu")
+        deleteDn("uid=2,ou=guests,dc=berkeley,dc=edu")
+        deleteOu("people")
+        deleteOu("guests")
+
+        then:
+        found == expectedDns
+
+        where:
+        description        | searchBases                                                      | scope                | expectedDns
+        "no bases"         | null                                                             | SearchScope.SUBTREE  | ["uid=1,ou=people,dc=berkeley,dc=edu", "uid=2,ou=guests,dc=berkeley,dc=edu"]
+        "one base"         | ["ou=people,dc=berkeley,dc=edu"]                                 | SearchScope.SUBTREE  | ["uid=1,ou=people,dc=berkeley,dc=edu"]
+        "two bases"        | ["ou=people,dc=berkeley,dc=edu", "ou=guests,dc=berkeley,dc=edu"] | SearchScope.ONELEVEL | ["uid=1,ou=people,dc=berkeley,dc=edu", "uid=2,ou=guests,dc=berkeley,dc=edu"]
+        "out of one level" | ["dc=berkeley,dc=edu"]                                           | SearchScope.ONELEVEL | []
+    }
+
+    void "test objectGUID conversions"() {
+        given:
+        byte[] guidBytes = [0xb8, 0x6e, 0xf8, 0xdc, 0x5b, 0xd1, 0xa8, 0x45, 0x8b, 0x7d, 0x4f, 0x3d, 0x8a, 0x18, 0xd4, 0xe0] as byte[]
+        String guidString = "dcf86eb8-d15b-45a8-8b7d-4f3d8a18d4e0"
+
+        expect:
+        ActiveDirectoryObjectDefinition.toGuidString(guidBytes) == guidString
+        ActiveDirectoryObjectDefinition.toGuidBytes(guidString) == guidBytes
+        ActiveDirectoryObjectDefinition.toGuidBytes(UUID.fromString(guidString)) == guidBytes
+        ActiveDirectoryObjectDefinition.escapeGuidBytes(guidBytes) == "\\b8\\6e\\f8\\dc\\5b\\d1\\a8\\45\\8b\\7d\\4f\\3d\\8a\\18\\d4\\e0"
+        new ActiveDirectoryObjectDefinition().getGloballyUniqueIdentifierBoundDn(guidBytes) == "<GUID=$guidString>"
+    }
+
+    void "test lookupByGloballyUniqueIdentifier with a GUID-bound DN: #description"() {
+        given:
+        String guidString = "dcf86eb8-d15b-45a8-8b7d-4f3d8a18d4e0"
+        BasicAttributes attributes = new BasicAttributes(true)
+        attributes.put("distinguishedName", "CN=Jane,OU=People,DC=berkeley,DC=edu")
+        attributes.put("sAMAccountName", "jane")
+        // stands in for an Active Directory server
+        DirContext dirContext = Mock(DirContext) {
+            getNameInNamespace() >> "DC=berkeley,DC=edu"
+            getAttributes("<GUID=$guidString>".toString()) >> attributes
+            getAttributes(_ as String) >> { throw new javax.naming.NameNotFoundException() }
+        }
+        LdapTemplate adLdapTemplate = Mock(LdapTemplate) {
+            executeReadOnly(_ as ContextExecutor) >> { ContextExecutor executor -> executor.executeWithContext(dirContext) }
+        }
+        LdapRequestContext reqCtx = new LdapRequestContext(adLdapTemplate, "eventId", new ActiveDirectoryObjectDefinition(), null)
+
+        when:
+        DirContextAdapter entry = null
+        Exception exception = null
+        try {
+            entry = ldapConnector.lookupByGloballyUniqueIdentifier(reqCtx, pkey, guid)
+        }
+        catch (EmptyResultDataAccessException e) {
+            exception = e
+        }
+
+        then:
+        entry?.dn?.toString() == expectedDn
+        (exception != null) == !expectedDn
+        0 * adLdapTemplate.searchForObject(*_)
+
+        where:
+        description         | guid                                   | pkey   | expectedDn
+        "found"             | "dcf86eb8-d15b-45a8-8b7d-4f3d8a18d4e0" | "jane" | "CN=Jane,OU=People"
+        "other primary key" | "dcf86eb8-d15b-45a8-8b7d-4f3d8a18d4e0" | "john" | null
+        "unknown GUID"      | "00000000-0000-0000-0000-000000000001" | "jane" | null
+    }
+
+    void "test read replica routing with read-your-writes"() {
+        given:
+        ContextSource replicaContextSource = Mock(ContextSource)
+        ldapConnector.readContextSources = [replicaContextSource]
+        ldapConnector.readYourWritesWindowMillis = 200
+        UidObjectDefinition objDef = new UidObjectDefinition(objectClass: "person")
+        LdapRequestContext reqCtx = new LdapRequestContext(ldapTemplate, "eventId", objDef, null)
+        Name dn = ldapConnector.buildDnName("uid=1,ou=people,dc=berkeley,dc=edu")
+
+        when:
+        boolean beforeWriteUsesReplica = ldapConnector.readRequestContext(reqCtx, ["1"], null).ldapTemplate.contextSource.is(replicaContextSource)
+        ldapConnector.recordWrite(objDef, "1", dn)
+        boolean afterWriteUsesPrimary = ldapConnector.readRequestContext(reqCtx, ["1"], null).is(reqCtx)
+        boolean dnAfterWriteUsesPrimary = ldapConnector.readRequestContext(reqCtx, null, ldapConnector.buildDnName("UID=1,ou=people,dc=berkeley,dc=edu")).is(reqCtx)
+        boolean otherKeyUsesReplica = ldapConnector.readRequestContext(reqCtx, ["2"], null).ldapTemplate.contextSource.is(replicaContextSource)
+        Thread.sleep(300)
+        boolean afterWindowUsesReplica = ldapConnector.readRequestContext(reqCtx, ["1"], dn).ldapTemplate.contextSource.is(replicaContextSource)
+
+        then:
+        beforeWriteUsesReplica
+        afterWriteUsesPrimary
+        dnAfterWriteUsesPrimary
+        otherKeyUsesReplica
+        afterWindowUsesReplica
+    }
+
+    void "test hedged reads: #description"() {
+        given:
+        LdapReadHedger hedger = new LdapReadHedger(initialDelayMillis: 20, budgetRatio: budgetRatio)
+        CountDownLatch originalAbandoned = new CountDownLatch(1)
+
+        when:
+        String result = hedger.read({
+            try {
+                Thread.sleep(1000)
+            }
+            catch (InterruptedException e) {
+                originalAbandoned.countDown()
+                throw e
+            }
+            "original"
+        }, { "hedge" })
+        boolean originalInterrupted = originalAbandoned.await(2, TimeUnit.SECONDS)
+        hedger.shutdown()
+
+        then:
+        result == expectedResult
+        originalInterrupted == expectedHedgeCount as boolean
+        hedger.readCount == 1
+        hedger.hedgeCount == expectedHedgeCount
+        hedger.hedgeWinCount == expectedHedgeCount
+        hedger.budgetExhaustedCount == 1 - expectedHedgeCount
+
+        where:
+        description       | budgetRatio | expectedResult | expectedHedgeCount
+        "hedged"          | 1.0d        | "hedge"        | 1
+        "budget exceeded" | 0.0d        | "original"     | 0
+    }
+
+    void "test retrying transient failures"() {
+        given:
+        ldapConnector.retryPolicy = new LdapRetryPolicy(maxAttempts: 3, initialBackoffMillis: 1)
+        int attempts = 0
+
+        when:
+        String result = ldapConnector.executeWithRetry {
+            if (++attempts == 1) {
+                // a change the next attempts find already made
+                ldapConnector.deliverCallbackMessage(new LdapInsertEventMessage(success: true, eventId: "retried"))
+            }
+            Throwable exception = (attempts < 3 ? new LdapConnectorException(new NamingException("[LDAP: error code 51 - busy]")) : null)
+            ldapConnector.deliverCallbackMessage(new LdapPersistCompletionEventMessage(success: exception == null, eventId: "retried", exception: exception))
+            if (exception) {
+                throw exception
+            }
+            return "done"
+        }
+
+        and:
+        int nonTransientAttempts = 0
+        LdapConnectorException nonTransientException = null
+        try {
+            ldapConnector.executeWithRetry {
+                nonTransientAttempts++
+                throw new LdapConnectorException(new NamingException("[LDAP: error code 16 - NO_SUCH_ATTRIBUTE]"))
+            }
+        }
+        catch (LdapConnectorException e) {
+            nonTransientException = e
+        }
+
+        then:
+        1 * insertEventCallback.receive({ it.success })
+        1 * persistCompletionEventCallback.receive({ it.success && !it.exception })
+        result == "done"
+        attempts == 3
+        nonTransientAttempts == 1
+        nonTransientException.ldapErrorCode == 16
+    }
+
+    void "test a persist retried after its update was written reports the update once"() {
+        given:
+        ldapConnector.retryPolicy = new LdapRetryPolicy(maxAttempts: 2, initialBackoffMillis: 1)
+        UidObjectDefinition objDef = new UidObjectDefinition(objectClass: "person")
+        LdapPersistRequest request = new LdapPersistRequest(
+                dn: "uid=1,ou=people,dc=berkeley,dc=edu",
+                pkey: "1",
+                attributes: [
+                        objectClass: ["top", "person", "inetOrgPerson"],
+                        sn         : "User",
+                        cn         : "Test User",
+                        description: "retried update"
+                ]
+        )
+        int uniqueIdentifierAttempts = 0
+
+        when:
+        addOu("people")
+        addTestEntry("uid=1,ou=people,dc=berkeley,dc=edu", "1")
+        ldapConnector.persist("eventId", objDef, null, request, false)
+        List<Map<String, Object>> retrieved = searchForUid("1")
+
+        and: "cleanup"
+        deleteDn("uid=1,ou=people,dc=berkeley,dc=edu")
+        deleteOu("people")
+
+        then: "the first attempt fails after the entry was updated"
+        2 * uniqueIdentifierEventCallback.receive(_) >> {
+            if (++uniqueIdentifierAttempts == 1) {
+                throw new LdapConnectorException(new NamingException("[LDAP: error code 51 - busy]"))
+            }
+        }
+        1 * updateEventCallback.receive({ it.success && it.dn == "uid=1,ou=people,dc=berkeley,dc=edu" })
+        1 * persistCompletionEventCallback.receive(_)
+        retrieved.first().description == "retried update"
+    }
+
+    void "test circuit breaker opens on transient failures and probes for recovery"() {
+        given:
+        LdapCircuitBreaker breaker = new LdapCircuitBreaker("ldap://localhost:10389")
+        breaker.failureThreshold = 2
+        breaker.openMillis = 100
+        ldapConnector.circuitBreaker = breaker
+        int attempts = 0
+        Closure<String> failing = {
+            attempts++
+            throw new LdapConnectorException(new NamingException("[LDAP: error code 52 - unavailable]"))
+        }
+        List<Class> exceptionClasses = []
+
+        when:
+        3.times {
+            try {
+                ldapConnector.executeWithRetry(failing)
+            }
+            catch (LdapConnectorException e) {
+                exceptionClasses.add(e.getClass())
+            }
+        }
+        LdapCircuitBreaker.State stateWhileOpen = breaker.state
+        Thread.sleep(150)
+        String probeResult = ldapConnector.executeWithRetry { "recovered" }
+
+        then:
+        attempts == 2
+        exceptionClasses == [LdapConnectorException, LdapConnectorException, LdapCircuitOpenException]
+        stateWhileOpen == LdapCircuitBreaker.State.OPEN
+        probeResult == "recovered"
+        breaker.state == LdapCircuitBreaker.State.CLOSED
+    }
+
+    void "test adaptive concurrency limit"() {
+        given:
+        LdapConcurrencyLimiter limiter = new LdapConcurrencyLimiter(4)
+        limiter.maxWaitMillis = 0
+
+        when: "the limit is reached"
+        List<Boolean> acquired = (1..5).collect { limiter.acquire() }
+        4.times { limiter.release(1000000L, false) }
+        10.times {
+            limiter.acquire()
+            limiter.release(1000000L, false)
+        }
+        int limitAfterSuccesses = limiter.limit
+
+        and: "the directory is overloaded"
+        20.times {
+            limiter.acquire()
+            limiter.release(1000000L, true)
+        }
+
+        then:
+        acquired == [true, true, true, true, false]
+        limiter.rejectedCount == 1
+        limitAfterSuccesses > 4
+        limiter.limit < 4
+        limiter.inFlight == 0
+    }
+
+    void "test parallel and background operations take concurrency limiter slots"() {
+        given:
+        LdapConcurrencyLimiter limiter = new LdapConcurrencyLimiter(1)
+        limiter.maxWaitMillis = 0
+        ldapConnector.concurrencyLimiter = limiter
+        String callingThread = Thread.currentThread().name
+
+        when: "an operation already holds the only slot"
+        String nestedResult = ldapConnector.executeWithRetry {
+            ldapConnector.executeWithConcurrencyLimit { "nested" }
+        }
+        String inlineThread = ldapConnector.executeWithRetry {
+            ldapConnector.submitParallel([{ Thread.currentThread().name } as Closure<String>]).first().get()
+        }
+
+        and: "another operation holds the only slot"
+        limiter.acquire()
+        Throwable limitException = null
+        try {
+            ldapConnector.executeWithConcurrencyLimit { "rejected" }
+        }
+        catch (LdapConcurrencyLimitExceededException e) {
+            limitException = e
+        }
+        Throwable parallelLimitException = null
+        try {
+            ldapConnector.submitParallel([{ Thread.currentThread().name } as Closure<String>]).first().get()
+        }
+        catch (java.util.concurrent.ExecutionException e) {
+            parallelLimitException = e.cause
+        }
+        limiter.release(1000000L, false)
+
+        and: "a slot is free"
+        String parallelThread = ldapConnector.submitParallel([{ Thread.currentThread().name } as Closure<String>]).first().get()
+
+        then:
+        nestedResult == "nested"
+        limitException
+        inlineThread == callingThread
+        parallelLimitException instanceof LdapConcurrencyLimitExceededException
+        parallelThread != callingThread
+        limiter.inFlight == 0
+    }
+
+    void "test persist with a deadline"() {
+        given:
+        UidObjectDefinition objDef = new UidObjectDefinition(
+                objectClass: "person",
+                keepExistingAttributesWhenUpdating: true,
+                removeDuplicatePrimaryKeys: true
+        )
+        String dn = "uid=1,ou=people,dc=berkeley,dc=edu"
+        LdapPersistRequest request = new LdapPersistRequest(
+                dn: dn,
+                pkey: "1",
+                attributes: [
+                        objectClass: ["top", "person", "inetOrgPerson", "organizationalPerson"],
+                        sn         : "User",
+                        cn         : "Test User"
+                ]
+        )
+
+        when: "the deadline has already passed"
+        addOu("people")
+        Throwable expiredException = null
+        try {
+            ldapConnector.persist("eventId", objDef, null, request, false, LdapDeadline.afterMillis(0))
+        }
+        catch (LdapDeadlineExceededException e) {
+            expiredException = e
+        }
+        List<Map<String, Object>> retrievedAfterExpired = searchForUid("1")
+
+        and: "the deadline is far enough away"
+        boolean didCreate = ldapConnector.persist("eventId", objDef, null, request, false, LdapDeadline.afterMillis(60000))
+        List<Map<String, Object>> retrieved = searchForUid("1")
+
+        and: "cleanup"
+        deleteDn(dn)
+        deleteOu("people")
+
+        then:
+        expiredException != null
+        !retrievedAfterExpired
+        didCreate
+        retrieved.size() == 1
+    }
+
+    void "test a deadline that passes while the persist is running"() {
+        given:
+        UidObjectDefinition objDef = new UidObjectDefinition() {
+            @Override
+            LdapQuery getLdapQueryForPrimaryKey(String pkey) {
+                // finding the existing entry outlasts the deadline
+                Thread.sleep(300)
+                return super.getLdapQueryForPrimaryKey(pkey)
+            }
+        }
+        objDef.objectClass = "person"
+        LdapPersistRequest request = new LdapPersistRequest(
+                dn: "uid=1,ou=people,dc=berkeley,dc=edu",
+                pkey: "1",
+                attributes: [
+                        objectClass: ["top", "person", "inetOrgPerson", "organizationalPerson"],
+                        sn         : "User",
+                        cn         : "Test User"
+                ]
+        )
+        // the persist is the probe of a half open breaker
+        LdapCircuitBreaker breaker = new LdapCircuitBreaker("ldap://localhost:10389")
+        breaker.failureThreshold = 1
+        breaker.openMillis = 50
+        breaker.tryAcquire()
+        breaker.recordFailure()
+        Thread.sleep(100)
+        ldapConnector.circuitBreaker = breaker
+
+        when:
+        addOu("people")
+        Throwable exception = null
+        try {
+            ldapConnector.persist("eventId", objDef, null, request, false, LdapDeadline.afterMillis(100))
+        }
+        catch (LdapConnectorException e) {
+            exception = e
+        }
+        List<Map<String, Object>> retrieved = searchForUid("1")
+
+        and: "cleanup"
+        deleteOu("people")
+
+        then:
+        1 * persistCompletionEventCallback.receive({ it.exception instanceof LdapDeadlineExceededException })
+        exception instanceof LdapDeadlineExceededException
+        !retrieved
+        breaker.state == LdapCircuitBreaker.State.HALF_OPEN
+        breaker.tryAcquire()
+    }
+
+    void "test priority lanes reserve capacity for interactive requests"() {
+        given:
+        LdapPriorityScheduler scheduler = new LdapPriorityScheduler(3, 1)
+
+        when: "bulk requests take all the unreserved capacity"
+        List<Boolean> bulkAcquired = (1..3).collect { scheduler.acquire(LdapPriority.BULK, 0) }
+
+        and: "interactive requests use the reserved capacity"
+        boolean interactiveAcquired = scheduler.acquire(LdapPriority.INTERACTIVE, 0)
+        boolean interactiveOverCapacity = scheduler.acquire(LdapPriority.INTERACTIVE, 10)
+        scheduler.release(LdapPriority.BULK)
+        scheduler.release(LdapPriority.BULK)
+        scheduler.release(LdapPriority.INTERACTIVE)
+
+        then:
+        bulkAcquired == [true, true, false]
+        interactiveAcquired
+        !interactiveOverCapacity
+        scheduler.getAdmittedCount(LdapPriority.BULK) == 2
+        scheduler.getAdmittedCount(LdapPriority.INTERACTIVE) == 1
+        scheduler.getTimeoutCount(LdapPriority.BULK) == 1
+        scheduler.getTimeoutCount(LdapPriority.INTERACTIVE) == 1
+        scheduler.getQueueDepth(LdapPriority.BULK) == 0
+        scheduler.getInFlight(LdapPriority.BULK) == 0
+        scheduler.getInFlight(LdapPriority.INTERACTIVE) == 0
+    }
+
+    void "test asynchronous persist and lookup"() {
+        given:
+        UidObjectDefinition objDef = new UidObjectDefinition(
+                objectClass: "person",
+                keepExistingAttributesWhenUpdating: true,
+                removeDuplicatePrimaryKeys: true
+        )
+        List<LdapPersistRequest> requests = ["1", "2"].collect { String uid ->
+            new LdapPersistRequest(
+                    dn: "uid=$uid,ou=people,dc=berkeley,dc=edu",
+                    pkey: uid,
+                    attributes: [
+                            objectClass: ["top", "person", "inetOrgPerson", "organizationalPerson"],
+                            sn         : "User",
+                            cn         : "Test User $uid"
+                    ]
+            )
+        }
+
+        when:
+        addOu("people")
+        List<CompletableFuture<Boolean>> persists = requests.collect { LdapPersistRequest request ->
+            ldapConnector.persistAsync("eventId", objDef, null, request, false)
+        }
+        List<Boolean> didCreate = persists*.join()
+        DirContextAdapter found = ldapConnector.lookupAsync(new LdapRequestContext(ldapTemplate, "eventId", objDef, null), ldapConnector.buildDnName("uid=2,ou=people,dc=berkeley,dc=edu")).join()
+
+        and: "cleanup"
+        deleteDn("uid=1,ou=people,dc=berkeley,dc=edu")
+        deleteDn("uid=2,ou=people,dc=berkeley,dc=edu")
+        deleteOu("people")
+
+        then:
+        didCreate == [true, true]
+        found.getStringAttribute("cn") == "Test User 2"
+        2 * insertEventCallback.receive(_)
+        2 * persistCompletionEventCallback.receive(_)
+    }
+
+    void "test interactive asynchronous submissions overtake queued bulk submissions"() {
+        given:
+        ldapConnector.asyncThreads = 1
+        CountDownLatch started = new CountDownLatch(1)
+        CountDownLatch release = new CountDownLatch(1)
+        List<String> order = Collections.synchronizedList([])
+
+        when: "bulk operations are queued behind a running one"
+        CompletableFuture<Boolean> blocking = ldapConnector.submitAsync(LdapPriority.BULK) {
+            started.countDown()
+            release.await(5, TimeUnit.SECONDS)
+        }
+        started.await(5, TimeUnit.SECONDS)
+        List<CompletableFuture<Boolean>> futures = ["bulk 1", "bulk 2"].collect { String name ->
+            ldapConnector.submitAsync(LdapPriority.BULK) { order.add(name) }
+        }
+
+        and: "an interactive operation is submitted after them"
+        futures.add(ldapConnector.submitAsync(LdapPriority.INTERACTIVE) { order.add("interactive") })
+        release.countDown()
+        blocking.join()
+        futures*.join()
+
+        then:
+        order == ["interactive", "bulk 1", "bulk 2"]
+    }
+
+    void "test asynchronous submissions are bounded and fail after stop"() {
+        given:
+        ldapConnector.maxAsyncInFlight = 1
+        ldapConnector.maxAsyncWaitMillis = 10
+        CountDownLatch release = new CountDownLatch(1)
+
+        when: "the only async operation slot is taken"
+        CompletableFuture<Boolean> blocking = ldapConnector.submitAsync { release.await(5, TimeUnit.SECONDS) }
+        Throwable limitException = null
+        try {
+            ldapConnector.submitAsync { "over the limit" }
+        }
+        catch (LdapConcurrencyLimitExceededException e) {
+            limitException = e
+        }
+        release.countDown()
+        blocking.join()
+
+        and: "the connector is stopped"
+        ldapConnector.stop()
+        Throwable stoppedException = null
+        try {
+            ldapConnector.submitAsync { "after stop" }
+        }
+        catch (LdapConnectorException e) {
+            stoppedException = e
+        }
+
+        then:
+        limitException
+        stoppedException.message == "The connector is stopped"
+    }
+
+    @Unroll
+    void "confirm LdapName and LdapNameBuilder do not re-escape already-escaped RFC2253 strings: #description"() {
+        when: "using the already escaped RFC2253 string"
+        LdapName ldapNameFromAlreadyEscapedString = new LdapName(alreadyEscapedInput)
+        LdapName ldapNameBuilderFromAlreadyEscapedString = LdapNameBuilder.newInstance(alreadyEscapedInput).build()
+
+        and: "using LdapName and the unescaped string components of the name"
+        LdapName ldapNameFromUnescapedComponents = new LdapName("")
+        unescapedComponentInput.each { ldapNameFromUnescapedComponents.add(new Rdn(it[0], it[1])) }
+
+        and: "using LdapNameBuilder and the unescaped string components of the name"
+        LdapNameBuilder ldapNameBuilderFromUnescapedComponents = LdapNameBuilder.newInstance("")
+        unescapedComponentInput.each { ldapNameBuilderFromUnescapedComponents.add(it[0], it[1]) }
+
+        then:
+        ldapNameFromAlreadyEscapedString.toString() == expectedToString
+        ldapNameBuilderFromAlreadyEscapedString.toString() == expectedToString
+        ldapNameFromUnescapedComponents.toString() == expectedToString
+        ldapNameBuilderFromUnescapedComponents.build().toString() == expectedToString
+
+        where:
+        // alreadyEscapedInput is a string that conforms to RFC2253 escaping
+        description      | alreadyEscapedInput | unescapedComponentInput          || expectedToString
+        "with equals"    | "uid=a\\=b,dc=edu"  | [["dc", "edu"], ["uid", "a=b"]]  || "uid=a\\=b,dc=edu"
+        "with comma"     | "uid=a\\,b,dc=edu"  | [["dc", "edu"], ["uid", "a,b"]]  || "uid=a\\,b,dc=edu"
+        "with backslash" | "uid=a\\\\b,dc=edu" | [["dc", "edu"], ["uid", "a\\b"]] || "uid=a\\\\b,dc=edu"
+        "with hash"      | "uid=a\\#b,dc=edu"  | [["dc", "edu"], ["uid", "a#b"]]  || "uid=a\\#b,dc=edu"
+
+    }
+
+    void "test group additions and removals"() {
+        given:
+        UidObjectDefinition objDef = new UidObjectDefinition(
+                objectClass: "person",
+                keepExistingAttributesWhenUpdating: true,
+                removeDuplicatePrimaryKeys: true,
+                dynamicAttributeNames: ["GROUPS.ADD.DYNAMIC", "GROUPS.REMOVE.DYNAMIC", "description.ONUPDATE"] as String[],
+                groupDirectiveMetaAttributePrefix: "GROUPS"
+        )
+        List<String> objectClasses = ["top", "person", "inetOrgPerson", "organizationalPerson"]
+        String eventId = "eventId"
+        String uid = "1"
+        String dn = "uid=1,ou=people,dc=berkeley,dc=edu"
+
+        when: "initialize dynamic callback"
+        ldapConnector.dynamicAttributeCallbacks["GROUPS.ADD.DYNAMIC"] = new LdapDynamicAttributeCallback() {
+            @Override
+            LdapDynamicAttributeCallbackResult attributeValue(
+                    String _eventId,
+                    LdapObjectDefinition objectDef,
+                    LdapCallbackContext context,
+                    FoundObjectMethod foundObjectMethod,
+                    String pkey,
+                    Name _dn,
+                    String attributeName,
+                    Map<String, Object> newAttributeMap,
+                    Map<String, Object> existingAttributeMap,
+                    Object existingValue,
+                    String dynamicCallbackIndicator,
+                    Object dynamicValueTemplate
+            ) {
+                return new LdapDynamicAttributeCallbackResult(attributeValue: dynamicValueTemplate.collect { "${it},dc=berkeley,dc=edu" })
+            }
+        }
+        // GROUPS.REMOVE.DYNAMIC shares the same callback
+        ldapConnector.dynamicAttributeCallbacks["GROUPS.REMOVE.DYNAMIC"] = ldapConnector.dynamicAttributeCallbacks["GROUPS.ADD.DYNAMIC"]
+
+        and: "add groups"
+        addOu("people")
+        addOu("groups")
+        addGroup("somegroup1", "groups")
+        addGroup("somegroup2", "groups")
+        boolean didCreate = ldapConnector.persist(eventId, objDef, null, [
+                dn                    : dn,
+                uid                   : uid,
+                objectClass           : objectClasses,
+                sn                    : "User",
+                cn                    : "Test User",
+                "description.ONUPDATE": "initial test",
+                "GROUPS.ADD.DYNAMIC"  : ["cn=somegroup1,ou=groups", "cn=somegroup2,ou=groups"]
+        ], false)
+
+        and: "remove one of the groups"
+        ldapConnector.persist(eventId, objDef, null, [
+                dn                     : dn,
+                uid                    : uid,
+                objectClass            : objectClasses,
+                sn                     : "User",
+                cn                     : "Test User",
+                "GROUPS.REMOVE.DYNAMIC": ["cn=somegroup1,ou=groups"]
+        ], false)
+
+        and: "retrieve entries"
+        List<Map<String, Object>> uidRetrieved = searchForUid(uid)
+
+        List<Map<String, Object>> group1Retrieved = ldapTemplate.search(query()
+                .where("objectClass").is("groupOfUniqueNames")
+                .and("cn").is("somegroup1"),
+                ldapConnector.toMapContextMapper)
+        List<Map<String, Object>> group2Retrieved = ldapTemplate.search(query()
+                .where("objectClass").is("groupOfUniqueNames")
+                .and("cn").is("somegroup2"),
+                ldapConnector.toMapContextMapper)
+
+        and: "cleanup"
+        deleteDn(dn)
+        deleteGroup("somegroup1", "groups")
+        deleteGroup("somegroup2", "groups")
+        deleteOu("groups")
+        deleteOu("people")
+
+        then:
+        didCreate
+        uidRetrieved.size() == 1
+        // description is the update-only attribute, but is still there because the object was updated after the insert
+        uidRetrieved.first().description == "initial test"
+        1 * insertEventCallback.receive(_)
+        2 * uniqueIdentifierEventCallback.receive(_)
+        // update should have been called to add the description attribute
+        2 * updateEventCallback.receive(_)
+        3 * persistCompletionEventCallback.receive(_)
+        // person was removed from group1
+        group1Retrieved.first().uniqueMember == "ou=groups,dc=berkeley,dc=edu"
+        group2Retrieved.first().uniqueMember == ["ou=groups,dc=berkeley,dc=edu", "uid=1,ou=people,dc=berkeley,dc=edu"]
+    }
+
+    void "test group directives that would not change the group are skipped"() {
+        given:
+        // ApacheDS has no memberOf attribute, so seeAlso stands in for it
+        UidObjectDefinition objDef = new UidObjectDefinition(
+                objectClass: "person",
+                keepExistingAttributesWhenUpdating: true,
+                groupDirectiveMetaAttributePrefix: "GROUPS",
+                memberOfAttributeName: "seeAlso"
+        )
+        String dn = "uid=1,ou=people,dc=berkeley,dc=edu"
+        Name group1Dn = ldapConnector.buildDnName("cn=somegroup1,ou=groups,dc=berkeley,dc=edu")
+
+        when:
+        addOu("people")
+        addOu("groups")
+        addGroup("somegroup1", "groups")
+        addGroup("somegroup2", "groups")
+        addTestEntry(dn, "1")
+        LdapRequestContext reqCtx = new LdapRequestContext(ldapTemplate, "eventId", objDef, null)
+        ldapConnector.addDnToGroup(reqCtx, dn, group1Dn)
+        ldapConnector.setAttribute(reqCtx, null, "1", null, "seeAlso", "CN=somegroup1,ou=groups,dc=berkeley,dc=edu")
+        // already a member of somegroup1 and not a member of somegroup2
+        boolean didModify = ldapConnector.persist("eventId", objDef, null, [
+                dn             : dn,
+                uid            : "1",
+                "GROUPS.ADD"   : "cn=somegroup1,ou=groups,dc=berkeley,dc=edu",
+                "GROUPS.REMOVE": "cn=somegroup2,ou=groups,dc=berkeley,dc=edu"
+        ], false)
+        List<Map<String, Object>> group1Retrieved = ldapTemplate.search(query().where("cn").is("somegroup1"), ldapConnector.toMapContextMapper)
+
+        and: "cleanup"
+        deleteDn(dn)
+        deleteGroup("somegroup1", "groups")
+        deleteGroup("somegroup2", "groups")
+        deleteOu("groups")
+        deleteOu("people")
+
+        then:
+        !didModify
+        group1Retrieved.first().uniqueMember == ["ou=groups,dc=berkeley,dc=edu", dn]
+    }
+
+    void "test a search stopped at the time limit of a deadline fails with LdapDeadlineExceededException"() {
+        given:
+        LdapTemplate mockLdapTemplate = Mock(LdapTemplate) {
+            search(_ as LdapQuery, _ as ContextMapper) >> { throw new TimeLimitExceededException(new javax.naming.TimeLimitExceededException("[LDAP: error code 3 - TIME_LIMIT_EXCEEDED]")) }
+        }
+        UidObjectDefinition objDef = new UidObjectDefinition(objectClass: "person")
+        LdapRequestContext reqCtx = new LdapRequestContext(mockLdapTemplate, "eventId", objDef, null)
+        reqCtx.deadline = LdapDeadline.afterMillis(60000)
+
+        when:
+        ldapConnector.searchByPrimaryKey(reqCtx, "1")
+
+        then:
+        LdapDeadlineExceededException e = thrown()
+        e.cause instanceof TimeLimitExceededException
+    }
+
+    void "test waiting for a concurrency slot stops at the deadline"() {
+        given:
+        LdapConcurrencyLimiter limiter = new LdapConcurrencyLimiter(1)
+        limiter.maxWaitMillis = 60000
+        limiter.tryAcquire()
+        ldapConnector.concurrencyLimiter = limiter
+        long start = System.currentTimeMillis()
+
+        when:
+        ldapConnector.executeWithRetry(LdapDeadline.afterMillis(50)) { true }
+
+        then:
+        thrown(LdapDeadlineExceededException)
+        System.currentTimeMillis() - start < 30000
+        limiter.inFlight == 1
+    }
+
+    void "test group member addition with the Permissive Modify control: #description"() {
+        given:
+        ldapConnector.serverCapabilities = new LdapServerCapabilities([PermissiveModifyControl.OID] as Set, [] as Set, [] as Set, null)
+        ldapConnector.isPermissiveModifyControlEnabled = enabled
+        LdapContext ldapContext = Mock(LdapContext)
+        LdapTemplate mockLdapTemplate = Mock(LdapTemplate) {
+            executeReadWrite(_ as ContextExecutor) >> { ContextExecutor executor -> executor.executeWithContext(ldapContext) }
+        }
+        UidObjectDefinition objDef = new UidObjectDefinition(objectClass: "person")
+        Name groupDn = new LdapName("cn=somegroup1,ou=groups,dc=berkeley,dc=edu")
+
+        when:
+        ldapConnector.addDnToGroup(new LdapRequestContext(mockLdapTemplate, "eventId", objDef, null), "uid=1,ou=people,dc=berkeley,dc=edu", groupDn)
+
+        then:
+        (enabled ? 1 : 0) * ldapContext.setRequestControls({ it && it[0].ID == PermissiveModifyControl.OID })
+        (enabled ? 1 : 0) * ldapContext.modifyAttributes(groupDn, _ as ModificationItem[])
+        (enabled ? 1 : 0) * ldapContext.setRequestControls(null)
+        (enabled ? 0 : 1) * mockLdapTemplate.modifyAttributes(groupDn, _ as ModificationItem[])
+
+        where:
+        description        | enabled
+        "control enabled"  | true
+        "control disabled" | false
+    }
+
+    void "test the Permissive Modify control keeps the context's request controls"() {
+        given:
+        ldapConnector.serverCapabilities = new LdapServerCapabilities([PermissiveModifyControl.OID] as Set, [] as Set, [] as Set, null)
+        Control existingControl = new ManageReferralControl()
+        LdapContext ldapContext = Mock(LdapContext) {
+            getRequestControls() >> ([existingControl] as Control[])
+        }
+        Name dn = new LdapName("cn=somegroup1,ou=groups,dc=berkeley,dc=edu")
+
+        when:
+        boolean modified = ldapConnector.modifyAttributesPermissively(ldapContext, dn, [] as ModificationItem[])
+
+        then:
+        modified
+        1 * ldapContext.setRequestControls({ it*.ID == [ManageReferralControl.OID, PermissiveModifyControl.OID] })
+        1 * ldapContext.modifyAttributes(dn, _ as ModificationItem[])
+
+        then: "the original request controls are restored"
+        1 * ldapContext.setRequestControls({ it*.ID == [ManageReferralControl.OID] })
+    }
+
+    void "test coalesced group membership changes"() {
+        given:
+        LdapGroupMembershipEventCallback groupMembershipEventCallback = Mock(LdapGroupMembershipEventCallback)
+        ldapConnector.groupMembershipEventCallbacks = [groupMembershipEventCallback]
+        LdapGroupMembershipCoalescer coalescer = new LdapGroupMembershipCoalescer(ldapConnector)
+        coalescer.maxPendingChangesPerGroup = 3
+        ldapConnector.groupMembershipCoalescer = coalescer
+        // exercise the one member at a time fallback even if the server
+        // supports the Permissive Modify control
+        ldapConnector.isPermissiveModifyControlEnabled = false
+        UidObjectDefinition objDef = new UidObjectDefinition(objectClass: "person")
+        LdapRequestContext reqCtx = new LdapRequestContext(ldapTemplate, "eventId", objDef, null)
+        Name groupDn = ldapConnector.buildDnName("cn=somegroup1,ou=groups,dc=berkeley,dc=edu")
+
+        when:
+        addOu("people")
+        addOu("groups")
+        addGroup("somegroup1", "groups")
+        addTestEntry("uid=1,ou=people,dc=berkeley,dc=edu", "1")
+        addTestEntry("uid=2,ou=people,dc=berkeley,dc=edu", "2")
+        ldapConnector.addDnToGroup(reqCtx, "uid=2,ou=people,dc=berkeley,dc=edu", groupDn)
+        coalescer.enqueue(reqCtx, "1", "uid=1,ou=people,dc=berkeley,dc=edu", groupDn, LdapGroupMembershipEventMessage.Operation.ADD)
+        int pendingAfterOne = coalescer.pendingChangeCount
+
+        and: "the last change for a member wins"
+        coalescer.enqueue(reqCtx, "2", "uid=2,ou=people,dc=berkeley,dc=edu", groupDn, LdapGroupMembershipEventMessage.Operation.ADD)
+        coalescer.enqueue(reqCtx, "2", "uid=2,ou=people,dc=berkeley,dc=edu", groupDn, LdapGroupMembershipEventMessage.Operation.REMOVE)
+        int pendingBeforeFlush = coalescer.pendingChangeCount
+        List<Map<String, Object>> groupBeforeFlush = ldapTemplate.search(query().where("cn").is("somegroup1"), ldapConnector.toMapContextMapper)
+        coalescer.flush()
+        List<Map<String, Object>> groupAfterFlush = ldapTemplate.search(query().where("cn").is("somegroup1"), ldapConnector.toMapContextMapper)
+
+        and: "adding an existing member falls back to one modification per member"
+        coalescer.enqueue(reqCtx, "1", "uid=1,ou=people,dc=berkeley,dc=edu", groupDn, LdapGroupMembershipEventMessage.Operation.ADD)
+        coalescer.enqueue(reqCtx, "2", "uid=2,ou=people,dc=berkeley,dc=edu", groupDn, LdapGroupMembershipEventMessage.Operation.ADD)
+        coalescer.flush()
+        List<Map<String, Object>> groupAfterFallback = ldapTemplate.search(query().where("cn").is("somegroup1"), ldapConnector.toMapContextMapper)
+
+        and: "cleanup"
+        deleteDn("uid=1,ou=people,dc=berkeley,dc=edu")
+        deleteDn("uid=2,ou=people,dc=berkeley,dc=edu")
+        deleteGroup("somegroup1", "groups")
+        deleteOu("groups")
+        deleteOu("people")
+
+        then:
+        pendingAfterOne == 1
+        pendingBeforeFlush == 2
+        groupBeforeFlush.first().uniqueMember as Set == ["ou=groups,dc=berkeley,dc=edu", "uid=2,ou=people,dc=berkeley,dc=edu"] as Set
+        groupAfterFlush.first().uniqueMember as Set == ["ou=groups,dc=berkeley,dc=edu", "uid=1,ou=people,dc=berkeley,dc=edu"] as Set
+        groupAfterFallback.first().uniqueMember as Set == ["ou=groups,dc=berkeley,dc=edu", "uid=1,ou=people,dc=berkeley,dc=edu", "uid=2,ou=people,dc=berkeley,dc=edu"] as Set
+        coalescer.pendingChangeCount == 0
+        2 * groupMembershipEventCallback.receive({ it.success && it.memberDn.startsWith("uid=") && it.groupDn == groupDn.toString() })
+        1 * groupMembershipEventCallback.receive({ !it.success && it.pkey == "1" && it.operation == LdapGroupMembershipEventMessage.Operation.ADD })
+        1 * groupMembershipEventCallback.receive({ it.success && it.pkey == "2" && it.operation == LdapGroupMembershipEventMessage.Operation.ADD })
+    }
+
+    void "test a coalesced group removal after a queued addition is not skipped"() {
+        given:
+        LdapGroupMembershipCoalescer coalescer = new LdapGroupMembershipCoalescer(ldapConnector)
+        ldapConnector.groupMembershipCoalescer = coalescer
+        // ApacheDS has no memberOf attribute, so seeAlso stands in for it
+        UidObjectDefinition objDef = new UidObjectDefinition(
+                objectClass: "person",
+                keepExistingAttributesWhenUpdating: true,
+                groupDirectiveMetaAttributePrefix: "GROUPS",
+                memberOfAttributeName: "seeAlso"
+        )
+        String dn = "uid=1,ou=people,dc=berkeley,dc=edu"
+        Name groupDn = ldapConnector.buildDnName("cn=somegroup1,ou=groups,dc=berkeley,dc=edu")
+
+        when: "the addition and the removal are queued within one flush window"
+        addOu("people")
+        addOu("groups")
+        addGroup("somegroup1", "groups")
+        addTestEntry(dn, "1")
+        boolean didAdd = ldapConnector.persist("eventId", objDef, null, [dn: dn, uid: "1", "GROUPS.ADD": groupDn.toString()], false)
+        boolean didRemove = ldapConnector.persist("eventId", objDef, null, [dn: dn, uid: "1", "GROUPS.REMOVE": groupDn.toString()], false)
+        LdapGroupMembershipEventMessage.Operation pendingOperation = coalescer.getPendingOperation(groupDn, dn)
+        coalescer.flush()
+        List<Map<String, Object>> groupRetrieved = ldapTemplate.search(query().where("cn").is("somegroup1"), ldapConnector.toMapContextMapper)
+
+        and: "cleanup"
+        deleteDn(dn)
+        deleteGroup("somegroup1", "groups")
+        deleteOu("groups")
+        deleteOu("people")
+
+        then:
+        didAdd
+        didRemove
+        pendingOperation == LdapGroupMembershipEventMessage.Operation.REMOVE
+        groupRetrieved.first().uniqueMember == ["ou=groups,dc=berkeley,dc=edu"]
+    }
+
+    void "test reconciling the full member list of a group"() {
+        given:
+        UidObjectDefinition objDef = new UidObjectDefinition(objectClass: "person")
+        LdapRequestContext reqCtx = new LdapRequestContext(ldapTemplate, "eventId", objDef, null)
+        Name groupDn = ldapConnector.buildDnName("cn=somegroup1,ou=groups,dc=berkeley,dc=edu")
+        List<String> memberDns = (1..5).collect { "uid=$it,ou=people,dc=berkeley,dc=edu".toString() }
+
+        when:
+        addOu("people")
+        addOu("groups")
+        addGroup("somegroup1", "groups")
+        memberDns.eachWithIndex { String memberDn, int i -> addTestEntry(memberDn, "${i + 1}") }
+        ldapConnector.addDnToGroup(reqCtx, memberDns[0], groupDn)
+        ldapConnector.addDnToGroup(reqCtx, memberDns[1], groupDn)
+        // uid=1 differs only in case and spacing, uid=2 and the placeholder are removed
+        LdapGroupReconciliationResult result = ldapConnector.reconcileGroupMembers(reqCtx, groupDn, ["UID=1, ou=people,dc=berkeley,dc=edu", memberDns[2], memberDns[3], memberDns[4]].iterator(), 2)
+        List<Map<String, Object>> groupRetrieved = ldapTemplate.search(query().where("cn").is("somegroup1"), ldapConnector.toMapContextMapper)
+        LdapGroupReconciliationResult secondResult = ldapConnector.reconcileGroupMembers(reqCtx, groupDn, [memberDns[0], memberDns[2], memberDns[3], memberDns[4]].iterator())
+
+        and: "cleanup"
+        memberDns.each { deleteDn(it) }
+        deleteGroup("somegroup1", "groups")
+        deleteOu("groups")
+        deleteOu("people")
+
+        then:
+        result.success
+        result.addedMemberDns as Set == memberDns[2..4] as Set
+        result.removedMemberDns as Set == ["ou=groups,dc=berkeley,dc=edu", memberDns[1]] as Set
+        result.unchangedCount == 1
+        groupRetrieved.first().uniqueMember as Set == [memberDns[0], memberDns[2], memberDns[3], memberDns[4]] as Set
+        !secondResult.modified
+        secondResult.unchangedCount == 4
+    }
+
+    void "test reconciling group members falls back to one member at a time only for value errors: #description"() {
+        given:
+        ldapConnector.serverCapabilities = new LdapServerCapabilities([] as Set, [] as Set, [] as Set, null)
+        UidObjectDefinition objDef = new UidObjectDefinition(objectClass: "person")
+        Name groupDn = new LdapName("cn=somegroup1,ou=groups,dc=berkeley,dc=edu")
+        List<String> memberDns = ["uid=1,ou=people,dc=berkeley,dc=edu", "uid=2,ou=people,dc=berkeley,dc=edu"]
+        int modifyCount = 0
+        LdapTemplate mockLdapTemplate = Mock(LdapTemplate) {
+            lookup(_ as Name, _ as String[], _ as ContextMapper) >> { new DirContextAdapter(new BasicAttributes(true), groupDn) }
+            modifyAttributes(groupDn, _ as ModificationItem[]) >> { Name dn, ModificationItem[] mods ->
+                modifyCount++
+                if (mods[0].attribute.size() > 1) {
+                    throw new org.springframework.ldap.UncategorizedLdapException(new NamingException(chunkError))
+                }
+            }
+        }
+
+        when:
+        LdapGroupReconciliationResult result = ldapConnector.reconcileGroupMembers(new LdapRequestContext(mockLdapTemplate, "eventId", objDef, null), groupDn, memberDns.iterator())
+
+        then:
+        modifyCount == expectedModifyCount
+        result.addedMemberDns.size() == expectedAddedCount
+        result.failedMemberDns.size() == memberDns.size() - expectedAddedCount
+
+        where:
+        description       | chunkError                                        | expectedModifyCount | expectedAddedCount
+        "value error"     | "[LDAP: error code 20 - attributeOrValueExists]"  | 3                   | 2
+        "transient error" | "[LDAP: error code 51 - busy]"                    | 1                   | 0
+    }
+
+    void "test reading ranged attribute values: #description"() {
+        given:
+        // simulates a server that returns at most two values per range
+        List<String> allMembers = (1..5).collect { "uid=$it,ou=people,dc=berkeley,dc=edu".toString() }
+        List<String> requestedIds = []
+        LdapTemplate rangedLdapTemplate = Mock(LdapTemplate) {
+            lookup(_ as Name, _ as String[], _ as ContextMapper) >> { Name dn, String[] attrs, ContextMapper mapper ->
+                String requestedId = attrs[0]
+                requestedIds.add(requestedId)
+                long[] requested = LdapConnector.parseAttributeValueRange(requestedId) ?: [0L, -1L] as long[]
+                int low = (int) requested[0]
+                int high = Math.min(low + 1, allMembers.size() - 1)
+                BasicAttributes attributes = new BasicAttributes(true)
+                BasicAttribute attr = new BasicAttribute("member;range=$low-${high == allMembers.size() - 1 ? '*' : high}")
+                allMembers[low..high].each { attr.add(it) }
+                attributes.put(attr)
+                return new DirContextAdapter(attributes, dn)
+            }
+        }
+        UidObjectDefinition objDef = new UidObjectDefinition(objectClass: "person", attributeValueRangeSize: rangeSize)
+        LdapRequestContext reqCtx = new LdapRequestContext(rangedLdapTemplate, "eventId", objDef, null)
+        List<String> read = []
+
+        when:
+        ldapConnector.readAttributeValues(reqCtx, new LdapName("cn=group1,dc=berkeley,dc=edu"), "member") { read.add(it) }
+
+        then:
+        read == allMembers
+        requestedIds == expectedRequestedIds
+
+        where:
+        description                | rangeSize | expectedRequestedIds
+        "ranges chosen by server"  | 0         | ["member", "member;range=2-*", "member;range=4-*"]
+        "ranges of a page size"    | 2         | ["member;range=0-1", "member;range=2-3", "member;range=4-5"]
+    }
+
+    void "test diffing a ranged attribute streams the existing values"() {
+        given:
+        // simulates a server that returns at most two values per range
+        List<String> allMembers = (1..5).collect { "uid=$it,ou=people,dc=berkeley,dc=edu".toString() }
+        LdapTemplate rangedLdapTemplate = Mock(LdapTemplate) {
+            lookup(_ as Name, _ as String[], _ as ContextMapper) >> { Name dn, String[] attrs, ContextMapper mapper ->
+                long[] requested = LdapConnector.parseAttributeValueRange(attrs[0]) ?: [0L, -1L] as long[]
+                int low = (int) requested[0]
+                int high = Math.min(low + 1, allMembers.size() - 1)
+                BasicAttributes attributes = new BasicAttributes(true)
+                BasicAttribute attr = new BasicAttribute("member;range=$low-${high == allMembers.size() - 1 ? '*' : high}")
+                allMembers[low..high].each { attr.add(it) }
+                attributes.put(attr)
+                return new DirContextAdapter(attributes, dn)
+            }
+        }
+        UidObjectDefinition objDef = new UidObjectDefinition(objectClass: "person", attributeValueRangeSize: 2)
+        LdapRequestContext reqCtx = new LdapRequestContext(rangedLdapTemplate, "eventId", objDef, null)
+        List<String> desired = [allMembers[0], allMembers[2], "uid=9,ou=people,dc=berkeley,dc=edu"]
+
+        when:
+        List<ModificationItem> mods = ldapConnector.diffRangedAttribute(reqCtx, new LdapName("cn=group1,dc=berkeley,dc=edu"), "member", desired)
+
+        then: "values that are not desired are removed before the missing ones are added"
+        mods*.modificationOp == [DirContext.REMOVE_ATTRIBUTE, DirContext.ADD_ATTRIBUTE]
+        mods[0].attribute.all.toList() == [allMembers[1], allMembers[3], allMembers[4]]
+        mods[1].attribute.all.toList() == ["uid=9,ou=people,dc=berkeley,dc=edu"]
+    }
+
+    void "test IntHashSet and LdapDnDictionary"() {
+        given:
+        IntHashSet set = new IntHashSet()
+        LdapDnDictionary dictionary = new LdapDnDictionary()
+
+        when:
+        (0..<1000).each { set.add(it * 3) }
+        (0..<500).each { set.remove(it * 6) }
+        int id1 = dictionary.add("uid=1,dc=berkeley,dc=edu")
+        int id2 = dictionary.add("UID=1, dc=Berkeley,dc=edu")
+        int id3 = dictionary.add("uid=2,dc=berkeley,dc=edu")
+
+        then:
+        set.size() == 500
+        set.contains(3)
+        !set.contains(6)
+        !set.add(3)
+        set.iterator().toList().size() == 500
+        id1 == id2
+        id1 != id3
+        dictionary.size() == 2
+        dictionary.getDn(id2) == "uid=1,dc=berkeley,dc=edu"
+        dictionary.idOf("uid=2,DC=berkeley,dc=edu") == id3
+        dictionary.idOf("uid=3,dc=berkeley,dc=edu") == -1
+    }
+
+    void "test building a typed persist request from an attribute map"() {
+        given:
+        UidObjectDefinition objDef = new UidObjectDefinition(
+                objectClass: "person",
+                dynamicAttributeNames: ["dn.ONCREATE", "description.ONUPDATE"] as String[],
+                groupDirectiveMetaAttributePrefix: "GROUPS"
+        )
+        Map<String, Object> attrMap = [
+                "dn.ONCREATE"         : "uid=1,ou=people,dc=berkeley,dc=edu",
+                uid                   : "1",
+                entryUUID             : "abc",
+                cn                    : "Test User",
+                "description.ONUPDATE": "updated",
+                "GROUPS.ADD"          : "cn=somegroup1,ou=groups,dc=berkeley,dc=edu",
+                "GROUPS.REMOVE"       : ["cn=somegroup2,ou=groups,dc=berkeley,dc=edu"]
+        ]
+
+        when:
+        LdapPersistRequest request = ldapConnector.buildPersistRequest(objDef, attrMap)
+
+        then:
+        request.dn == "uid=1,ou=people,dc=berkeley,dc=edu"
+        request.dnDirective == LdapPersistRequest.DnDirective.ONCREATE
+        request.pkey == "1"
+        request.globallyUniqueIdentifier == "abc"
+        request.attributes == [uid: "1", cn: "Test User"]
+        request.dynamicAttributes == ["description.ONUPDATE": "updated"]
+        request.groupAdditions == ["cn=somegroup1,ou=groups,dc=berkeley,dc=edu"]
+        request.groupRemovals == ["cn=somegroup2,ou=groups,dc=berkeley,dc=edu"]
+        request.toAttributeMap(objDef).is(attrMap)
+        // the caller's map is left untouched
+        attrMap.size() == 7
+    }
+
+    void "test persist with a typed request"() {
+        given:
+        UidObjectDefinition objDef = new UidObjectDefinition(
+                objectClass: "person",
+                keepExistingAttributesWhenUpdating: true,
+                removeDuplicatePrimaryKeys: true
+        )
+        String dn = "uid=1,ou=people,dc=berkeley,dc=edu"
+        LdapPersistRequest request = new LdapPersistRequest(
+                dn: dn,
+                pkey: "1",
+                attributes: [
+                        objectClass: ["top", "person", "inetOrgPerson", "organizationalPerson"],
+                        sn         : "User",
+                        cn         : "Test User",
+                        description: "initial test"
+                ]
+        )
+
+        when:
+        addOu("people")
+        boolean didCreate = ldapConnector.persist("eventId", objDef, null, request, false)
+        // the same request again should result in no modification
+        boolean didUpdate = ldapConnector.persist("eventId", objDef, null, request, false)
+        List<Map<String, Object>> retrieved = searchForUid("1")
+
+        and: "cleanup"
+        deleteDn(dn)
+        deleteOu("people")
+
+        then:
+        didCreate
+        !didUpdate
+        retrieved.size() == 1
+        retrieved.first().uid == "1"
+        retrieved.first().description == "initial test"
+        // the primary key attribute was added to a copy of the attributes
+        !request.attributes.containsKey("uid")
+        1 * insertEventCallback.receive(_)
+        1 * updateEventCallback.receive(_)
+        2 * persistCompletionEventCallback.receive(_)
+    }
+
+    void "test ToMapContextMapper returns a read-only view of the entry attributes"() {
+        given:
+        BasicAttributes attributes = new BasicAttributes(true)
+        attributes.put("uid", "1")
+        attributes.put(new BasicAttribute("objectClass"))
+        attributes.get("objectClass").add("top")
+        attributes.get("objectClass").add("person")
+        attributes.put(new BasicAttribute("description"))
+        DirContextAdapter entry = new DirContextAdapter(attributes, new LdapName("uid=1,dc=berkeley,dc=edu"))
+
+        when:
+        Map<String, Object> map = ldapConnector.toMapContextMapper.mapFromContext(entry)
+        Map<String, Object> withoutDn = ((AttributesMapView) map).withoutDn()
+
+        then: "attributes without values are not included and dn is a pseudo-attribute"
+        map == [uid: "1", objectClass: ["top", "person"], dn: "uid=1,dc=berkeley,dc=edu"]
+        withoutDn == [uid: "1", objectClass: ["top", "person"]]
+
+        and: "key lookups are case insensitive"
+        map.UID == "1"
+        map.containsKey("OBJECTCLASS")
+        !map.containsKey("description")
+
+        and: "multi-valued attributes are materialized once"
+        map.objectClass.is(map.objectClass)
+
+        when:
+        map.put("cn", "Test User")
+
+        then:
+        thrown(UnsupportedOperationException)
+
+        when: "a value list is modified"
+        ((List) map.objectClass).add("inetOrgPerson")
+
+        then:
+        thrown(UnsupportedOperationException)
+
+        when: "the attributes change after a snapshot is taken"
+        Map<String, Object> snapshot = ((AttributesMapView) withoutDn).snapshot()
+        attributes.get("objectClass").add("inetOrgPerson")
+
+        then:
+        snapshot == [uid: "1", objectClass: ["top", "person"]]
+        withoutDn.objectClass == ["top", "person", "inetOrgPerson"]
+    }
+
+    void "test schema codec compares values using the directory's matching rules"() {
+        given:
+        LdapSchemaCodec codec = ldapConnector.loadSchemaCodec()
+        LdapSchemaCodec parsedCodec = LdapSchemaCodec.fromAttributeTypeDescriptions([
+                "( 1.3.6.1.1.1.1.0 NAME 'uidNumber' EQUALITY integerMatch SYNTAX 1.3.6.1.4.1.1466.115.121.1.27 SINGLE-VALUE )",
+                "( 1.3.6.1.4.1.9999.1 NAME ( 'testFlag' 'flag' ) EQUALITY booleanMatch SYNTAX 1.3.6.1.4.1.1466.115.121.1.7 )",
+                "( 1.3.6.1.4.1.9999.2 NAME 'testName' SUP name )",
+                "( 2.5.4.41 NAME 'name' EQUALITY caseIgnoreMatch SYNTAX 1.3.6.1.4.1.1466.115.121.1.15{32768} )"
+        ])
+
+        expect: "the embedded directory's schema was read"
+        codec.size() > 0
+        codec.getAttributeType("commonName").is(codec.getAttributeType("cn"))
+
+        and: "values equal under the matching rule are equal"
+        codec.valuesEqual("description", "a  test", " a test ")
+        codec.valuesEqual("telephoneNumber", "+1 510-555-1212", "+15105551212")
+        codec.valuesEqual("uniqueMember", ["uid=1,dc=berkeley,dc=edu", "uid=2,dc=berkeley,dc=edu"], ["uid=2, dc=berkeley, dc=edu", "uid=1,dc=berkeley,dc=edu"])
+
+        and: "case only changes are modifications unless configured otherwise"
+        !codec.valuesEqual("description", "a test", "A Test")
+        !codec.valuesEqual("description", "a test", "something else")
+
+        and: "parsed attribute types inherit from their super type"
+        parsedCodec.getAttributeType("testName").equality == "caseIgnoreMatch"
+        parsedCodec.getAttributeType("testName").syntax == "1.3.6.1.4.1.1466.115.121.1.15"
+        parsedCodec.valuesEqual("testName", "x  y", "x y")
+        parsedCodec.valuesEqual("uidNumber", "007", "7")
+        parsedCodec.encode("flag", true) == "TRUE"
+        parsedCodec.encode("uidNumber", 7) == "7"
+        parsedCodec.encode("uidNumber", 7L) == "7"
+        parsedCodec.encode("uidNumber", new BigDecimal("7.00")) == "7"
+        // non-integral numbers are left to the toString() encoding
+        parsedCodec.encode("uidNumber", 7.0d) == null
+        parsedCodec.encode("uidNumber", new BigDecimal("7.5")) == null
+        parsedCodec.encode("testName", "x") == null
+
+        when:
+        codec.ignoreCaseOnlyChanges = true
+
+        then:
+        codec.valuesEqual("description", "a test", "A Test")
+    }
+
+    void "test interning repeated attribute values"() {
+        given:
+        LdapValueInterner interner = new LdapValueInterner(2, 8)
+        ldapConnector.valueInterner = interner
+        BasicAttributes attributes1 = new BasicAttributes(true)
+        attributes1.put("ou", new String("people"))
+        BasicAttributes attributes2 = new BasicAttributes(true)
+        attributes2.put("ou", new String("people"))
+        attributes2.put("description", "longer than eight")
+
+        when:
+        Map<String, Object> map1 = ldapConnector.toMapContextMapper.mapFromContext(new DirContextAdapter(attributes1, new LdapName("uid=1,dc=berkeley,dc=edu")))
+        Map<String, Object> map2 = ldapConnector.toMapContextMapper.mapFromContext(new DirContextAdapter(attributes2, new LdapName("uid=2,dc=berkeley,dc=edu")))
+        Map<String, Object> converted = ldapConnector.convertCallerProvidedMap([ou: new String("people"), employeeNumber: 1])
+
+        then: "equal values share an instance"
+        map1.ou.is(map2.ou)
+        converted.ou.is(map1.ou)
+        converted.employeeNumber == "1"
+
+        and: "values longer than the maximum length are not interned"
+        map2.description == "longer than eight"
+        interner.size() == 2
+
+        and: "statistics are kept"
+        interner.hitCount == 2
+        interner.missCount == 2
+        interner.hitRate == 0.5d
     }
 
     void "test null character replacement in LdapConnectorException message"() {